@@ -16,6 +16,9 @@ package wycl;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,10 +30,16 @@ import wycc.util.Trie;
 import wycl.core.CLangFile;
 import wycl.io.CLangFilePrinter;
 import wycl.tasks.CLangCompileTask;
+import wycl.tasks.CLangCompiler;
 import wycl.util.CC;
+import wycl.util.Verification;
 import wyil.lang.WyilFile;
 
 public class Main {
+	/**
+	 * The runtime headers which are written alongside every generated C file.
+	 */
+	private static final String[] RUNTIME_HEADERS = { "wy_int.h", "wy_array.h", "wy_region.h", "wy_union.h", "wy_open.h", "wy_closure.h", "wy_memo.h" };
 	/**
 	 * Destination directory of Wyil files.
 	 */
@@ -59,6 +68,22 @@ public class Main {
 	 * WyIL dependencies to include during compilation.
 	 */
 	private List<File> whileypath = Collections.EMPTY_LIST;
+	/**
+	 * Preprocessor macros defined when compiling the generated C file.
+	 */
+	private List<String> defines = new ArrayList<>();
+	/**
+	 * Signals whether to report the decisions made whilst compiling.
+	 */
+	private boolean profile = false;
+	/**
+	 * Names of functions whose results are cached.
+	 */
+	private List<String> memoised = new ArrayList<>();
+	/**
+	 * Determines which contracts are checked at runtime.
+	 */
+	private CLangCompiler.CheckLevel checks = CLangCompiler.CheckLevel.STANDARD;
 
 	public Main addSource(Trie source) {
 		this.sources.add(source);
@@ -90,13 +115,34 @@ public class Main {
 		return this;
 	}
 
+	public Main addDefine(String define) {
+		this.defines.add(define);
+		return this;
+	}
+
+	public Main setProfile(boolean profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	public Main addMemoised(String name) {
+		this.memoised.add(name);
+		return this;
+	}
+
+	public Main setCheckLevel(CLangCompiler.CheckLevel checks) {
+		this.checks = checks;
+		return this;
+	}
+
 	public boolean run() throws IOException {
 		// Construct compile task
-		CLangCompileTask task = new CLangCompileTask().setTarget(target).setEntry(entry);
+		CLangCompileTask task = new CLangCompileTask().setTarget(target).setEntry(entry).setMemoised(memoised)
+				.setCheckLevel(checks);
 		// Add sources
 		for(Trie source : sources) {
-			// Extract source file
-			task.addSource(wyc.Compiler.readWyilFile(wyildir, source));
+			// Extract source file, which is verified only if recorded as such
+			task.addSource(wyc.Compiler.readWyilFile(wyildir, source), Verification.isVerified(wyildir, source));
 		}
 		// Extract any dependencies from zips
 		for(File dep : whileypath) {
@@ -105,10 +151,14 @@ public class Main {
 			task.addSources(deps);
 		}
 		CLangFile target = task.run();
+		if (profile) {
+			task.getProfile().write(System.out);
+		}
 		// Write out binary target
 		writeCLangFile(this.target, target, cdir);
+		writeRuntime(cdir);
 		// Attempt to compile the source file.
-		return compileCLangFile(this.target, cdir);
+		return compileCLangFile(this.target, cdir, defines);
 	}
 
 	/**
@@ -117,7 +167,10 @@ public class Main {
 	private static final OptArg[] OPTIONS = {
 			// Standard options
 			new OptArg("verbose","v","set verbose output"),
+			new OptArg("profile","p","report optimisation decisions (e.g. inlining)"),
 			new OptArg("output","o",OptArg.STRING,"set output file","main"),
+			new OptArg("memoise","m",OptArg.STRING,"cache the results of the given (comma-separated) functions",""),
+			new OptArg("checks","c",OptArg.STRING,"set which contracts are checked at runtime (none, entry, standard or full)","standard"),
 			new OptArg("wyildir", OptArg.FILEDIR, "Specify where to place binary (WyIL) files", new File(".")),
 			new OptArg("jsdir", OptArg.FILEDIR, "Specify where to place JavaScript files", new File(".")),
 			new OptArg("whileypath", OptArg.FILELIST, "Specify additional dependencies", new ArrayList<>())
@@ -132,7 +185,14 @@ public class Main {
 		Trie target = Trie.fromString((String) options.get("output"));
 		ArrayList<File> whileypath = (ArrayList<File>) options.get("whileypath");
 		// Construct Main object
-		Main main = new Main().setWyilDir(wyildir).setCDir(jsdir).setTarget(target).setWhileyPath(whileypath);
+		Main main = new Main().setWyilDir(wyildir).setCDir(jsdir).setTarget(target).setWhileyPath(whileypath)
+				.setProfile(options.containsKey("profile"))
+				.setCheckLevel(CLangCompiler.CheckLevel.valueOf(((String) options.get("checks")).toUpperCase()));
+		for (String name : ((String) options.get("memoise")).split(",")) {
+			if (!name.isEmpty()) {
+				main.addMemoised(name);
+			}
+		}
 		// Add source files
 		for (String s : args) {
 			main.addSource(Trie.fromString(s));
@@ -158,10 +218,35 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Write the runtime headers required by generated C files into a given
+	 * directory.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public static void writeRuntime(File dir) throws IOException {
+		for (String header : RUNTIME_HEADERS) {
+			try (InputStream in = Main.class.getResourceAsStream("/wycl/runtime/" + header)) {
+				if (in == null) {
+					throw new IOException("missing runtime header: " + header);
+				}
+				Files.copy(in, new File(dir, header).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
 	public static boolean compileCLangFile(Trie target, File dir) {
+		return compileCLangFile(target, dir, Collections.emptyList());
+	}
+
+	public static boolean compileCLangFile(Trie target, File dir, List<String> defines) {
 		File cfile = new File(dir, target.toNativeString() + ".c");
 		File ofile = new File(dir, target.toNativeString());
 		CC cc = new CC().setTarget(ofile);
+		for (String define : defines) {
+			cc.addDefine(define);
+		}
 		CC.Result r = cc.run(cfile);
 		return r instanceof CC.Result.Success;
 	}
@@ -15,7 +15,9 @@ package wycl.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import wycc.util.Pair;
 import wycl.core.CLangFile;
@@ -75,14 +77,31 @@ public class CLangFile {
 
 		public static class Include implements Declaration {
 			private final String include;
+			private final boolean local;
 
 			public Include(String include) {
+				this(include, false);
+			}
+
+			/**
+			 * Construct an include which is either local (i.e. a header located
+			 * alongside the generated file) or a system header.
+			 *
+			 * @param include
+			 * @param local
+			 */
+			public Include(String include, boolean local) {
 				this.include = include;
+				this.local = local;
 			}
 
 			public String getInclude() {
 				return include;
 			}
+
+			public boolean isLocal() {
+				return local;
+			}
 		}
 
 		public static class TypeDef extends Abstract implements Declaration {
@@ -98,16 +117,348 @@ public class CLangFile {
 			}
 		}
 
+		/**
+		 * Declares the structure representing a (closed) record type, along with
+		 * its associated operations. These are <code>NAME_copy</code> and
+		 * <code>NAME_release</code>, which copy and release each field as necessary
+		 * (e.g. sharing the buffer of an array field), and <code>NAME_equals</code>,
+		 * which compares each field.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class RecordTypeDef extends TypeDef {
+			private final List<String> operations;
+
+			/**
+			 * @param name       The name of the record type
+			 * @param type       The structure representing it
+			 * @param operations The prefix of the operations for each field of the
+			 *                   structure, or <code>null</code> if it is copied and
+			 *                   compared bitwise.
+			 */
+			public RecordTypeDef(String name, Type.Struct type, List<String> operations) {
+				super(name, type);
+				this.operations = operations;
+			}
+
+			@Override
+			public Type.Struct getType() {
+				return (Type.Struct) super.getType();
+			}
+
+			public List<String> getOperations() {
+				return operations;
+			}
+		}
+
+		/**
+		 * Declares a runtime array type for a given element type, along with its
+		 * associated operations (e.g. allocation, copying and equality).
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class ArrayTypeDef extends Abstract implements Declaration {
+			private final Type.Array type;
+			private final String operations;
+
+			public ArrayTypeDef(Type.Array type) {
+				this(type, null);
+			}
+
+			/**
+			 * Declare an array type whose elements cannot be copied or compared
+			 * bitwise. Instead, elements are compared, copied and released using the
+			 * functions <code>P_equals</code>, <code>P_copy</code> and
+			 * <code>P_release</code>, where <code>P</code> is the given prefix.
+			 *
+			 * @param type
+			 * @param operations
+			 */
+			public ArrayTypeDef(Type.Array type, String operations) {
+				super(type.getName());
+				this.type = type;
+				this.operations = operations;
+			}
+
+			public Type.Array getType() {
+				return type;
+			}
+
+			/**
+			 * Get the prefix for the element operations, or <code>null</code> if
+			 * elements are copied and compared bitwise.
+			 *
+			 * @return
+			 */
+			public String getOperations() {
+				return operations;
+			}
+		}
+
+		/**
+		 * Declares a tagged union type, along with its associated operations (e.g.
+		 * equality). Each member is identified by its index, which is the value of
+		 * the tag when that member is held. A <code>null</code> member type
+		 * indicates a member which carries no payload (i.e. the null value).
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class UnionTypeDef extends Abstract implements Declaration {
+			private final List<Type> members;
+			private final List<String> operations;
+
+			/**
+			 * @param name       The name of the union type
+			 * @param members    The payload type of each member, or <code>null</code>
+			 *                   for members without a payload.
+			 * @param operations The prefix of the operations (e.g. equality) for each
+			 *                   member, or <code>null</code> if it is copied and
+			 *                   compared bitwise.
+			 */
+			public UnionTypeDef(String name, List<Type> members, List<String> operations) {
+				super(name);
+				this.members = members;
+				this.operations = operations;
+			}
+
+			public List<Type> getMembers() {
+				return members;
+			}
+
+			public List<String> getOperations() {
+				return operations;
+			}
+		}
+
+		/**
+		 * Declares the heap-allocated box used to represent a recursive type. The
+		 * type itself must be declared beforehand as a pointer to
+		 * <code>struct NAME_box</code>. Boxes are reference counted, hence the
+		 * value held is released along with the last reference.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class BoxTypeDef extends Abstract implements Declaration {
+			private final Type value;
+			private final String operations;
+
+			public BoxTypeDef(String name, Type value, String operations) {
+				super(name);
+				this.value = value;
+				this.operations = operations;
+			}
+
+			/**
+			 * Get the type of the value held in the box.
+			 *
+			 * @return
+			 */
+			public Type getValue() {
+				return value;
+			}
+
+			/**
+			 * Get the prefix of the operations (e.g. equality) for the boxed value,
+			 * or <code>null</code> if it is copied and compared bitwise.
+			 *
+			 * @return
+			 */
+			public String getOperations() {
+				return operations;
+			}
+		}
+
+		/**
+		 * Declares the shape of a record type (i.e. the offset of each field), which
+		 * is needed to convert its values into open records. The shape is named
+		 * <code>NAME_shape</code>, where <code>NAME</code> is the record type.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class ShapeDef extends Abstract implements Declaration {
+			private final String record;
+			private final List<String> fields;
+
+			public ShapeDef(String record, List<String> fields) {
+				super(record + "_shape");
+				this.record = record;
+				this.fields = fields;
+			}
+
+			public String getRecord() {
+				return record;
+			}
+
+			public List<String> getFields() {
+				return fields;
+			}
+		}
+
+		/**
+		 * Declares the type of a closure, which pairs a function pointer with the
+		 * environment it was created in. The function receives the environment as
+		 * its first parameter. A function <code>NAME_call</code> is also declared
+		 * for invoking closures of this type.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class ClosureTypeDef extends Abstract implements Declaration {
+			private final Type returnType;
+			private final List<Type> parameters;
+
+			public ClosureTypeDef(String name, Type returnType, List<Type> parameters) {
+				super(name);
+				this.returnType = returnType;
+				this.parameters = parameters;
+			}
+
+			public Type getReturnType() {
+				return returnType;
+			}
+
+			public List<Type> getParameters() {
+				return parameters;
+			}
+		}
+
+		/**
+		 * Declares read-only data holding the elements of a constant array, which
+		 * is shared by every use of it. The elements of a byte array may be given
+		 * in binary form (i.e. as a string literal), which is more compact.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class ConstantArrayDef extends Abstract implements Declaration {
+			private final Type.Array type;
+			private final List<Expression> items;
+			private final boolean binary;
+
+			public ConstantArrayDef(String name, Type.Array type, List<Expression> items, boolean binary) {
+				super(name);
+				this.type = type;
+				this.items = items;
+				this.binary = binary;
+			}
+
+			public Type.Array getType() {
+				return type;
+			}
+
+			public List<Expression> getItems() {
+				return items;
+			}
+
+			public boolean isBinary() {
+				return binary;
+			}
+		}
+
+		/**
+		 * Declares a table caching the results of a memoised function, which maps
+		 * keys of a given type (holding its arguments) to values of its return type.
+		 * The functions <code>NAME_lookup</code> and <code>NAME_store</code> are also
+		 * declared for accessing the table.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public static class MemoDef extends Abstract implements Declaration {
+			private final Type keyType;
+			private final Type valueType;
+
+			public MemoDef(String name, Type keyType, Type valueType) {
+				super(name);
+				this.keyType = keyType;
+				this.valueType = valueType;
+			}
+
+			public Type getKeyType() {
+				return keyType;
+			}
+
+			public Type getValueType() {
+				return valueType;
+			}
+		}
+
 		public static class Method extends Abstract implements Declaration {
+			/**
+			 * Modifiers which may be applied to a method, which are written in the
+			 * order given here.
+			 *
+			 * @author David J. Pearce
+			 *
+			 */
+			public enum Modifier {
+				/**
+				 * Not visible outside the file.
+				 */
+				STATIC,
+				/**
+				 * Suggests the method be inlined.
+				 */
+				INLINE,
+				/**
+				 * Requires the method to be inlined at every call site (using
+				 * <code>__attribute__((always_inline))</code>).
+				 */
+				ALWAYS_INLINE,
+				/**
+				 * Has no side effects, so calls may be eliminated or combined.
+				 */
+				PURE,
+				/**
+				 * As for <code>PURE</code>, but also reads no memory other than its
+				 * arguments.
+				 */
+				CONST,
+				/**
+				 * Never returns.
+				 */
+				NORETURN,
+				/**
+				 * Is unlikely to be executed.
+				 */
+				COLD
+			}
+
 			private final Type returnType;
 			private final List<Parameter> parameters;
 			private final Statement.Block body;
+			private final Set<Modifier> modifiers;
 
 			public Method(Type returnType, String name, List<Parameter> parameters, Statement.Block body) {
+				this(returnType, name, parameters, body, EnumSet.noneOf(Modifier.class));
+			}
+
+			/**
+			 * Construct a method with given modifiers. A method without a body is
+			 * a prototype, whose modifiers should match those of its definition.
+			 *
+			 * @param returnType
+			 * @param name
+			 * @param parameters
+			 * @param body
+			 * @param modifiers
+			 */
+			public Method(Type returnType, String name, List<Parameter> parameters, Statement.Block body,
+					Set<Modifier> modifiers) {
 				super(name);
 				this.returnType = returnType;
 				this.parameters = parameters;
 				this.body = body;
+				this.modifiers = modifiers;
+			}
+
+			public Set<Modifier> getModifiers() {
+				return modifiers;
 			}
 
 			public Type getReturnType() {
@@ -471,9 +822,9 @@ public class CLangFile {
 
 		public class IntConstant implements Expression {
 			private final boolean hex;
-			private final int constant;
+			private final long constant;
 
-			private IntConstant(boolean hex, int constant) {
+			private IntConstant(boolean hex, long constant) {
 				this.hex = hex;
 				this.constant = constant;
 			}
@@ -482,7 +833,24 @@ public class CLangFile {
 				return hex;
 			}
 
-			public int getConstant() {
+			public long getConstant() {
+				return constant;
+			}
+
+			@Override
+			public boolean requiresParenthesis() {
+				return false;
+			}
+		}
+
+		public class StringConstant implements Expression {
+			private final String constant;
+
+			private StringConstant(String constant) {
+				this.constant = constant;
+			}
+
+			public String getConstant() {
 				return constant;
 			}
 
@@ -515,6 +883,58 @@ public class CLangFile {
 			}
 		}
 
+		/**
+		 * Represents an array which views constant data (i.e.
+		 * <code>NAME_const(n, data)</code>). Such an array can be shared freely,
+		 * since its data is never freed and is copied when first written.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public class ConstArray extends Invoke {
+			private ConstArray(Type.Array type, Expression length, Expression data) {
+				super(type.getName() + "_const", Arrays.asList(length, data));
+			}
+		}
+
+		/**
+		 * Represents an element of a packed boolean array which is being assigned
+		 * (see <code>WY_BITS_DECL</code>). This is only meaningful as the target of
+		 * an assignment, which becomes <code>NAME_set(&amp;a, i, v)</code>, since
+		 * elements cannot be addressed individually.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public class PackedElement implements Expression {
+			private final Type.Array type;
+			private final Expression source;
+			private final Expression index;
+
+			private PackedElement(Type.Array type, Expression source, Expression index) {
+				this.type = type;
+				this.source = source;
+				this.index = index;
+			}
+
+			public Type.Array getType() {
+				return type;
+			}
+
+			public Expression getSource() {
+				return source;
+			}
+
+			public Expression getIndex() {
+				return index;
+			}
+
+			@Override
+			public boolean requiresParenthesis() {
+				return false;
+			}
+		}
+
 		// ======================================================
 		// Logical
 		// ======================================================
@@ -665,6 +1085,66 @@ public class CLangFile {
 		// Other
 		// ======================================================
 
+		/**
+		 * Represents an array compound literal, such as <code>(int[]){1,2,3}</code>.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public class ArrayLiteral implements Expression {
+			private final Type element;
+			private final List<Expression> items;
+
+			public ArrayLiteral(Type element, List<Expression> items) {
+				this.element = element;
+				this.items = items;
+			}
+
+			public Type getElement() {
+				return element;
+			}
+
+			public List<Expression> getItems() {
+				return items;
+			}
+
+			@Override
+			public boolean requiresParenthesis() {
+				return false;
+			}
+		}
+
+		/**
+		 * Represents a GNU statement expression, such as
+		 * <code>({ int x = f(); x + 1; })</code>, whose value is that of its final
+		 * expression.
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public class StatementExpression implements Expression {
+			private final List<Statement> statements;
+			private final Expression result;
+
+			public StatementExpression(List<Statement> statements, Expression result) {
+				this.statements = statements;
+				this.result = result;
+			}
+
+			public List<Statement> getStatements() {
+				return statements;
+			}
+
+			public Expression getResult() {
+				return result;
+			}
+
+			@Override
+			public boolean requiresParenthesis() {
+				return false;
+			}
+		}
+
 		public class ArrayAccess implements Expression {
 			private final Expression source;
 			private final Expression index;
@@ -694,6 +1174,30 @@ public class CLangFile {
 			}
 		}
 
+		public class AddressOf extends Prefix {
+			public AddressOf(Expression source) {
+				super(source);
+			}
+		}
+
+		public class Cast extends Prefix {
+			private final Type type;
+
+			public Cast(Type type, Expression source) {
+				super(source);
+				this.type = type;
+			}
+
+			public Type getType() {
+				return type;
+			}
+
+			@Override
+			public boolean requiresParenthesis() {
+				return true;
+			}
+		}
+
 		public class FieldDereference extends Prefix {
 			private final String field;
 			public FieldDereference(Expression source, String field) {
@@ -759,6 +1263,70 @@ public class CLangFile {
 
 	public interface Type {
 
+		/**
+		 * Represents a Whiley array, which is implemented by a runtime structure
+		 * carrying both the length and the elements of the array. Since the runtime
+		 * structure is specialised for each element type, every array type has a
+		 * distinct name (e.g. <code>wy_array_int</code>).
+		 *
+		 * @author David J. Pearce
+		 *
+		 */
+		public class Array implements Type {
+			private final Type element;
+
+			private Array(Type element) {
+				this.element = element;
+			}
+
+			public Type getElement() {
+				return element;
+			}
+
+			public String getName() {
+				return "wy_array_" + Type.mangle(element);
+			}
+		}
+
+		/**
+		 * Determine a string which uniquely identifies a given type, and which can
+		 * be used as part of a C identifier. This is used to name the types
+		 * generated for arrays, records and unions.
+		 *
+		 * @param type
+		 * @return
+		 */
+		public static String mangle(Type type) {
+			if (type instanceof Bool) {
+				return "bool";
+			} else if (type instanceof Int) {
+				Int t = (Int) type;
+				if (t.hasFixedWidth()) {
+					return (t.isSigned() ? "i" : "u") + t.getWidth();
+				} else {
+					return t.isSigned() ? "int" : "uint";
+				}
+			} else if (type instanceof Nominal) {
+				return ((Nominal) type).getName();
+			} else if (type instanceof Array) {
+				return "array_" + mangle(((Array) type).getElement());
+			} else if (type instanceof Pointer) {
+				return "ptr_" + mangle(((Pointer) type).getElement());
+			} else if (type instanceof Const) {
+				return "const_" + mangle(((Const) type).getElement());
+			} else if (type instanceof Void) {
+				return "void";
+			} else if (type instanceof Struct) {
+				String r = "struct";
+				for (Pair<Type, String> field : ((Struct) type).getFields()) {
+					r += "_" + mangle(field.first()) + "_" + field.second();
+				}
+				return r;
+			} else {
+				throw new IllegalArgumentException("invalid type: " + type);
+			}
+		}
+
 		public class Bool implements Type {
 			private Bool() {
 
@@ -795,6 +1363,21 @@ public class CLangFile {
 			}
 		}
 
+		/**
+		 * A const-qualified type, e.g. <code>const int</code>.
+		 */
+		public class Const implements Type {
+			private final Type element;
+
+			private Const(Type element) {
+				this.element = element;
+			}
+
+			public Type getElement() {
+				return element;
+			}
+		}
+
 		public class Nominal implements Type {
 			private final String name;
 
@@ -886,6 +1469,10 @@ public class CLangFile {
 	// Expression Constructors
 	// =========================================================================
 
+	public static Expression ARRAY_LITERAL(Type element, List<Expression> items) {
+		return new Expression.ArrayLiteral(element, items);
+	}
+
 	public static Expression ARRAY_ACCESS(Expression source, Expression index) {
 		return new Expression.ArrayAccess(source, index);
 	}
@@ -910,14 +1497,26 @@ public class CLangFile {
 		return new Expression.ShiftRight(lhs, rhs);
 	}
 
-	public static Expression INT_CONST(int value) {
+	public static Expression INT_CONST(long value) {
 		return new Expression.IntConstant(false,value);
 	}
 
+	public static Expression STRING_CONST(String value) {
+		return new Expression.StringConstant(value);
+	}
+
 	public static Expression HEX_CONST(int value) {
 		return new Expression.IntConstant(true,value);
 	}
 
+	public static Expression CAST(Type type, Expression source) {
+		return new Expression.Cast(type, source);
+	}
+
+	public static Expression ADDRESS_OF(Expression source) {
+		return new Expression.AddressOf(source);
+	}
+
 	public static Expression DEREFERENCE(Expression source) {
 		return new Expression.Dereference(source);
 	}
@@ -939,6 +1538,14 @@ public class CLangFile {
 		return new Expression.Invoke(name, arguments);
 	}
 
+	public static Expression CONST_ARRAY(Type.Array type, Expression length, Expression data) {
+		return new Expression.ConstArray(type, length, data);
+	}
+
+	public static Expression PACKED_ELEMENT(Type.Array type, Expression source, Expression index) {
+		return new Expression.PackedElement(type, source, index);
+	}
+
 	public static Expression INITIALISER(List<Pair<String, Expression>> fields) {
 		return new Expression.DesignatedInitialiser(fields);
 	}
@@ -1003,14 +1610,26 @@ public class CLangFile {
 		return new Expression.Var(name);
 	}
 
+	public static Expression STATEMENT_EXPRESSION(List<Statement> statements, Expression result) {
+		return new Expression.StatementExpression(statements, result);
+	}
+
 	// =========================================================================
 	// Type Constructors
 	// =========================================================================
 
+	public static Type.Array ARRAY(Type element) {
+		return new Type.Array(element);
+	}
+
 	public static Type BOOL() {
 		return new Type.Bool();
 	}
 
+	public static Type CONST(Type element) {
+		return new Type.Const(element);
+	}
+
 	public static Type INT() {
 		return new Type.Int(true);
 	}
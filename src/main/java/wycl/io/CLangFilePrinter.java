@@ -16,6 +16,7 @@ package wycl.io;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.Set;
 
 import wycc.util.Pair;
 import wycl.core.CLangFile;
@@ -26,6 +27,10 @@ import wycl.core.CLangFile.Type;
 
 public class CLangFilePrinter {
 	private final PrintWriter out;
+	/**
+	 * The indentation of the statement currently being written.
+	 */
+	private int indent;
 
 	public CLangFilePrinter(OutputStream output) {
 		this.out = new PrintWriter(output);
@@ -42,6 +47,22 @@ public class CLangFilePrinter {
 	private void write(int indent, Declaration d) {
 		if (d instanceof Declaration.Include) {
 			writeInclude(indent, (Declaration.Include) d);
+		} else if (d instanceof Declaration.ArrayTypeDef) {
+			writeArrayTypeDef(indent, (Declaration.ArrayTypeDef) d);
+		} else if (d instanceof Declaration.RecordTypeDef) {
+			writeRecordTypeDef(indent, (Declaration.RecordTypeDef) d);
+		} else if (d instanceof Declaration.UnionTypeDef) {
+			writeUnionTypeDef(indent, (Declaration.UnionTypeDef) d);
+		} else if (d instanceof Declaration.BoxTypeDef) {
+			writeBoxTypeDef(indent, (Declaration.BoxTypeDef) d);
+		} else if (d instanceof Declaration.ClosureTypeDef) {
+			writeClosureTypeDef(indent, (Declaration.ClosureTypeDef) d);
+		} else if (d instanceof Declaration.ShapeDef) {
+			writeShapeDef(indent, (Declaration.ShapeDef) d);
+		} else if (d instanceof Declaration.ConstantArrayDef) {
+			writeConstantArrayDef(indent, (Declaration.ConstantArrayDef) d);
+		} else if (d instanceof Declaration.MemoDef) {
+			writeMemoDef(indent, (Declaration.MemoDef) d);
 		} else if (d instanceof Declaration.Method) {
 			writeMethod(indent, (Declaration.Method) d);
 		} else if (d instanceof Declaration.TypeDef) {
@@ -53,12 +74,223 @@ public class CLangFilePrinter {
 
 	private void writeInclude(int indent, Declaration.Include d) {
 		tab(indent);
-		out.println("#include <" + d.getInclude() + ">");
+		if(d.isLocal()) {
+			out.println("#include \"" + d.getInclude() + "\"");
+		} else {
+			out.println("#include <" + d.getInclude() + ">");
+		}
+	}
+
+	private void writeArrayTypeDef(int indent, Declaration.ArrayTypeDef d) {
+		Type.Array type = d.getType();
+		Type element = type.getElement();
+		String name = d.getOperations();
+		tab(indent);
+		if(name != null) {
+			// Elements themselves require deep copying and comparison
+			out.print("WY_ARRAY_DECL_WITH(" + d.getName() + ", ");
+			writeType(element);
+			out.println(", " + name + "_equals, " + name + "_copy, " + name + "_release)");
+		} else if(element instanceof Type.Bool) {
+			// Booleans are packed into words
+			out.println("WY_BITS_DECL(" + d.getName() + ")");
+		} else {
+			out.print("WY_ARRAY_DECL(" + d.getName() + ", ");
+			writeType(element);
+			out.println(")");
+		}
+	}
+
+	private void writeRecordTypeDef(int indent, Declaration.RecordTypeDef d) {
+		String name = d.getName();
+		List<Pair<Type, String>> fields = d.getType().getFields();
+		List<String> operations = d.getOperations();
+		writeTypeDef(indent, d);
+		// Fields are compared individually, since (e.g.) arrays cannot be compared bitwise
+		tab(indent);
+		out.print("static inline bool " + name + "_equals(" + name + " a, " + name + " b) { return ");
+		for (int i = 0; i != fields.size(); ++i) {
+			String a = "a." + fields.get(i).second();
+			String b = "b." + fields.get(i).second();
+			if (i != 0) {
+				out.print(" && ");
+			}
+			if (operations.get(i) != null) {
+				out.print(operations.get(i) + "_equals(" + a + ", " + b + ")");
+			} else {
+				out.print("memcmp(&" + a + ", &" + b + ", sizeof(" + a + ")) == 0");
+			}
+		}
+		out.println(fields.isEmpty() ? "true; }" : "; }");
+		// Fields (e.g. arrays) are copied and released according to their types
+		tab(indent);
+		out.print("static inline " + name + " " + name + "_copy(" + name + " a) { ");
+		for (int i = 0; i != fields.size(); ++i) {
+			if (operations.get(i) != null) {
+				String f = "a." + fields.get(i).second();
+				out.print(f + " = " + operations.get(i) + "_copy(" + f + "); ");
+			}
+		}
+		out.println("return a; }");
+		tab(indent);
+		out.print("static inline void " + name + "_release(" + name + " a) { ");
+		for (int i = 0; i != fields.size(); ++i) {
+			if (operations.get(i) != null) {
+				out.print(operations.get(i) + "_release(a." + fields.get(i).second() + "); ");
+			}
+		}
+		out.println("(void)a; }");
+	}
+
+	private void writeUnionTypeDef(int indent, Declaration.UnionTypeDef d) {
+		String name = d.getName();
+		List<Type> members = d.getMembers();
+		List<String> operations = d.getOperations();
+		tab(indent);
+		out.print("typedef struct { uint8_t tag; union { ");
+		for (int i = 0; i != members.size(); ++i) {
+			if (members.get(i) != null) {
+				writeType(members.get(i));
+				out.print(" m" + i + "; ");
+			}
+		}
+		out.println("} u; } " + name + ";");
+		if (operations.stream().allMatch(o -> o == null)) {
+			tab(indent);
+			out.println("WY_UNION_DECL(" + name + ")");
+		} else {
+			// The payload (e.g. an array) is copied and released according to the tag
+			tab(indent);
+			out.print("static inline " + name + " " + name + "_copy(" + name + " a) { switch (a.tag) { ");
+			for (int i = 0; i != members.size(); ++i) {
+				if (operations.get(i) != null) {
+					String m = "a.u.m" + i;
+					out.print("case " + i + ": " + m + " = " + operations.get(i) + "_copy(" + m + "); break; ");
+				}
+			}
+			out.println("} return a; }");
+			tab(indent);
+			out.print("static inline void " + name + "_release(" + name + " a) { switch (a.tag) { ");
+			for (int i = 0; i != members.size(); ++i) {
+				if (operations.get(i) != null) {
+					out.print("case " + i + ": " + operations.get(i) + "_release(a.u.m" + i + "); break; ");
+				}
+			}
+			out.println("} }");
+		}
+		// Members are equal if they have the same tag and equal payloads
+		tab(indent);
+		out.print("static inline bool " + name + "_equals(" + name + " a, " + name + " b) { return a.tag == b.tag");
+		for (int i = 0; i != members.size(); ++i) {
+			if (members.get(i) != null) {
+				String a = "a.u.m" + i;
+				String b = "b.u.m" + i;
+				out.print(" && (a.tag != " + i + " || ");
+				if (operations.get(i) != null) {
+					out.print(operations.get(i) + "_equals(" + a + ", " + b + ")");
+				} else {
+					out.print("memcmp(&" + a + ", &" + b + ", sizeof(" + a + ")) == 0");
+				}
+				out.print(")");
+			}
+		}
+		out.println("; }");
+	}
+
+	private void writeBoxTypeDef(int indent, Declaration.BoxTypeDef d) {
+		tab(indent);
+		if (d.getOperations() != null) {
+			out.print("WY_BOX_DECL_WITH(" + d.getName() + ", ");
+			writeType(d.getValue());
+			String ops = d.getOperations();
+			out.println(", " + ops + "_equals, " + ops + "_copy, " + ops + "_release)");
+		} else {
+			out.print("WY_BOX_DECL(" + d.getName() + ", ");
+			writeType(d.getValue());
+			out.println(")");
+		}
+	}
+
+	private void writeClosureTypeDef(int indent, Declaration.ClosureTypeDef d) {
+		String name = d.getName();
+		List<Type> params = d.getParameters();
+		tab(indent);
+		out.print("typedef struct { ");
+		writeType(d.getReturnType());
+		out.print(" (*fn)(void *");
+		for (Type param : params) {
+			out.print(", ");
+			writeType(param);
+		}
+		out.println("); void *env; } " + name + ";");
+		tab(indent);
+		out.println("WY_CLOSURE_DECL(" + name + ")");
+		// Invoke a closure by passing its environment to its function
+		tab(indent);
+		out.print("static inline ");
+		writeType(d.getReturnType());
+		out.print(" " + name + "_call(" + name + " c");
+		for (int i = 0; i != params.size(); ++i) {
+			out.print(", ");
+			writeType(params.get(i));
+			out.print(" a" + i);
+		}
+		boolean isVoid = d.getReturnType() instanceof Type.Void;
+		out.print(") { " + (isVoid ? "" : "return ") + "c.fn(c.env");
+		for (int i = 0; i != params.size(); ++i) {
+			out.print(", a" + i);
+		}
+		out.println("); }");
+	}
+
+	private void writeShapeDef(int indent, Declaration.ShapeDef d) {
+		String record = d.getRecord();
+		tab(indent);
+		out.print("WY_SHAPE_DECL(" + record);
+		for (String field : d.getFields()) {
+			out.print(", WY_FIELD(" + record + ", " + field + ")");
+		}
+		out.println(")");
+	}
+
+	private void writeConstantArrayDef(int indent, Declaration.ConstantArrayDef d) {
+		List<Expression> items = d.getItems();
+		tab(indent);
+		out.print("WY_ARRAY_CONST(" + d.getType().getName() + ", " + d.getName() + ", " + items.size());
+		if (d.isBinary()) {
+			// Write sixteen bytes per line
+			for (int i = 0; i < items.size(); i += 16) {
+				out.println(i == 0 ? "," : "");
+				tab(indent + 1);
+				out.print("\"");
+				for (int j = i; j < Math.min(i + 16, items.size()); ++j) {
+					long b = ((Expression.IntConstant) items.get(j)).getConstant();
+					out.print(String.format("\\x%02x", b & 0xFF));
+				}
+				out.print("\"");
+			}
+		} else {
+			for (Expression item : items) {
+				out.print(", ");
+				writeExpression(item);
+			}
+		}
+		out.println(")");
+	}
+
+	private void writeMemoDef(int indent, Declaration.MemoDef d) {
+		tab(indent);
+		out.print("WY_MEMO_DECL(" + d.getName() + ", ");
+		writeType(d.getKeyType());
+		out.print(", ");
+		writeType(d.getValueType());
+		out.println(")");
 	}
 
 	private void writeMethod(int indent, Declaration.Method d) {
 		List<Declaration.Parameter> params = d.getParameters();
 		tab(indent);
+		writeModifiers(d.getModifiers());
 		writeType(d.getReturnType());
 		out.print(" ");
 		out.print(d.getName());
@@ -73,8 +305,41 @@ public class CLangFilePrinter {
 			out.print(ith.getName());
 		}
 		out.print(")");
-		writeBlock(indent, d.getBody());
-		out.println();
+		if (d.getBody() == null) {
+			// A prototype
+			out.println(";");
+		} else {
+			writeBlock(indent, d.getBody());
+			out.println();
+		}
+	}
+
+	private void writeModifiers(Set<Declaration.Method.Modifier> modifiers) {
+		for (Declaration.Method.Modifier m : modifiers) {
+			switch (m) {
+			case STATIC:
+				out.print("static ");
+				break;
+			case INLINE:
+				out.print("inline ");
+				break;
+			case ALWAYS_INLINE:
+				out.print("__attribute__((always_inline)) ");
+				break;
+			case PURE:
+				out.print("__attribute__((pure)) ");
+				break;
+			case CONST:
+				out.print("__attribute__((const)) ");
+				break;
+			case NORETURN:
+				out.print("__attribute__((noreturn)) ");
+				break;
+			case COLD:
+				out.print("__attribute__((cold)) ");
+				break;
+			}
+		}
 	}
 
 	private void writeTypeDef(int indent, Declaration.TypeDef d) {
@@ -97,6 +362,7 @@ public class CLangFilePrinter {
 	}
 
 	private void writeStatement(int indent, Statement stmt) {
+		this.indent = indent;
 		tab(indent);
 		writeInternalStatement(indent,stmt);
 		if(stmt instanceof Statement.Block || stmt instanceof Statement.For || stmt instanceof Statement.If || stmt instanceof Statement.While ) {
@@ -220,6 +486,8 @@ public class CLangFilePrinter {
 	private void writeExpression(Expression expr) {
 		if(expr instanceof Expression.ArrayAccess) {
 			writeArrayAccess((Expression.ArrayAccess) expr);
+		} else if(expr instanceof Expression.ArrayLiteral) {
+			writeArrayLiteral((Expression.ArrayLiteral) expr);
 		} else if(expr instanceof Expression.BoolConstant) {
 			writeBoolConstant((Expression.BoolConstant) expr);
 		} else if(expr instanceof Expression.FieldAccess) {
@@ -228,19 +496,40 @@ public class CLangFilePrinter {
 			writeFieldDereference((Expression.FieldDereference) expr);
 		} else if(expr instanceof Expression.Infix) {
 			writeInfix((Expression.Infix) expr);
+		} else if(expr instanceof Expression.Prefix) {
+			writePrefix((Expression.Prefix) expr);
 		} else if(expr instanceof Expression.IntConstant) {
 			writeIntConstant((Expression.IntConstant) expr);
+		} else if(expr instanceof Expression.StringConstant) {
+			writeStringConstant((Expression.StringConstant) expr);
 		} else if(expr instanceof Expression.Invoke) {
 			writeInvoke((Expression.Invoke) expr);
 		} else if(expr instanceof Expression.DesignatedInitialiser) {
 			writeDesignatedInitialiser((Expression.DesignatedInitialiser) expr);
 		} else if(expr instanceof Expression.Var) {
 			writeVariableAccess((Expression.Var) expr);
+		} else if(expr instanceof Expression.StatementExpression) {
+			writeStatementExpression((Expression.StatementExpression) expr);
 		} else {
 			throw new IllegalArgumentException();
 		}
 	}
 
+	private void writeStatementExpression(Expression.StatementExpression expr) {
+		// Statements are indented relative to the one enclosing this expression
+		int outer = indent;
+		out.println("({");
+		for (Statement stmt : expr.getStatements()) {
+			writeStatement(outer + 1, stmt);
+		}
+		tab(outer + 1);
+		writeExpression(expr.getResult());
+		out.println(";");
+		tab(outer);
+		out.print("})");
+		indent = outer;
+	}
+
 	private void writeArrayAccess(Expression.ArrayAccess expr) {
 		writeBracketedExpression(expr.getSource());
 		out.print("[");
@@ -248,6 +537,20 @@ public class CLangFilePrinter {
 		out.print("]");
 	}
 
+	private void writeArrayLiteral(Expression.ArrayLiteral expr) {
+		List<Expression> items = expr.getItems();
+		out.print("(");
+		writeType(expr.getElement());
+		out.print("[]){");
+		for (int i = 0; i != items.size(); ++i) {
+			if (i != 0) {
+				out.print(", ");
+			}
+			writeExpression(items.get(i));
+		}
+		out.print("}");
+	}
+
 	private void writeBoolConstant(Expression.BoolConstant expr) {
 		out.print(expr.getConstant());
 	}
@@ -272,15 +575,57 @@ public class CLangFilePrinter {
 		writeBracketedExpression(expr.getRightHandSide());
 	}
 
+	private void writePrefix(Expression.Prefix expr) {
+		if(expr instanceof Expression.Neg) {
+			out.print("-");
+		} else if(expr instanceof Expression.Not) {
+			out.print("!");
+		} else if(expr instanceof Expression.Dereference) {
+			out.print("*");
+		} else if(expr instanceof Expression.AddressOf) {
+			out.print("&");
+		} else if(expr instanceof Expression.Cast) {
+			out.print("(");
+			writeType(((Expression.Cast) expr).getType());
+			out.print(") ");
+		} else {
+			throw new IllegalArgumentException("unknown prefix operator: " + expr.getClass().getName());
+		}
+		writeBracketedExpression(expr.getOperand());
+	}
+
 	private void writeIntConstant(Expression.IntConstant expr) {
 		if(expr.inHex()) {
 			out.print("0x");
-			out.print(Integer.toHexString(expr.getConstant()));
+			out.print(Long.toHexString(expr.getConstant()));
+		} else if (expr.getConstant() == Long.MIN_VALUE) {
+			// NOTE: the literal 9223372036854775808 does not fit in a long long
+			out.print("(-9223372036854775807LL - 1)");
+		} else if (expr.getConstant() < Integer.MIN_VALUE || expr.getConstant() > Integer.MAX_VALUE) {
+			out.print(expr.getConstant());
+			out.print("LL");
 		} else {
 			out.print(expr.getConstant());
 		}
 	}
 
+	private void writeStringConstant(Expression.StringConstant expr) {
+		String s = expr.getConstant();
+		out.print("\"");
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.print('\\');
+				out.print(c);
+			} else if (c < 0x20 || c > 0x7E) {
+				out.print(String.format("\\%03o", c & 0xFF));
+			} else {
+				out.print(c);
+			}
+		}
+		out.print("\"");
+	}
+
 	private void writeInvoke(Expression.Invoke expr) {
 		List<Expression> args = expr.getArguments();
 		out.print(expr.getName());
@@ -318,8 +663,12 @@ public class CLangFilePrinter {
 	// ============================================================
 
 	private void writeType(Type type) {
-		if (type instanceof Type.Bool) {
+		if (type instanceof Type.Array) {
+			writeTypeArray((Type.Array) type);
+		} else if (type instanceof Type.Bool) {
 			writeTypeBool((Type.Bool) type);
+		} else if (type instanceof Type.Const) {
+			writeTypeConst((Type.Const) type);
 		} else if (type instanceof Type.Int) {
 			writeTypeInt((Type.Int) type);
 		} else if (type instanceof Type.Nominal) {
@@ -335,6 +684,15 @@ public class CLangFilePrinter {
 		}
 	}
 
+	private void writeTypeArray(Type.Array type) {
+		out.print(type.getName());
+	}
+
+	private void writeTypeConst(Type.Const type) {
+		out.print("const ");
+		writeType(type.getElement());
+	}
+
 	private void writeTypePointer(Type.Pointer type) {
 		writeType(type.getElement());
 		out.print("*");
@@ -15,9 +15,13 @@ package wycl.tasks;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import wycc.util.Trie;
 import wycl.core.CLangFile;
+import wycl.util.Profile;
 import wyil.lang.WyilFile;
 
 public class CLangCompileTask {
@@ -33,6 +37,23 @@ public class CLangCompileTask {
 	 * The set of source files that this task will compiler from.
 	 */
 	private final List<WyilFile> sources = new ArrayList<>();
+	/**
+	 * Records the decisions made whilst compiling.
+	 */
+	private final Profile profile = new Profile();
+	/**
+	 * Names of functions whose results are cached.
+	 */
+	private Collection<String> memoised = Collections.emptyList();
+	/**
+	 * Determines which contracts are checked at runtime.
+	 */
+	private CLangCompiler.CheckLevel checks = CLangCompiler.CheckLevel.STANDARD;
+	/**
+	 * The source files which have been verified (as shown by their verification
+	 * records), such that checks discharged by the verifier are omitted.
+	 */
+	private final Set<WyilFile> verified = new HashSet<>();
 
 	public CLangCompileTask setTarget(Trie target) {
 		this.target = target;
@@ -44,22 +65,53 @@ public class CLangCompileTask {
 		return this;
 	}
 
+	public CLangCompileTask setMemoised(Collection<String> memoised) {
+		this.memoised = memoised;
+		return this;
+	}
+
+	public CLangCompileTask setCheckLevel(CLangCompiler.CheckLevel checks) {
+		this.checks = checks;
+		return this;
+	}
+
 	public CLangCompileTask addSource(WyilFile f) {
 		this.sources.add(f);
 		return this;
 	}
 
+	/**
+	 * Add a source file, along with whether it has been verified (see
+	 * <code>Verification</code>).
+	 *
+	 * @param f
+	 * @param verified
+	 * @return
+	 */
+	public CLangCompileTask addSource(WyilFile f, boolean verified) {
+		this.sources.add(f);
+		if (verified) {
+			this.verified.add(f);
+		}
+		return this;
+	}
+
 	public CLangCompileTask addSources(Collection<WyilFile> fs) {
 		this.sources.addAll(fs);
 		return this;
 	}
 
+	public Profile getProfile() {
+		return profile;
+	}
+
 	public CLangFile run() {
 		// Construct initial (empty) JavaScript file
 		CLangFile cFile = new CLangFile();
 		// Process source files one by one
 		for (WyilFile i : sources) {
-			new CLangCompiler(cFile).visitModule(i);
+			new CLangCompiler(cFile, profile).setMemoised(memoised).setCheckLevel(checks).setVerified(verified.contains(i))
+					.visitModule(i);
 		}
 		//
 		if (entry != null) {
@@ -13,11 +13,22 @@
 // limitations under the License.
 package wycl.tasks;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import wycc.lang.SyntacticItem;
 import wycc.util.AbstractCompilationUnit.Tuple;
 import wycc.util.AbstractCompilationUnit.Value;
 import wycc.util.Pair;
@@ -38,6 +49,10 @@ import wyil.util.IncrementalSubtypingEnvironment;
 import wyil.util.Subtyping;
 import wyil.util.TypeMangler;
 import wycl.util.AbstractTranslator;
+import wycl.util.CallTargets;
+import wycl.util.Inliner;
+import wycl.util.IntegerRange;
+import wycl.util.Profile;
 
 public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expression,Type> {
 	/**
@@ -51,6 +66,78 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 	 */
 	private final static Subtyping.Environment subtyping = new IncrementalSubtypingEnvironment();
 
+	/**
+	 * The runtime representation of Whiley's unbounded integers.
+	 */
+	private final static Type WY_INT = NOMINAL("wy_int");
+
+	/**
+	 * Integer constants in this range fit directly into a <code>wy_int</code>,
+	 * whilst others must be constructed at runtime.
+	 */
+	private final static BigInteger MIN_SMALL_INT = BigInteger.ONE.shiftLeft(62).negate();
+	private final static BigInteger MAX_SMALL_INT = BigInteger.ONE.shiftLeft(62).subtract(BigInteger.ONE);
+
+	/**
+	 * The name of the region from which a function allocates boxes which cannot
+	 * outlive it.
+	 */
+	private final static String REGION = "wy_rgn";
+
+	/**
+	 * The largest array literal whose buffer may be allocated on the stack.
+	 */
+	private final static int MAX_STACK_ITEMS = 256;
+
+	/**
+	 * The fewest items of a constant byte array for which its data is written in
+	 * binary form.
+	 */
+	private final static int MIN_BINARY_ITEMS = 64;
+
+	/**
+	 * The size (in bytes) above which records are passed by reference, rather than
+	 * by value.
+	 */
+	private final static int MAX_RECORD_BY_VALUE = 32;
+
+	/**
+	 * The size (in bytes) of a pointer on the (64-bit) targets supported.
+	 */
+	private final static int POINTER_SIZE = 8;
+
+	/**
+	 * The name of the parameter through which a closure's function receives its
+	 * environment.
+	 */
+	private final static String ENV = "wy_env";
+
+	/**
+	 * The modifiers of functions generated for lambdas, and of the helpers
+	 * generated for invoking closures.
+	 */
+	private final static Set<Declaration.Method.Modifier> STATIC = EnumSet.of(Declaration.Method.Modifier.STATIC);
+	private final static Set<Declaration.Method.Modifier> STATIC_INLINE = EnumSet.of(Declaration.Method.Modifier.STATIC,
+			Declaration.Method.Modifier.INLINE);
+
+	/**
+	 * The most targets an indirect invocation may have for it to be translated
+	 * into a sequence of direct invocations.
+	 */
+	private final static int MAX_DISPATCH_TARGETS = 4;
+
+	/**
+	 * The most values a quantified variable may range over for its loop to be
+	 * translated without an early exit.
+	 */
+	private final static int MAX_REDUCED_RANGE = 16;
+
+	/**
+	 * The range of values which can be held in an <code>int64_t</code>.
+	 */
+	private final static IntegerRange INT64_RANGE = new IntegerRange(BigInteger.valueOf(Long.MIN_VALUE),
+			BigInteger.valueOf(Long.MAX_VALUE));
+
     /**
      * Flag to signal whether or not to apply mangling.  By default this is enabled.
      */
@@ -61,9 +148,181 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 	 */
 	private final CLangFile cFile;
 
+	/**
+	 * Supporting declarations (e.g. runtime array types) required by the
+	 * declaration currently being translated. These are added to the file
+	 * immediately before that declaration.
+	 */
+	private final List<Declaration> auxiliaries = new ArrayList<>();
+
+	/**
+	 * The declaration currently being translated.
+	 */
+	private Decl enclosing;
+
+	/**
+	 * Caches the range of values permitted by each integer type declaration,
+	 * inferred from its invariant.
+	 */
+	private final Map<Decl.Type, IntegerRange> typeRanges = new HashMap<>();
+
+	/**
+	 * Caches the range of values for each parameter, inferred from its type and
+	 * the precondition of its enclosing function or method.
+	 */
+	private final Map<Decl.Variable, IntegerRange> parameterRanges = new HashMap<>();
+
+	/**
+	 * Caches whether or not each recursive type declaration is boxed.
+	 */
+	private final Map<Decl.Type, Boolean> boxes = new HashMap<>();
+
+	/**
+	 * Signals whether any boxes have been allocated from the region of the
+	 * function currently being translated.
+	 */
+	private boolean regionUsed;
+
+	/**
+	 * Signals whether the declaration currently being translated may fail at
+	 * runtime (e.g. it checks an assertion, or narrows an integer), in which case
+	 * calls to it are not free of side effects.
+	 */
+	private boolean mayFail;
+
+	/**
+	 * The declarations translated so far which can never fail at runtime.
+	 */
+	private final Set<Decl.Callable> neverFail = new HashSet<>();
+
+	/**
+	 * Estimates how often each field (by name) is accessed, used to place hot
+	 * fields first when laying out records.
+	 */
+	private final Map<String, Integer> fieldAccesses = new HashMap<>();
+
+	/**
+	 * The (non-integer) types declared in this module whose invariants are tested
+	 * at runtime by a type test, and so must be generated regardless of whether
+	 * they are otherwise checked.
+	 */
+	private final Set<Decl.Type> tested = new HashSet<>();
+
+	/**
+	 * The name of the function generated for each lambda.
+	 */
+	private final Map<Decl.Lambda, String> lambdas = new HashMap<>();
+
+	/**
+	 * The possible targets of indirect invocations within the module.
+	 */
+	private CallTargets callTargets;
+
+	/**
+	 * The number of lambdas enclosing the expression currently being translated.
+	 * Their bodies become separate functions, hence cannot use the region of the
+	 * enclosing declaration.
+	 */
+	private int lambdaDepth;
+
+	/**
+	 * The variables of quantifiers encountered so far, which are held in native
+	 * integers.
+	 */
+	private final Set<Decl.Variable> quantified = new HashSet<>();
+
+	/**
+	 * Decides how each declaration in the module is inlined.
+	 */
+	private Inliner inliner;
+
+	/**
+	 * Records the decisions made whilst translating.
+	 */
+	private final Profile profile;
+
+	/**
+	 * Names of functions whose results are cached.
+	 */
+	private Collection<String> memoised = Collections.emptyList();
+
+	/**
+	 * Determines which contracts are checked at runtime.
+	 */
+	private CheckLevel checks = CheckLevel.STANDARD;
+
+	/**
+	 * The name of the function checking the postcondition of the enclosing
+	 * declaration, or <code>null</code> if it is not checked.
+	 */
+	private String ensures;
+
+	/**
+	 * Signals that the module has been verified (as shown by its verification
+	 * record), in which case checks discharged by the verifier are omitted.
+	 * Nevertheless, integers are always checked when narrowed, such that a module
+	 * wrongly recorded as verified cannot truncate them silently.
+	 */
+	private boolean verified;
+
+	/**
+	 * The number of checks of each kind generated, and the number of these
+	 * emitted (i.e. not discharged by the verifier).
+	 */
+	private final Map<String, int[]> checkCounts = new LinkedHashMap<>();
+
+	/**
+	 * The levels at which contracts can be checked at runtime. Checks which are
+	 * disabled are not generated at all, hence cost nothing.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum CheckLevel {
+		/**
+		 * Nothing is checked, including assertions and assumptions.
+		 */
+		NONE,
+		/**
+		 * Only the preconditions of exported functions and methods are checked on
+		 * entry, since they may be called from outside the module.
+		 */
+		ENTRY,
+		/**
+		 * Every precondition and postcondition is checked, along with assertions,
+		 * assumptions and the invariants of parameters and returned values.
+		 */
+		STANDARD,
+		/**
+		 * As for standard, except that loop invariants are also checked before each
+		 * iteration.
+		 */
+		FULL
+	}
+
 	public CLangCompiler(CLangFile cFile) {
+		this(cFile, new Profile());
+	}
+
+	public CLangCompiler(CLangFile cFile, Profile profile) {
 		super(subtyping);
 		this.cFile = cFile;
+		this.profile = profile;
+	}
+
+	public CLangCompiler setMemoised(Collection<String> memoised) {
+		this.memoised = memoised;
+		return this;
+	}
+
+	public CLangCompiler setCheckLevel(CheckLevel checks) {
+		this.checks = checks;
+		return this;
+	}
+
+	public CLangCompiler setVerified(boolean verified) {
+		this.verified = verified;
+		return this;
 	}
 
 	public void visitModule(WyilFile wf) {
@@ -73,15 +332,80 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		decls.add(new Declaration.Include("stdbool.h"));
 		decls.add(new Declaration.Include("stdint.h"));
 		decls.add(new Declaration.Include("assert.h"));
+		decls.add(new Declaration.Include("wy_int.h", true));
+		decls.add(new Declaration.Include("wy_array.h", true));
+		decls.add(new Declaration.Include("wy_union.h", true));
+		decls.add(new Declaration.Include("wy_open.h", true));
+		decls.add(new Declaration.Include("wy_closure.h", true));
+		decls.add(new Declaration.Include("wy_memo.h", true));
+		callTargets = new CallTargets(wf);
+		inliner = new Inliner(wf);
+		profile.addAll("inlining", inliner.getReport());
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				if (decl instanceof Decl.Type) {
+					tested.add((Decl.Type) decl);
+				}
+			}
+		}
+		HashSet<Decl.Type> found = new HashSet<>();
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				findTestedTypes(decl, found);
+			}
+		}
+		tested.retainAll(found);
+		// Recursive types may be referred to before they are defined
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				countFieldAccesses(decl, 1);
+				if (decl instanceof Decl.Type && isBoxed((Decl.Type) decl)) {
+					String name = ((Decl.Type) decl).getName().get();
+					decls.add(TYPEDEF(name, POINTER(NOMINAL("struct " + name + "_box"))));
+					// The operations on (e.g.) records holding boxes use those on the box
+					Type box = NOMINAL(name);
+					List<Declaration.Parameter> one = Arrays.asList(new Declaration.Parameter(box, "a"));
+					List<Declaration.Parameter> two = Arrays.asList(new Declaration.Parameter(box, "a"),
+							new Declaration.Parameter(box, "b"));
+					decls.add(new Declaration.Method(BOOL(), name + "_equals", two, null, STATIC_INLINE));
+					decls.add(new Declaration.Method(box, name + "_copy", one, null, STATIC_INLINE));
+					decls.add(new Declaration.Method(VOID(), name + "_release", one, null, STATIC_INLINE));
+				}
+			}
+		}
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				if (decl instanceof Decl.Type && isRecursive((Decl.Type) decl) && !isBoxed((Decl.Type) decl)) {
+					enclosing = decl;
+					Type type = canonical(pointerOf((Decl.Type) decl));
+					decls.addAll(auxiliaries);
+					auxiliaries.clear();
+					decls.add(TYPEDEF(((Decl.Type) decl).getName().get(), type));
+				}
+			}
+		}
 		// Translate local units
 		for (Decl.Unit unit : wf.getModule().getUnits()) {
 			for (Decl decl : unit.getDeclarations()) {
+				enclosing = decl;
+				regionUsed = false;
+				mayFail = false;
 				CLangFile.Declaration d = visitDeclaration(decl);
+				if (!mayFail && decl instanceof Decl.Callable) {
+					neverFail.add((Decl.Callable) decl);
+				}
+				// Supporting declarations must come first
+				decls.addAll(auxiliaries);
+				auxiliaries.clear();
 				if (d != null) {
 					decls.add(d);
 				}
 			}
 		}
+		for (Map.Entry<String, int[]> e : checkCounts.entrySet()) {
+			int[] counts = e.getValue();
+			profile.add("checks", e.getKey() + ": " + counts[0] + " generated, " + counts[1] + " emitted");
+		}
 	}
 
 	public void addEntryPoint(Trie entry) {
@@ -102,10 +426,51 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		return null;
 	}
 
+	@Override
+	public Declaration visitType(WyilFile.Decl.Type d) {
+		if (!isRecursive(d)) {
+			return super.visitType(d);
+		} else if (!isBoxed(d)) {
+			// Already declared
+			return null;
+		}
+		String name = d.getName().get();
+		List<WyilFile.Type> members = withoutNull(bodyOf(d));
+		if (members.size() == 1) {
+			return new Declaration.BoxTypeDef(name, canonical(members.get(0)), opsOf(members.get(0)));
+		} else {
+			Layout layout = layoutOf(members);
+			return new Declaration.BoxTypeDef(name, layout.type, layout.name);
+		}
+	}
+
 	@Override
 	public Declaration constructType(WyilFile.Decl.Type d, List<Expression> invariant, Type type) {
 		String name = d.getName().get();
-		return TYPEDEF(name,type);
+		// Bounded integers are represented using the narrowest suitable type
+		Type.Int fixed = toFixedWidth(rangeOf(d));
+		Declaration typedef = TYPEDEF(name, fixed != null ? fixed : type);
+		if (invariant.isEmpty() || !(checksInvariant(d) || tested.contains(d))) {
+			return typedef;
+		}
+		// The invariant is checked (or tested) by a function following the type
+		Decl.Variable var = d.getVariableDeclaration();
+		String vn = var.getName().get();
+		ArrayList<Declaration.Parameter> params = new ArrayList<>();
+		ArrayList<Statement> stmts = new ArrayList<>();
+		if (fixed != null) {
+			// The invariant accesses the value according to its underlying type
+			Type.Int inner = toFixedWidth(rangeOf(var.getType()));
+			Expression value = inner != null ? VAR("wy_v") : widen(fixed, VAR("wy_v"));
+			params.add(new Declaration.Parameter(NOMINAL(name), "wy_v"));
+			stmts.add(new Declaration.Variable(visitType(var.getType()), vn, value));
+		} else {
+			params.add(new Declaration.Parameter(NOMINAL(name), vn));
+		}
+		stmts.add(RETURN(conjunction(invariant)));
+		declare((Declaration.Abstract) typedef);
+		declare(new Declaration.Method(BOOL(), name + "_inv", params, new Statement.Block(stmts), STATIC_INLINE));
+		return null;
 	}
 
 	@Override
@@ -126,7 +491,7 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 			String vn = v.getName().get();
 			params.add(new Declaration.Parameter(type,vn));
 		}
-		return new Declaration.Method(returnType, name, params, (Statement.Block) body);
+		return new Declaration.Method(returnType, name, params, (Statement.Block) body, modifiersOf(d));
 	}
 
 	@Override
@@ -135,6 +500,30 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		return null;
 	}
 
+	@Override
+	public Declaration visitFunction(Function d) {
+		List<Expression> precondition = visitPrecondition(d);
+		List<Expression> postcondition = visitPostcondition(d);
+		try {
+			Statement body = visitBlock(d.getBody(), new CallableScope(d));
+			return constructFunction(d, precondition, postcondition, body);
+		} finally {
+			ensures = null;
+		}
+	}
+
+	@Override
+	public Declaration visitMethod(Method d) {
+		List<Expression> precondition = visitPrecondition(d);
+		List<Expression> postcondition = visitPostcondition(d);
+		try {
+			Statement body = visitBlock(d.getBody(), new CallableScope(d));
+			return constructMethod(d, precondition, postcondition, body);
+		} finally {
+			ensures = null;
+		}
+	}
+
 	@Override
 	public Declaration constructFunction(Function d, List<Expression> precondition, List<Expression> postcondition, Statement body) {
 		String name = toMangledName(d);
@@ -142,12 +531,29 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		// Translate return
 		Type returnType = visitType(d.getType().getReturn());
 		// Translate parameters
-		for(Decl.Variable v : d.getParameters()) {
-			Type type = visitType(v.getType());
-			String vn = v.getName().get();
-			params.add(new Declaration.Parameter(type,vn));
+		Tuple<Decl.Variable> parameters = d.getParameters();
+		for (int i = 0; i != parameters.size(); ++i) {
+			Decl.Variable v = parameters.get(i);
+			params.add(new Declaration.Parameter(parameterType(d, i), v.getName().get()));
 		}
-		return new Declaration.Method(returnType, name, params, (Statement.Block) body);
+		body = withChecks(d, precondition, postcondition, (Statement.Block) body);
+		if (regionUsed) {
+			// Boxes allocated in the region are freed on return
+			ArrayList<Statement> stmts = new ArrayList<>();
+			stmts.add(INVOKE("WY_REGION", Arrays.asList(VAR(REGION))));
+			stmts.addAll(((Statement.Block) body).getTerms());
+			body = new Statement.Block(stmts);
+		}
+		Declaration.Method method = new Declaration.Method(returnType, name, params, (Statement.Block) body,
+				modifiersOf(d));
+		if (memoised.contains(d.getName().get()) || memoised.contains(d.getQualifiedName().toString())) {
+			if (isMemoisable(d)) {
+				profile.add("memoisation", d.getQualifiedName() + ": memoised");
+				return memoise(d, method);
+			}
+			profile.add("memoisation", d.getQualifiedName() + ": not memoised (arguments or result not values)");
+		}
+		return method;
 	}
 
 	@Override
@@ -157,23 +563,91 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		// Translate return
 		Type returnType = visitType(d.getType().getReturn());
 		// Translate parameters
-		for(Decl.Variable v : d.getParameters()) {
-			Type type = visitType(v.getType());
-			String vn = v.getName().get();
-			params.add(new Declaration.Parameter(type,vn));
+		Tuple<Decl.Variable> parameters = d.getParameters();
+		for (int i = 0; i != parameters.size(); ++i) {
+			Decl.Variable v = parameters.get(i);
+			params.add(new Declaration.Parameter(parameterType(d, i), v.getName().get()));
+		}
+		body = withChecks(d, precondition, postcondition, (Statement.Block) body);
+		return new Declaration.Method(returnType, name, params, (Statement.Block) body, modifiersOf(d));
+	}
+
+	@Override
+	public Expression visitLambda(Lambda decl) {
+		Expression body;
+		lambdaDepth++;
+		try {
+			body = visitExpression(decl.getBody());
+		} finally {
+			lambdaDepth--;
 		}
-		return new Declaration.Method(returnType, name, params, (Statement.Block) body);
+		return constructLambda(decl, body);
 	}
 
 	@Override
 	public Expression constructLambda(Lambda decl, Expression body) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		String name = nameOf(decl);
+		WyilFile.Type.Callable type = decl.getType();
+		List<Decl.Variable> captured = capturedBy(decl);
+		ArrayList<Declaration.Parameter> params = new ArrayList<>();
+		params.add(new Declaration.Parameter(POINTER(VOID()), ENV));
+		for (Decl.Variable v : decl.getParameters()) {
+			params.add(new Declaration.Parameter(canonical(v.getType()), v.getName().get()));
+		}
+		ArrayList<Statement> stmts = new ArrayList<>();
+		Expression env = VAR("NULL");
+		if (!captured.isEmpty()) {
+			// The environment holds exactly the captured variables
+			Type envType = NOMINAL(name + "_env");
+			ArrayList<Pair<Type, String>> fields = new ArrayList<>();
+			ArrayList<Pair<String, Expression>> values = new ArrayList<>();
+			stmts.add(new Declaration.Variable(POINTER(envType), "wy_e", VAR(ENV)));
+			for (Decl.Variable v : captured) {
+				String vn = v.getName().get();
+				Type t = visitType(v.getType());
+				Expression value = VAR(vn);
+				Expression field = FIELD_DEREFERENCE(VAR("wy_e"), vn);
+				if (isByReference(v)) {
+					// Capture the value, but access it by reference as before
+					value = DEREFERENCE(value);
+					stmts.add(new Declaration.Variable(POINTER(CONST(t)), vn, ADDRESS_OF(field)));
+				} else {
+					t = variableType(v);
+					stmts.add(new Declaration.Variable(t, vn, field));
+				}
+				String ops = opsOf(v.getType());
+				if (ops != null) {
+					value = INVOKE(ops + "_copy", Arrays.asList(value));
+				}
+				fields.add(new Pair<>(t, vn));
+				values.add(new Pair<>(vn, value));
+			}
+			declare((Declaration.Abstract) TYPEDEF(name + "_env", STRUCT(fields)));
+			Expression size = INVOKE("sizeof", Arrays.asList(VAR(name + "_env")));
+			Expression data = ARRAY_LITERAL(envType, Arrays.asList(CAST(envType, INITIALISER(values))));
+			if (hasRegion()) {
+				regionUsed = true;
+				env = INVOKE("wy_env_new_in", Arrays.asList(ADDRESS_OF(VAR(REGION)), size, data));
+			} else {
+				env = INVOKE("wy_env_new", Arrays.asList(size, data));
+			}
+		}
+		WyilFile.Type ret = type.getReturn();
+		if (ret instanceof WyilFile.Type.Void) {
+			stmts.add(body);
+		} else {
+			stmts.add(RETURN(coerce(ret, decl.getBody(), body)));
+		}
+		declare(new Declaration.Method(canonical(ret), name, params, new Statement.Block(stmts), STATIC));
+		return closure(type, VAR(name), env);
 	}
 
 	@Override
 	public Statement constructAssert(Assert stmt, Expression condition) {
-		return INVOKE("assert", Arrays.asList(condition));
+		if (checks.compareTo(CheckLevel.STANDARD) < 0) {
+			return null;
+		}
+		return check("assertion", condition, verified);
 	}
 
 	@Override
@@ -185,8 +659,20 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		ArrayList<Statement> steps = new ArrayList<>();
 		for(int i=0;i!=lvals.size();++i) {
 			Expression lval = lvals.get(i);
-			Expression rval = rvals.get(i);
-			steps.add(ASSIGN(lval,rval));
+			WyilFile.Type target = typeOf(stmt.getLeftHandSide().get(i));
+			Expression rval = coerce(target, stmt.getRightHandSide().get(i), rvals.get(i));
+			WyilFile.Type.Array type = asArray(target);
+			if(type != null) {
+				// Release the array being overwritten
+				String name = ((Type.Array) visitType(type)).getName();
+				steps.add(INVOKE(name + "_assign", Arrays.asList(ADDRESS_OF(lval), rval)));
+			} else if(lval instanceof Expression.PackedElement) {
+				Expression.PackedElement e = (Expression.PackedElement) lval;
+				steps.add(INVOKE(e.getType().getName() + "_set",
+						Arrays.asList(ADDRESS_OF(e.getSource()), e.getIndex(), rval)));
+			} else {
+				steps.add(ASSIGN(lval,rval));
+			}
 		}
 		if(steps.size() == 1) {
 			return steps.get(0);
@@ -197,7 +683,11 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Statement constructAssume(Assume stmt, Expression condition) {
-		return INVOKE("assert", Arrays.asList(condition));
+		if (checks.compareTo(CheckLevel.STANDARD) < 0) {
+			return null;
+		}
+		// Assumptions are never proven
+		return check("assumption", condition, false);
 	}
 
 	@Override
@@ -223,13 +713,13 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Statement constructDoWhile(DoWhile stmt, Statement body, Expression condition, List<Expression> invariant) {
-		return DOWHILE(condition, body);
+		return DOWHILE(withInvariant(invariant, condition), body);
 	}
 
 	@Override
 	public Statement constructFail(Fail stmt) {
-		// Force an assertion failure.
-		return INVOKE("assert", Arrays.asList(BOOL_CONST(false)));
+		mayFail = true;
+		return INVOKE("wy_fail", Collections.emptyList());
 	}
 
 	@Override
@@ -237,11 +727,14 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 			Statement body) {
 		String name = stmt.getVariable().getName().get();
 		Expression var = VAR(name);
-		Statement initialiser = new Declaration.Variable(INT(), name, range.first());
+		WyilFile.Expr.ArrayRange r = (WyilFile.Expr.ArrayRange) stmt.getVariable().getInitialiser();
+		Expression start = widen(r.getFirstOperand(), range.first());
+		Expression end = widen(r.getSecondOperand(), range.second());
+		Statement initialiser = new Declaration.Variable(WY_INT, name, start);
 		// FIXME: there may be an inconsistency here, since we probably should be
 		// evaluating the range before the loop.
-		Expression condition = LT(var, range.second());
-		Statement increment = ASSIGN(var, ADD(var, INT_CONST(1)));
+		Expression condition = withInvariant(invariant, INVOKE("wy_int_lt", Arrays.asList(var, end)));
+		Statement increment = ASSIGN(var, INVOKE("wy_int_add", Arrays.asList(var, INT_CONST_WY(1))));
 		return FOR(initialiser, condition, increment, body);
 	}
 
@@ -259,6 +752,17 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		}
 		//
 		String name = vars.get(0).getName().get();
+		if(initialiser != null && type instanceof Type.Array && isStackAllocated(stmt) && !isShared(stmt, initialiser)) {
+			// NOTE: the literal's items have already been coerced
+			List<Expression> args = ((Expression.Invoke) initialiser).getArguments();
+			String array = ((Type.Array) type).getName();
+			return INVOKE("WY_ARRAY_STACK", Arrays.asList(VAR(array), VAR(name), args.get(0), args.get(1)));
+		} else if(initialiser != null) {
+			initialiser = coerce(vars.get(0).getType(), stmt.getInitialiser(), initialiser);
+		} else if(type instanceof Type.Array) {
+			// Ensure nothing is released on first assignment
+			initialiser = INITIALISER(Collections.emptyList());
+		}
 		return new CLangFile.Declaration.Variable(type, name, initialiser);
 	}
 
@@ -270,8 +774,7 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Statement constructIndirectInvokeStmt(IndirectInvoke expr, Expression source, List<Expression> arguments) {
-		// TODO Auto-generated method stub
-		return null;
+		return constructIndirectInvoke(expr, source, arguments);
 	}
 
 	@Override
@@ -282,7 +785,11 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Statement constructReturn(Return stmt, Expression ret) {
-		return RETURN(ret);
+		if(ret != null) {
+			WyilFile.Type target = ((Decl.Callable) enclosing).getType().getReturn();
+			ret = coerce(target, stmt.getReturn(), ret);
+		}
+		return withChecks(ret);
 	}
 
 	@Override
@@ -298,13 +805,19 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Statement constructWhile(While stmt, Expression condition, List<Expression> invariant, Statement body) {
-		return WHILE(condition, body);
+		return WHILE(withInvariant(invariant, condition), body);
 	}
 
 	@Override
 	public Expression constructArrayAccessLVal(ArrayAccess expr, Expression source, Expression index) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		// Writing to an array requires that its buffer is not shared
+		Type.Array type = (Type.Array) visitType(asArray(expr.getFirstOperand().getType()));
+		if (type.getElement() instanceof Type.Bool) {
+			// Packed elements are written by constructAssign()
+			return PACKED_ELEMENT(type, source, toIndex(expr.getSecondOperand(), index));
+		}
+		return ARRAY_ACCESS(INVOKE(type.getName() + "_write", Arrays.asList(ADDRESS_OF(source))),
+				toIndex(expr.getSecondOperand(), index));
 	}
 
 	@Override
@@ -322,6 +835,16 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 	@Override
 	public Expression constructRecordAccessLVal(RecordAccess expr, Expression source) {
 		String field = expr.getField().get();
+		WyilFile.Type type = typeOf(expr.getOperand());
+		if (isOpen(type)) {
+			// Writing to an open record requires that it is not shared
+			return openField(asRecord(type), field, INVOKE("wy_open_write", Arrays.asList(ADDRESS_OF(source))));
+		}
+		Decl.Type box = writableBoxOf(type);
+		if (box != null) {
+			// Writing to a box requires that it is not shared
+			source = FIELD_DEREFERENCE(allocate(box, "_write", ADDRESS_OF(source)), "value");
+		}
 		return FIELD_ACCESS(source,field);
 	}
 
@@ -351,31 +874,65 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructArrayAccess(ArrayAccess expr, Expression source, Expression index) {
-		return ARRAY_ACCESS(source,index);
+		Type.Array type = (Type.Array) visitType(asArray(expr.getFirstOperand().getType()));
+		if (type.getElement() instanceof Type.Bool) {
+			return INVOKE(type.getName() + "_get", Arrays.asList(source, toIndex(expr.getSecondOperand(), index)));
+		}
+		return ARRAY_ACCESS(FIELD_ACCESS(source, "data"), toIndex(expr.getSecondOperand(), index));
 	}
 
 	@Override
 	public Expression constructArrayLength(ArrayLength expr, Expression source) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		return INVOKE("wy_int_from_i64", Arrays.asList(FIELD_ACCESS(source, "length")));
 	}
 
 	@Override
 	public Expression constructArrayGenerator(ArrayGenerator expr, Expression value, Expression length) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		WyilFile.Type.Array type = asArray(expr.getType());
+		String name = ((Type.Array) visitType(type)).getName();
+		Expression n = toIndex(expr.getSecondOperand(), length);
+		value = coerce(type.getElement(), expr.getFirstOperand(), value);
+		if (isZeroBits(value)) {
+			// Zeroed memory already holds every element
+			return INVOKE(name + "_zeros", Arrays.asList(n));
+		}
+		// NOTE: when the element is itself an array, every element shares it.
+		return INVOKE(name + "_fill", Arrays.asList(n, value));
 	}
 
 	@Override
 	public Expression constructArrayInitialiser(ArrayInitialiser expr, List<Expression> values) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		Type.Array type = (Type.Array) visitType(asArray(expr.getType()));
+		String name = type.getName();
+		if (values.isEmpty()) {
+			// NOTE: empty compound literals are not permitted in C
+			return INVOKE(name + "_alloc", Arrays.asList(INT_CONST(0)));
+		} else {
+			Tuple<WyilFile.Expr> operands = expr.getOperands();
+			WyilFile.Type element = asArray(expr.getType()).getElement();
+			ArrayList<Expression> items = new ArrayList<>();
+			for (int i = 0; i != values.size(); ++i) {
+				items.add(coerce(element, operands.get(i), values.get(i)));
+			}
+			List<Expression> constants = constantsOf(asArray(expr.getType()), items);
+			if (constants != null) {
+				// NOTE: the data is shared by every use, and is copied when first written.
+				String data = constantArray(type, constants);
+				return CONST_ARRAY(type, INT_CONST(values.size()), FIELD_ACCESS(VAR(data), "data"));
+			}
+			Expression literal = ARRAY_LITERAL(type.getElement(), items);
+			return INVOKE(name + "_from", Arrays.asList(INT_CONST(values.size()), literal));
+		}
 	}
 
 	@Override
 	public Expression constructArrayUpdate(ArrayUpdate expr, Expression source, Expression index, Expression value) {
-		// TODO Auto-generated method stub
-		return null;
+		WyilFile.Type.Array type = asArray(expr.getType());
+		String name = ((Type.Array) visitType(type)).getName();
+		// NOTE: the update happens in place when the source is not shared.
+		source = copy(expr.getFirstOperand(), source);
+		value = coerce(type.getElement(), expr.getThirdOperand(), value);
+		return INVOKE(name + "_update", Arrays.asList(source, toIndex(expr.getSecondOperand(), index), value));
 	}
 
 	@Override
@@ -411,12 +968,12 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructBitwiseShiftLeft(BitwiseShiftLeft expr, Expression lhs, Expression rhs) {
-		return SHL(lhs,rhs);
+		return SHL(lhs,toIndex(expr.getSecondOperand(), rhs));
 	}
 
 	@Override
 	public Expression constructBitwiseShiftRight(BitwiseShiftRight expr, Expression lhs, Expression rhs) {
-		return SHR(lhs,rhs);
+		return SHR(lhs,toIndex(expr.getSecondOperand(), rhs));
 	}
 
 	@Override
@@ -436,9 +993,15 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 			Value.Byte b = (Value.Byte) v;
 			return HEX_CONST(b.get() & 0xFF);
 		} else if(v instanceof Value.Int) {
-			Value.Int b = (Value.Int) v;
-			// TODO: clearly a hack for now.
-			return INT_CONST(b.get().intValueExact());
+			BigInteger i = ((Value.Int) v).get();
+			if (i.compareTo(MIN_SMALL_INT) >= 0 && i.compareTo(MAX_SMALL_INT) <= 0) {
+				return INT_CONST_WY(i.longValueExact());
+			} else {
+				// Too large to be represented directly
+				return INVOKE("wy_int_parse", Arrays.asList(STRING_CONST(i.toString())));
+			}
+		} else if(v instanceof Value.Null) {
+			return VAR("WY_NULL");
 		} else {
 			// TODO Auto-generated method stub
 			throw new IllegalArgumentException();
@@ -458,57 +1021,61 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructEqual(Equal expr, Expression lhs, Expression rhs) {
-		return EQ(lhs, rhs);
+		return equals(expr, lhs, rhs);
 	}
 
 	@Override
 	public Expression constructIntegerLessThan(IntegerLessThan expr, Expression lhs, Expression rhs) {
-		return LT(lhs, rhs);
+		return compare(expr, lhs, rhs, "lt");
 	}
 
 	@Override
 	public Expression constructIntegerLessThanOrEqual(IntegerLessThanOrEqual expr, Expression lhs, Expression rhs) {
-		return LTEQ(lhs, rhs);
+		return compare(expr, lhs, rhs, "le");
 	}
 
 	@Override
 	public Expression constructIntegerGreaterThan(IntegerGreaterThan expr, Expression lhs, Expression rhs) {
-		return GT(lhs, rhs);
+		return compare(expr, lhs, rhs, "gt");
 	}
 
 	@Override
 	public Expression constructIntegerGreaterThanOrEqual(IntegerGreaterThanOrEqual expr, Expression lhs, Expression rhs) {
-		return GTEQ(lhs, rhs);
+		return compare(expr, lhs, rhs, "ge");
 	}
 
 	@Override
 	public Expression constructIntegerNegation(IntegerNegation expr, Expression operand) {
-		return NEG(operand);
+		Expression n = toNative(expr.getOperand(), operand, false);
+		if (n != null) {
+			return INVOKE("wy_int_from_i64", Arrays.asList(NEG(CAST(INT(64), n))));
+		}
+		return INVOKE("wy_int_neg", Arrays.asList(widen(expr.getOperand(), operand)));
 	}
 
 	@Override
 	public Expression constructIntegerAddition(IntegerAddition expr, Expression lhs, Expression rhs) {
-		return ADD(lhs,rhs);
+		return arithmetic(expr, lhs, rhs, "add");
 	}
 
 	@Override
 	public Expression constructIntegerSubtraction(IntegerSubtraction expr, Expression lhs, Expression rhs) {
-		return SUB(lhs,rhs);
+		return arithmetic(expr, lhs, rhs, "sub");
 	}
 
 	@Override
 	public Expression constructIntegerMultiplication(IntegerMultiplication expr, Expression lhs, Expression rhs) {
-		return MUL(lhs,rhs);
+		return arithmetic(expr, lhs, rhs, "mul");
 	}
 
 	@Override
 	public Expression constructIntegerDivision(IntegerDivision expr, Expression lhs, Expression rhs) {
-		return DIV(lhs,rhs);
+		return arithmetic(expr, lhs, rhs, "div");
 	}
 
 	@Override
 	public Expression constructIntegerRemainder(IntegerRemainder expr, Expression lhs, Expression rhs) {
-		return REM(lhs,rhs);
+		return arithmetic(expr, lhs, rhs, "rem");
 	}
 
 	@Override
@@ -519,8 +1086,8 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructIs(Is expr, Expression operand) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		WyilFile.Expr source = expr.getOperand();
+		return test(source.getType(), rangeOf(source), expr.getTestType(), operand);
 	}
 
 	@Override
@@ -556,34 +1123,92 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		return e;
 	}
 
+	@Override
+	public Expression visitExistentialQuantifier(ExistentialQuantifier expr) {
+		List<Pair<Expression, Expression>> ranges = visitRanges(expr);
+		return constructExistentialQuantifier(expr, ranges, visitExpression(bodyOf(expr)));
+	}
+
+	@Override
+	public Expression visitUniversalQuantifier(UniversalQuantifier expr) {
+		List<Pair<Expression, Expression>> ranges = visitRanges(expr);
+		return constructUniversalQuantifier(expr, ranges, visitExpression(bodyOf(expr)));
+	}
+
 	@Override
 	public Expression constructExistentialQuantifier(ExistentialQuantifier expr, List<Pair<Expression, Expression>> ranges, Expression body) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		return quantifier(expr, ranges, body, false);
 	}
 
 	@Override
 	public Expression constructUniversalQuantifier(UniversalQuantifier expr, List<Pair<Expression, Expression>> ranges, Expression body) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		return quantifier(expr, ranges, body, true);
 	}
 
 	@Override
 	public Expression constructInvoke(Invoke expr, List<Expression> arguments) {
-		String name = expr.getBinding().getLink().getName().toString();
-		return INVOKE(name, arguments);
+		Decl.Callable callee = expr.getBinding().getLink().getTarget();
+		// NOTE: a memoised function is called through its table, even from itself
+		String name = toMangledName(callee);
+		Tuple<WyilFile.Expr> operands = expr.getOperands();
+		ArrayList<Expression> args = new ArrayList<>();
+		for (int i = 0; i != arguments.size(); ++i) {
+			WyilFile.Type target = callee.getParameters().get(i).getType();
+			Expression arg;
+			if (isByReference(callee, i)) {
+				// The callee only borrows the value, hence it need not be copied
+				WyilFile.Expr operand = operands.get(i);
+				arg = convert(operand.getType(), rangeOf(operand), target, rangeOf(callee, i), arguments.get(i));
+				if (arg instanceof Expression.Dereference) {
+					// Already passed by reference
+					arg = ((Expression.Dereference) arg).getOperand();
+				} else if (arg instanceof Expression.Var) {
+					arg = ADDRESS_OF(arg);
+				} else {
+					// Use a temporary, since C cannot take the address of an rvalue
+					arg = ARRAY_LITERAL(visitType(target), Arrays.asList(arg));
+				}
+			} else {
+				arg = coerce(target, rangeOf(callee, i), operands.get(i), arguments.get(i));
+			}
+			args.add(arg);
+		}
+		if (callee != enclosing && !neverFail.contains(callee)) {
+			// NOTE: a recursive call fails only if some other part of the body does
+			mayFail = true;
+		}
+		return INVOKE(name, args);
 	}
 
 	@Override
 	public Expression constructIndirectInvoke(IndirectInvoke expr, Expression source, List<Expression> arguments) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		WyilFile.Type.Callable type = (WyilFile.Type.Callable) resolve(expr.getSource().getType());
+		List<WyilFile.Type> params = parametersOf(type);
+		Tuple<WyilFile.Expr> operands = expr.getArguments();
+		ArrayList<Expression> args = new ArrayList<>();
+		for (int i = 0; i != arguments.size(); ++i) {
+			args.add(coerce(params.get(i), operands.get(i), arguments.get(i)));
+		}
+		// The target is not known, hence neither is whether it fails
+		mayFail = true;
+		String name = ((Type.Nominal) canonical(type)).getName();
+		List<Decl.Callable> targets = targetsOf(expr.getSource(), name);
+		if (targets == null) {
+			args.add(0, source);
+			return INVOKE(name + "_call", args);
+		} else if (targets.size() == 1 && callTargets.isExact(expr.getSource())) {
+			// Call the only possible target directly
+			args.add(0, FIELD_ACCESS(source, "env"));
+			return INVOKE(functionOf(targets.get(0)), args);
+		}
+		args.add(0, source);
+		return INVOKE(dispatcher(type, targets), args);
 	}
 
 	@Override
 	public Expression constructLambdaAccess(LambdaAccess expr) {
-		// TODO Auto-generated method stub
-		throw new IllegalArgumentException();
+		Decl.Callable callee = expr.getBinding().getLink().getTarget();
+		return closure(callee.getType(), VAR(functionOf(callee)), VAR("NULL"));
 	}
 
 	@Override
@@ -593,7 +1218,12 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructNotEqual(NotEqual expr, Expression lhs, Expression rhs) {
-		return NEQ(lhs, rhs);
+		Expression e = equals(expr, lhs, rhs);
+		if (e instanceof Expression.Equals) {
+			Expression.Equals eq = (Expression.Equals) e;
+			return NEQ(eq.getLeftHandSide(), eq.getRightHandSide());
+		}
+		return NOT(e);
 	}
 
 	@Override
@@ -605,12 +1235,34 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 	@Override
 	public Expression constructRecordAccess(RecordAccess expr, Expression source) {
 		String field = expr.getField().get();
+		if (isOpen(expr.getOperand().getType())) {
+			return openField(asRecord(expr.getOperand().getType()), field, source);
+		} else if (boxOf(expr.getOperand().getType()) != null) {
+			source = FIELD_DEREFERENCE(source, "value");
+		}
 		return FIELD_ACCESS(source,field);
 	}
 
 	@Override
 	public Expression constructRecordInitialiser(RecordInitialiser expr, List<Pair<String,Expression>> operands) {
-		return INITIALISER(operands);
+		Tuple<WyilFile.Expr> values = expr.getOperands();
+		WyilFile.Type.Record type = asRecord(expr.getType());
+		ArrayList<Pair<String, Expression>> fields = new ArrayList<>();
+		for (int i = 0; i != operands.size(); ++i) {
+			Pair<String, Expression> ith = operands.get(i);
+			WyilFile.Type target = type == null ? null : fieldType(type, ith.first());
+			fields.add(new Pair<>(ith.first(), coerce(target, values.get(i), ith.second())));
+		}
+		if (type == null) {
+			return INITIALISER(fields);
+		}
+		// Use a compound literal so the record can appear in any expression
+		Expression literal = CAST(canonical(type), INITIALISER(fields));
+		Decl.Type box = boxOf(expr.getType());
+		if (box != null) {
+			return allocate(box, "_new", literal);
+		}
+		return literal;
 	}
 
 	@Override
@@ -627,14 +1279,27 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Expression constructVariableAccess(VariableAccess expr) {
-		String name = expr.getVariableDeclaration().getName().get();
-		return VAR(name);
+		Decl.Variable var = expr.getVariableDeclaration();
+		Expression e = VAR(var.getName().get());
+		if (isByReference(var)) {
+			e = DEREFERENCE(e);
+		}
+		if (rangeOf(expr) == null) {
+			// Extract the value when its type has been refined (e.g. int|null to int)
+			e = convert(var.getType(), expr.getType(), e);
+		}
+		return e;
 	}
 
 
 	@Override
 	public Type constructArrayType(WyilFile.Type.Array type, Type element) {
-		return POINTER(element);
+		// Use the underlying element type, so that arrays of equivalent types share a
+		// representation and nested arrays are deep copied and compared.
+		Type.Array arr = ARRAY(canonical(type.getElement()));
+		String ops = opsOf(type.getElement());
+		declare(ops == null ? new Declaration.ArrayTypeDef(arr) : new Declaration.ArrayTypeDef(arr, ops));
+		return arr;
 	}
 
 	@Override
@@ -647,9 +1312,28 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 		return UINT(8);
 	}
 
+	@Override
+	public Type constructCallableType(WyilFile.Type.Callable type) {
+		// Name the closure by its signature, so equivalent types are compatible in C
+		Type ret = canonical(type.getReturn());
+		ArrayList<Type> params = new ArrayList<>();
+		String name = "wy_fn_" + Type.mangle(ret);
+		for (WyilFile.Type param : parametersOf(type)) {
+			params.add(canonical(param));
+			name += "_" + Type.mangle(params.get(params.size() - 1));
+		}
+		declare(new Declaration.ClosureTypeDef(name, ret, params));
+		return NOMINAL(name);
+	}
+
 	@Override
 	public Type constructIntType(WyilFile.Type.Int type) {
-		return INT();
+		return WY_INT;
+	}
+
+	@Override
+	public Type constructNullType(WyilFile.Type.Null type) {
+		return NOMINAL("wy_null");
 	}
 
 	@Override
@@ -660,7 +1344,22 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Type constructRecordType(WyilFile.Type.Record type, List<Pair<Type,String>> types) {
-		return STRUCT(types);
+		if (type.isOpen()) {
+			return NOMINAL("wy_open");
+		}
+		// Name the structure, so that equivalent record types are compatible in C
+		ArrayList<Pair<Type, String>> fields = new ArrayList<>();
+		for (WyilFile.Type.Field f : layoutOf(type)) {
+			fields.add(new Pair<>(canonical(f.getType()), f.getName().get()));
+		}
+		ArrayList<String> operations = new ArrayList<>();
+		for (WyilFile.Type.Field f : layoutOf(type)) {
+			operations.add(opsOf(f.getType()));
+		}
+		Type.Struct struct = (Type.Struct) STRUCT(fields);
+		String name = "wy_" + Type.mangle(struct);
+		declare(new Declaration.RecordTypeDef(name, struct, operations));
+		return NOMINAL(name);
 	}
 
 	@Override
@@ -670,7 +1369,7 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 
 	@Override
 	public Type constructUnionType(WyilFile.Type.Union type, List<Type> element) {
-		throw new UnsupportedOperationException();
+		return layoutOf(membersOf(type)).type;
 	}
 
 	@Override
@@ -690,6 +1389,3007 @@ public class CLangCompiler extends AbstractTranslator<Declaration,Statement,Expr
 	// Helpers
 	// =======================================================================================================
 
+	/**
+	 * Arrays in Whiley have value semantics. Therefore, when an existing array
+	 * value is stored into a new location (e.g. assigned to a variable, passed as
+	 * an argument or returned), the new location must receive a copy. This is not
+	 * necessary for fresh values (e.g. the result of an invocation) or when the
+	 * original variable is not used again (i.e. it is moved rather than copied).
+	 * Since arrays are copy-on-write, a copy simply shares the underlying buffer
+	 * and only increments its reference count. Values which may hold arrays (e.g.
+	 * records and unions) are copied likewise, using their generated operations.
+	 *
+	 * @param expr The expression whose value is being stored.
+	 * @param e    The translated expression.
+	 * @return
+	 */
+	private Expression copy(WyilFile.Expr expr, Expression e) {
+		String ops = opsOf(expr.getType());
+		if (ops == null || rangeOf(expr.getType()) != null) {
+			// Integers are never shared
+			return e;
+		}
+		switch (expr.getOpcode()) {
+		case WyilFile.EXPR_variablecopy:
+		case WyilFile.EXPR_staticvariable:
+		case WyilFile.EXPR_arrayaccess:
+		case WyilFile.EXPR_recordaccess:
+		case WyilFile.EXPR_dereference:
+		case WyilFile.EXPR_fielddereference:
+			return INVOKE(ops + "_copy", Arrays.asList(e));
+		default:
+			return e;
+		}
+	}
+
+	/**
+	 * Check whether a given item should be considered when traversing the body of
+	 * a declaration. This excludes other declarations (e.g. the target of an
+	 * invocation), which are reachable but not part of the body.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static boolean isPartOfBody(SyntacticItem item) {
+		return !(item instanceof Decl) || item instanceof Decl.Variable || item instanceof Decl.Lambda;
+	}
+
+	/**
+	 * Determine whether the buffer of an array variable can be allocated on the
+	 * stack. This requires that it is initialised with a (small) array literal,
+	 * and that it does not escape.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private boolean isStackAllocated(Initialiser stmt) {
+		WyilFile.Expr initialiser = stmt.getInitialiser();
+		if (stmt.getVariables().size() != 1 || !(initialiser instanceof ArrayInitialiser)
+				|| !(enclosing instanceof Decl.FunctionOrMethod)) {
+			return false;
+		}
+		int n = ((ArrayInitialiser) initialiser).getOperands().size();
+		Type.Array type = (Type.Array) visitType(asArray(initialiser.getType()));
+		// NOTE: packed boolean arrays cannot be initialised by copying items
+		return n > 0 && n <= MAX_STACK_ITEMS && !(type.getElement() instanceof Type.Bool)
+				&& !escapes(((Decl.FunctionOrMethod) enclosing).getBody(), stmt.getVariables().get(0));
+	}
+
+	/**
+	 * Determine whether an array variable can simply share the constant data it
+	 * is initialised with, rather than copying it onto the stack. This requires
+	 * that it is never modified.
+	 *
+	 * @param stmt
+	 * @param initialiser The translated initialiser.
+	 * @return
+	 */
+	private boolean isShared(Initialiser stmt, Expression initialiser) {
+		return initialiser instanceof Expression.ConstArray
+				&& !isModified(((Decl.FunctionOrMethod) enclosing).getBody(), stmt.getVariables().get(0));
+	}
+
+	/**
+	 * Check whether an array variable escapes anywhere within a given item (e.g.
+	 * the body of a function). The variable does not escape when only its
+	 * elements and length are read, its elements are written, or it is compared.
+	 * In any other use (e.g. being reassigned, returned, passed as an argument or
+	 * stored elsewhere) its buffer may be shared or released, and it escapes.
+	 *
+	 * @param item
+	 * @param var
+	 * @return
+	 */
+	private static boolean escapes(SyntacticItem item, Decl.Variable var) {
+		if (isVariable(item, var)) {
+			return true;
+		} else if (item instanceof ArrayAccess && isVariable(((ArrayAccess) item).getFirstOperand(), var)) {
+			return escapes(((ArrayAccess) item).getSecondOperand(), var);
+		} else if (item instanceof ArrayLength && isVariable(((ArrayLength) item).getOperand(), var)) {
+			return false;
+		} else if (item instanceof Equal || item instanceof NotEqual) {
+			WyilFile.Expr.BinaryOperator e = (WyilFile.Expr.BinaryOperator) item;
+			return (!isVariable(e.getFirstOperand(), var) && escapes(e.getFirstOperand(), var))
+					|| (!isVariable(e.getSecondOperand(), var) && escapes(e.getSecondOperand(), var));
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i)) && escapes(item.get(i), var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isVariable(SyntacticItem item, Decl.Variable var) {
+		return item instanceof VariableAccess && ((VariableAccess) item).getVariableDeclaration() == var;
+	}
+
+	/**
+	 * Construct an integer constant which is known to fit directly into a
+	 * <code>wy_int</code>.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static Expression INT_CONST_WY(long value) {
+		return INVOKE("WY_INT", Arrays.asList(INT_CONST(value)));
+	}
+
+	/**
+	 * Add a supporting declaration which is required for the declaration currently
+	 * being translated, unless an identical declaration already exists. A
+	 * prototype does not prevent the function it declares from being defined
+	 * later.
+	 *
+	 * @param decl
+	 */
+	private void declare(Declaration.Abstract decl) {
+		for (Declaration d : auxiliaries) {
+			if (isDeclaredBy(decl, d)) {
+				return;
+			}
+		}
+		for (Declaration d : cFile.getDeclarations()) {
+			if (isDeclaredBy(decl, d)) {
+				return;
+			}
+		}
+		auxiliaries.add(decl);
+	}
+
+	private static boolean isDeclaredBy(Declaration.Abstract decl, Declaration d) {
+		if (!(d instanceof Declaration.Abstract) || !((Declaration.Abstract) d).getName().equals(decl.getName())) {
+			return false;
+		}
+		return isPrototype(decl) || !isPrototype(d);
+	}
+
+	private static boolean isPrototype(Declaration d) {
+		return d instanceof Declaration.Method && ((Declaration.Method) d).getBody() == null;
+	}
+
+	/**
+	 * Determine the type of the location described by a given lval. For variables
+	 * this is their declared type (which determines their representation), rather
+	 * than any refinement of it.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	private static WyilFile.Type typeOf(WyilFile.Expr lval) {
+		if (lval instanceof VariableAccess) {
+			return ((VariableAccess) lval).getVariableDeclaration().getType();
+		}
+		return lval.getType();
+	}
+
+	/**
+	 * Determine whether a given type is an array and, if so, extract it. This
+	 * looks through nominal types as necessary, except for recursive types (which
+	 * are boxed).
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static WyilFile.Type.Array asArray(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Array) {
+			return (WyilFile.Type.Array) type;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			WyilFile.Type.Nominal t = (WyilFile.Type.Nominal) type;
+			return isRecursive(t.getLink().getTarget()) ? null : asArray(t.getLink().getTarget().getType());
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine whether a given type is a record and, if so, extract it. This
+	 * looks through nominal types as necessary.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static WyilFile.Type.Record asRecord(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Record) {
+			return (WyilFile.Type.Record) type;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			WyilFile.Type.Nominal t = (WyilFile.Type.Nominal) type;
+			return asRecord(t.getLink().getTarget().getType());
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the declared type of a given field in a record type, or
+	 * <code>null</code> if there is no such field.
+	 *
+	 * @param type
+	 * @param field
+	 * @return
+	 */
+	private static WyilFile.Type fieldType(WyilFile.Type.Record type, String field) {
+		for (WyilFile.Type.Field f : type.getFields()) {
+			if (f.getName().get().equals(field)) {
+				return f.getType();
+			}
+		}
+		return null;
+	}
+
+	// =======================================================================================================
+	// Closures
+	// =======================================================================================================
+
+	/**
+	 * Construct a closure of a given type from its function and environment.
+	 *
+	 * @param type The type of the closure.
+	 * @param fn   The function, which accepts the environment as its first
+	 *             parameter.
+	 * @param env  The environment, or <code>NULL</code> if there is none.
+	 * @return
+	 */
+	private Expression closure(WyilFile.Type.Callable type, Expression fn, Expression env) {
+		ArrayList<Pair<String, Expression>> fields = new ArrayList<>();
+		fields.add(new Pair<>("fn", fn));
+		fields.add(new Pair<>("env", env));
+		return CAST(canonical(type), INITIALISER(fields));
+	}
+
+	/**
+	 * Determine the modifiers of the C function generated for a given
+	 * declaration. These determine its linkage and whether it is inlined, and
+	 * tell the C compiler whether calls to it have side effects (so they can be
+	 * eliminated, combined or hoisted out of loops) or return at all.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private Set<Declaration.Method.Modifier> modifiersOf(Decl.Callable decl) {
+		EnumSet<Declaration.Method.Modifier> modifiers = EnumSet.noneOf(Declaration.Method.Modifier.class);
+		switch (inliner.getDecision(decl)) {
+		case SUBSTITUTE:
+			modifiers.add(Declaration.Method.Modifier.ALWAYS_INLINE);
+			// fall through
+		case INLINE:
+			modifiers.add(Declaration.Method.Modifier.INLINE);
+			// fall through
+		case STATIC:
+			modifiers.add(Declaration.Method.Modifier.STATIC);
+			break;
+		default:
+			// Exported declarations must be visible outside the file
+		}
+		if (decl instanceof Decl.FunctionOrMethod && neverReturns(((Decl.FunctionOrMethod) decl).getBody())) {
+			modifiers.add(Declaration.Method.Modifier.NORETURN);
+			modifiers.add(Declaration.Method.Modifier.COLD);
+		} else if (isPure(decl)) {
+			modifiers.add(isConst(decl) ? Declaration.Method.Modifier.CONST : Declaration.Method.Modifier.PURE);
+		}
+		return modifiers;
+	}
+
+	/**
+	 * Translate a function whose results are cached in a table keyed on its
+	 * arguments. The function itself is renamed <code>NAME_compute</code>, and is
+	 * only called when the table holds no result for the given arguments. For
+	 * example:
+	 *
+	 * <pre>
+	 * wy_int fib(wy_int n) {
+	 *    fib_key wy_k;
+	 *    memset(&wy_k, 0, sizeof(fib_key));
+	 *    wy_k.n = n;
+	 *    wy_int wy_r;
+	 *    if(fib_memo_lookup(&wy_k, &wy_r)) { return wy_r; }
+	 *    wy_r = fib_compute(n);
+	 *    fib_memo_store(&wy_k, wy_r);
+	 *    return wy_r;
+	 * }
+	 * </pre>
+	 *
+	 * Since keys are compared bitwise, they are zeroed first. For the same
+	 * reason, any argument holding a big integer (i.e. a pointer, rather than a
+	 * value) bypasses the table altogether:
+	 *
+	 * <pre>
+	 *    if(!wy_int_is_small(n)) { return fib_compute(n); }
+	 * </pre>
+	 *
+	 * @param d
+	 * @param method The translated function.
+	 * @return
+	 */
+	private Declaration memoise(Function d, Declaration.Method method) {
+		String name = method.getName();
+		String compute = name + "_compute";
+		String memo = name + "_memo";
+		Type returnType = method.getReturnType();
+		List<Declaration.Parameter> params = method.getParameters();
+		// The table is written on every miss, hence calls have side effects
+		EnumSet<Declaration.Method.Modifier> modifiers = EnumSet.noneOf(Declaration.Method.Modifier.class);
+		modifiers.addAll(method.getModifiers());
+		modifiers.retainAll(EnumSet.of(Declaration.Method.Modifier.STATIC, Declaration.Method.Modifier.INLINE,
+				Declaration.Method.Modifier.ALWAYS_INLINE));
+		// Recursive calls from the body go through the table
+		declare(new Declaration.Method(returnType, name, params, null, modifiers));
+		declare(new Declaration.Method(returnType, compute, params, method.getBody(), STATIC));
+		// Construct the key and its table
+		ArrayList<Pair<Type, String>> fields = new ArrayList<>();
+		ArrayList<Statement> stmts = new ArrayList<>();
+		ArrayList<Expression> args = new ArrayList<>();
+		Type key = NOMINAL(name + "_key");
+		stmts.add(new Declaration.Variable(key, "wy_k", null));
+		stmts.add(INVOKE("memset", Arrays.asList(ADDRESS_OF(VAR("wy_k")), INT_CONST(0),
+				INVOKE("sizeof", Arrays.asList(VAR(name + "_key"))))));
+		ArrayList<Expression> small = new ArrayList<>();
+		Tuple<Decl.Variable> parameters = d.getParameters();
+		for (int i = 0; i != parameters.size(); ++i) {
+			String vn = parameters.get(i).getName().get();
+			Expression arg = isByReference(d, i) ? DEREFERENCE(VAR(vn)) : VAR(vn);
+			if (isByReference(d, i)) {
+				fields.add(new Pair<>(visitType(parameters.get(i).getType()), vn));
+			} else {
+				fields.add(new Pair<>(params.get(i).getType(), vn));
+			}
+			stmts.add(ASSIGN(FIELD_ACCESS(VAR("wy_k"), vn), arg));
+			smallIntegers(parameters.get(i).getType(), arg, small);
+			args.add(VAR(vn));
+		}
+		if (!small.isEmpty()) {
+			Statement bypass = new Statement.Block(RETURN(INVOKE(compute, args)));
+			stmts.add(0, IF(NOT(conjunction(small)), bypass, null));
+		}
+		declare((Declaration.Abstract) TYPEDEF(name + "_key", STRUCT(fields)));
+		declare(new Declaration.MemoDef(memo, key, returnType));
+		// Look up the result, computing it if necessary
+		stmts.add(new Declaration.Variable(returnType, "wy_r", null));
+		Expression found = INVOKE(memo + "_lookup", Arrays.asList(ADDRESS_OF(VAR("wy_k")), ADDRESS_OF(VAR("wy_r"))));
+		stmts.add(IF(found, new Statement.Block(RETURN(VAR("wy_r"))), null));
+		stmts.add(ASSIGN(VAR("wy_r"), INVOKE(compute, args)));
+		stmts.add(INVOKE(memo + "_store", Arrays.asList(ADDRESS_OF(VAR("wy_k")), VAR("wy_r"))));
+		stmts.add(RETURN(VAR("wy_r")));
+		return new Declaration.Method(returnType, name, params, new Statement.Block(stmts), modifiers);
+	}
+
+	/**
+	 * Determine whether the results of a given function can be cached. This
+	 * requires that it has arguments, and that both they and its result are
+	 * values which can be compared bitwise and outlive the call. Thus, neither can
+	 * refer to an array or to a box (which may be freed). Furthermore, it must be
+	 * possible to check whether the arguments hold any big integers.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean isMemoisable(Function decl) {
+		ArrayList<WyilFile.Type> types = new ArrayList<>();
+		types.add(decl.getType().getReturn());
+		for (Decl.Variable v : decl.getParameters()) {
+			types.add(v.getType());
+		}
+		if (types.size() == 1 || types.get(0) instanceof WyilFile.Type.Void) {
+			return false;
+		}
+		for (WyilFile.Type type : types) {
+			if (!isImmutable(type, new HashSet<>()) || containsBox(type, new HashSet<>())) {
+				return false;
+			}
+		}
+		for (Decl.Variable v : decl.getParameters()) {
+			if (!smallIntegers(v.getType(), VAR(v.getName().get()), new ArrayList<>())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine the conditions under which a value of a given type holds no big
+	 * integers, such that its representation identifies its value. That is, every
+	 * <code>wy_int</code> it holds must be small. This cannot be determined for a
+	 * union holding a <code>wy_int</code>, since whether it does depends on its
+	 * tag.
+	 *
+	 * @param type
+	 * @param e          The translated value.
+	 * @param conditions The list to which conditions are added.
+	 * @return <code>false</code> if the conditions cannot be determined.
+	 */
+	private boolean smallIntegers(WyilFile.Type type, Expression e, List<Expression> conditions) {
+		IntegerRange range = rangeOf(type);
+		if (range != null) {
+			if (toFixedWidth(range) == null) {
+				conditions.add(INVOKE("wy_int_is_small", Arrays.asList(e)));
+			}
+		} else if (isStruct(type)) {
+			for (WyilFile.Type.Field f : ((WyilFile.Type.Record) resolve(type)).getFields()) {
+				if (!smallIntegers(f.getType(), FIELD_ACCESS(e, f.getName().get()), conditions)) {
+					return false;
+				}
+			}
+		} else if (isUnion(type, TAGGED)) {
+			for (WyilFile.Type member : withoutNull(membersOf(type))) {
+				ArrayList<Expression> cs = new ArrayList<>();
+				if (!smallIntegers(member, e, cs) || !cs.isEmpty()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine whether calls to a given declaration can be treated as having no
+	 * side effects in C. This holds for functions and properties, provided that
+	 * their result cannot be modified in place (as arrays can be), since two calls
+	 * combined into one would then share it. Furthermore, the declaration must
+	 * have been translated and found never to fail at runtime, since the C
+	 * compiler may otherwise remove a call (and its check) whose result is
+	 * unused. Hence, declarations which are only declared so far (e.g. for a call
+	 * appearing before them) are never pure.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean isPure(Decl.Callable decl) {
+		WyilFile.Type ret = decl.getType().getReturn();
+		return (decl instanceof Decl.Function || decl instanceof Decl.Property)
+				&& !(ret instanceof WyilFile.Type.Void) && isImmutable(ret, new HashSet<>())
+				&& decl == enclosing && !mayFail;
+	}
+
+	/**
+	 * Determine whether a pure declaration also reads no memory other than its
+	 * arguments. This holds only when every parameter is a fixed-width integer or
+	 * a boolean, since any other value may refer to memory (e.g. the digits of a
+	 * big integer, or the contents of a box).
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean isConst(Decl.Callable decl) {
+		for (int i = 0; i != decl.getParameters().size(); ++i) {
+			Type type = parameterType(decl, i);
+			if (!(type instanceof Type.Bool) && !(type instanceof Type.Int && ((Type.Int) type).hasFixedWidth())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine whether values of a given type can never be modified in place.
+	 * Integers are immutable, whereas arrays (and anything which may hold them,
+	 * such as open records and closures) are not. Neither are boxes, since they
+	 * are reference counted and so cannot be shared without being copied.
+	 *
+	 * @param type
+	 * @param visited The nominal types already considered.
+	 * @return
+	 */
+	private boolean isImmutable(WyilFile.Type type, HashSet<Decl.Type> visited) {
+		if (type instanceof WyilFile.Type.Bool || type instanceof WyilFile.Type.Byte
+				|| type instanceof WyilFile.Type.Int || type instanceof WyilFile.Type.Null) {
+			return true;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (isBoxed(decl)) {
+				return false;
+			}
+			return !visited.add(decl) || isImmutable(decl.getType(), visited);
+		} else if (type instanceof WyilFile.Type.Record && !((WyilFile.Type.Record) type).isOpen()) {
+			for (WyilFile.Type.Field f : ((WyilFile.Type.Record) type).getFields()) {
+				if (!isImmutable(f.getType(), visited)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (type instanceof WyilFile.Type.Union) {
+			WyilFile.Type.Union u = (WyilFile.Type.Union) type;
+			for (int i = 0; i != u.size(); ++i) {
+				if (!isImmutable(u.get(i), visited)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether executing a given block can never complete (i.e. every path
+	 * through it ends in a <code>fail</code> statement).
+	 *
+	 * @param block
+	 * @return
+	 */
+	private static boolean neverReturns(Block block) {
+		for (int i = 0; i != block.size(); ++i) {
+			WyilFile.Stmt stmt = block.get(i);
+			if (stmt instanceof Fail) {
+				return true;
+			} else if (stmt instanceof Block && neverReturns((Block) stmt)) {
+				return true;
+			} else if (stmt instanceof IfElse && ((IfElse) stmt).hasFalseBranch()
+					&& neverReturns(((IfElse) stmt).getTrueBranch())
+					&& neverReturns(((IfElse) stmt).getFalseBranch())) {
+				return true;
+			} else if (containsReturn(stmt)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsReturn(SyntacticItem item) {
+		if (item instanceof Return) {
+			return true;
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i)) && !(item.get(i) instanceof Decl.Lambda) && containsReturn(item.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the name of the function generated for a given lambda.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private String nameOf(Decl.Lambda decl) {
+		return lambdas.computeIfAbsent(decl, d -> "wy_lambda_" + lambdas.size());
+	}
+
+	/**
+	 * Determine the function which implements a given target of an indirect
+	 * invocation. This accepts the environment as its first parameter, and is
+	 * declared (if necessary) so it can be called before it is defined. For named
+	 * functions (and methods), this is an adapter which ignores the environment.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private String functionOf(Decl.Callable target) {
+		WyilFile.Type.Callable type = target.getType();
+		Tuple<Decl.Variable> parameters = target.getParameters();
+		ArrayList<Declaration.Parameter> params = new ArrayList<>();
+		params.add(new Declaration.Parameter(POINTER(VOID()), ENV));
+		if (target instanceof Decl.Lambda) {
+			String name = nameOf((Decl.Lambda) target);
+			for (Decl.Variable v : parameters) {
+				params.add(new Declaration.Parameter(canonical(v.getType()), v.getName().get()));
+			}
+			declare(new Declaration.Method(canonical(type.getReturn()), name, params, null, STATIC));
+			return name;
+		}
+		String name = toMangledName(target);
+		// Declare the target, since it may not be declared yet
+		ArrayList<Declaration.Parameter> prototype = new ArrayList<>();
+		for (int i = 0; i != parameters.size(); ++i) {
+			prototype.add(new Declaration.Parameter(parameterType(target, i), parameters.get(i).getName().get()));
+		}
+		// Whether the target can fail is not known until it is translated
+		Set<Declaration.Method.Modifier> modifiers = modifiersOf(target);
+		modifiers.removeAll(EnumSet.of(Declaration.Method.Modifier.PURE, Declaration.Method.Modifier.CONST));
+		declare(new Declaration.Method(visitType(type.getReturn()), name, prototype, null, modifiers));
+		// Adapt the target to accept an (unused) environment
+		ArrayList<Expression> args = new ArrayList<>();
+		for (int i = 0; i != parameters.size(); ++i) {
+			WyilFile.Type t = parameters.get(i).getType();
+			params.add(new Declaration.Parameter(canonical(t), "a" + i));
+			Expression arg = convert(t, rangeOf(t), t, rangeOf(target, i), VAR("a" + i));
+			args.add(isByReference(target, i) ? ADDRESS_OF(arg) : arg);
+		}
+		Expression call = INVOKE(name, args);
+		Statement body = type.getReturn() instanceof WyilFile.Type.Void ? call : RETURN(call);
+		String adapter = name + "_closure";
+		declare(new Declaration.Method(canonical(type.getReturn()), adapter, params,
+				new Statement.Block(Arrays.asList(body)), STATIC_INLINE));
+		return adapter;
+	}
+
+	/**
+	 * Determine the possible targets of an indirect invocation through a closure
+	 * of a given type, or <code>null</code> if there are too many (or none are
+	 * known). Targets are only considered when they are represented by closures
+	 * of the same type.
+	 *
+	 * @param source  The closure being invoked.
+	 * @param closure The name of the closure type.
+	 * @return
+	 */
+	private List<Decl.Callable> targetsOf(WyilFile.Expr source, String closure) {
+		Set<Decl.Callable> targets = callTargets.getTargets(source);
+		if (targets.isEmpty() || targets.size() > MAX_DISPATCH_TARGETS) {
+			return null;
+		}
+		for (Decl.Callable target : targets) {
+			if (!((Type.Nominal) canonical(target.getType())).getName().equals(closure)) {
+				return null;
+			}
+		}
+		return new ArrayList<>(targets);
+	}
+
+	/**
+	 * Declare a function which invokes a closure by comparing its function against
+	 * each of a given set of targets, and calling the matching target directly.
+	 * Closures matching none of the targets are invoked as normal.
+	 *
+	 * @param type    The type of the closure.
+	 * @param targets The targets to check for.
+	 * @return
+	 */
+	private String dispatcher(WyilFile.Type.Callable type, List<Decl.Callable> targets) {
+		String closure = ((Type.Nominal) canonical(type)).getName();
+		ArrayList<String> fns = new ArrayList<>();
+		String name = closure + "_dispatch";
+		for (Decl.Callable target : targets) {
+			fns.add(functionOf(target));
+			name += "_" + fns.get(fns.size() - 1);
+		}
+		List<WyilFile.Type> types = parametersOf(type);
+		ArrayList<Declaration.Parameter> params = new ArrayList<>();
+		ArrayList<Expression> args = new ArrayList<>();
+		params.add(new Declaration.Parameter(NOMINAL(closure), "c"));
+		args.add(FIELD_ACCESS(VAR("c"), "env"));
+		for (int i = 0; i != types.size(); ++i) {
+			params.add(new Declaration.Parameter(canonical(types.get(i)), "a" + i));
+			args.add(VAR("a" + i));
+		}
+		boolean isVoid = type.getReturn() instanceof WyilFile.Type.Void;
+		ArrayList<Expression> fallback = new ArrayList<>(args);
+		fallback.set(0, VAR("c"));
+		Expression call = INVOKE(closure + "_call", fallback);
+		Statement body = new Statement.Block(isVoid ? call : RETURN(call));
+		for (int i = fns.size() - 1; i >= 0; --i) {
+			call = INVOKE(fns.get(i), args);
+			Expression test = EQ(FIELD_ACCESS(VAR("c"), "fn"), VAR(fns.get(i)));
+			body = IF(test, new Statement.Block(isVoid ? call : RETURN(call)), body);
+		}
+		declare(new Declaration.Method(canonical(type.getReturn()), name, params, new Statement.Block(body),
+				STATIC_INLINE));
+		return name;
+	}
+
+	/**
+	 * Determine the variables captured by a lambda. That is, those accessed within
+	 * its body which are declared outside it. These are returned in the order in
+	 * which they are first accessed.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private static List<Decl.Variable> capturedBy(Decl.Lambda decl) {
+		LinkedHashSet<Decl.Variable> accessed = new LinkedHashSet<>();
+		HashSet<Decl.Variable> declared = new HashSet<>();
+		for (Decl.Variable v : decl.getParameters()) {
+			declared.add(v);
+		}
+		findVariables(decl.getBody(), accessed, declared);
+		accessed.removeAll(declared);
+		return new ArrayList<>(accessed);
+	}
+
+	private static void findVariables(SyntacticItem item, Set<Decl.Variable> accessed, Set<Decl.Variable> declared) {
+		if (item instanceof VariableAccess) {
+			accessed.add(((VariableAccess) item).getVariableDeclaration());
+		} else if (item instanceof Decl.Variable) {
+			declared.add((Decl.Variable) item);
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i))) {
+				findVariables(item.get(i), accessed, declared);
+			}
+		}
+	}
+
+	/**
+	 * Determine the types of the parameters of a given function, method or
+	 * property type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static List<WyilFile.Type> parametersOf(WyilFile.Type.Callable type) {
+		WyilFile.Type param = type.getParameter();
+		ArrayList<WyilFile.Type> params = new ArrayList<>();
+		if (param instanceof WyilFile.Type.Tuple) {
+			WyilFile.Type.Tuple tuple = (WyilFile.Type.Tuple) param;
+			for (int i = 0; i != tuple.size(); ++i) {
+				params.add((WyilFile.Type) tuple.get(i));
+			}
+		} else if (!(param instanceof WyilFile.Type.Void)) {
+			params.add(param);
+		}
+		return params;
+	}
+
+	/**
+	 * Determine the C type of a given variable, which for parameters of the
+	 * enclosing declaration and quantified variables may differ from that given by
+	 * its declared type.
+	 *
+	 * @param var
+	 * @return
+	 */
+	private Type variableType(Decl.Variable var) {
+		if (quantified.contains(var)) {
+			return INT(64);
+		} else if (enclosing instanceof Decl.Callable) {
+			Tuple<Decl.Variable> params = ((Decl.Callable) enclosing).getParameters();
+			for (int i = 0; i != params.size(); ++i) {
+				if (params.get(i) == var) {
+					return parameterType((Decl.Callable) enclosing, i);
+				}
+			}
+		}
+		return visitType(var.getType());
+	}
+
+	// =======================================================================================================
+	// Contracts
+	// =======================================================================================================
+
+	/**
+	 * Translate the precondition of a given function or method, provided it is
+	 * checked on entry.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private List<Expression> visitPrecondition(Decl.FunctionOrMethod decl) {
+		if (checks == CheckLevel.NONE || (checks == CheckLevel.ENTRY && !isExported(decl))) {
+			return Collections.emptyList();
+		}
+		return visitHomogoneousExpressions(decl.getRequires());
+	}
+
+	/**
+	 * Translate the postcondition of a given function or method, provided it is
+	 * checked on return. This becomes a separate function, which is passed the
+	 * parameters and the returned value. Hence, it is not checked when a parameter
+	 * is modified, as its value on entry is then unavailable.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private List<Expression> visitPostcondition(Decl.FunctionOrMethod decl) {
+		if (checks.compareTo(CheckLevel.STANDARD) < 0 || decl.getEnsures().size() == 0
+				|| decl.getReturns().size() > 1) {
+			return Collections.emptyList();
+		}
+		for (Decl.Variable param : decl.getParameters()) {
+			if (isModified(decl.getBody(), param)) {
+				profile.add("contracts", decl.getQualifiedName() + ": postcondition unchecked (parameter modified)");
+				return Collections.emptyList();
+			}
+		}
+		List<Expression> postcondition;
+		// As for lambdas, the region of the enclosing declaration is unavailable
+		lambdaDepth++;
+		try {
+			postcondition = visitHomogoneousExpressions(decl.getEnsures());
+		} finally {
+			lambdaDepth--;
+		}
+		ensures = toMangledName(decl) + "_ensures";
+		return postcondition;
+	}
+
+	/**
+	 * Add the checks made on entry to a given function or method, and declare the
+	 * function checking its postcondition. For example:
+	 *
+	 * <pre>
+	 * function f(nat x) -> (int r)
+	 * requires x < 10
+	 * ensures r > x:
+	 *    return x + 1
+	 * </pre>
+	 *
+	 * Here, the body of <code>f</code> begins with
+	 * <code>assert(wy_int_lt(x, 10))</code> and <code>assert(nat_inv(x))</code>,
+	 * whilst <code>f_ensures(x, r)</code> is checked before it returns.
+	 *
+	 * @param decl
+	 * @param precondition
+	 * @param postcondition
+	 * @param body
+	 * @return
+	 */
+	private Statement.Block withChecks(Decl.FunctionOrMethod decl, List<Expression> precondition,
+			List<Expression> postcondition, Statement.Block body) {
+		ArrayList<Statement> stmts = new ArrayList<>();
+		for (Expression clause : precondition) {
+			// The verifier cannot prove the preconditions of calls from outside
+			check(stmts, "precondition", clause, verified && !isExported(decl));
+		}
+		Tuple<Decl.Variable> parameters = decl.getParameters();
+		ArrayList<Declaration.Parameter> params = new ArrayList<>();
+		for (int i = 0; i != parameters.size(); ++i) {
+			Decl.Variable param = parameters.get(i);
+			String vn = param.getName().get();
+			params.add(new Declaration.Parameter(parameterType(decl, i), vn));
+			String inv = invariantOf(param.getType());
+			if (inv != null) {
+				Expression arg = isByReference(decl, i) ? DEREFERENCE(VAR(vn)) : VAR(vn);
+				Decl.Type type = ((WyilFile.Type.Nominal) param.getType()).getLink().getTarget();
+				if (toFixedWidth(rangeOf(type)) == null) {
+					// The parameter may be narrower than its type
+					arg = widen(toFixedWidth(rangeOf(decl, i)), arg);
+				}
+				check(stmts, "invariant", INVOKE(inv, Arrays.asList(arg)), verified);
+			}
+		}
+		if (stmts.isEmpty() && postcondition.isEmpty()) {
+			return body;
+		}
+		stmts.addAll(body.getTerms());
+		if (!postcondition.isEmpty()) {
+			String name = toMangledName(decl) + "_ensures";
+			Tuple<Decl.Variable> returns = decl.getReturns();
+			if (returns.size() == 0) {
+				// Falling off the end of the body also returns
+				Block block = decl.getBody();
+				if (block.size() == 0 || !(block.get(block.size() - 1) instanceof Return)) {
+					check(stmts, "postcondition", INVOKE(name, argumentsOf(decl, null)), verified);
+				}
+			} else {
+				Decl.Variable ret = returns.get(0);
+				params.add(new Declaration.Parameter(variableType(ret), ret.getName().get()));
+			}
+			if (!verified) {
+				Statement.Block check = new Statement.Block(RETURN(conjunction(postcondition)));
+				declare(new Declaration.Method(BOOL(), name, params, check, STATIC_INLINE));
+				profile.add("contracts", decl.getQualifiedName() + ": postcondition checked");
+			}
+		}
+		return new Statement.Block(stmts);
+	}
+
+	/**
+	 * Check the value being returned from the enclosing declaration against its
+	 * postcondition and the invariant of its type (if they are checked), before
+	 * returning it.
+	 *
+	 * @param ret The value being returned, or <code>null</code> if none.
+	 * @return
+	 */
+	private Statement withChecks(Expression ret) {
+		Decl.Callable decl = (Decl.Callable) enclosing;
+		String inv = ret == null ? null : invariantOf(decl.getType().getReturn());
+		Expression value = ret == null ? null : VAR("wy_ret");
+		ArrayList<Statement> asserts = new ArrayList<>();
+		if (inv != null) {
+			check(asserts, "invariant", INVOKE(inv, Arrays.asList(value)), verified);
+		}
+		if (ensures != null) {
+			check(asserts, "postcondition", INVOKE(ensures, argumentsOf(decl, value)), verified);
+		}
+		if (asserts.isEmpty()) {
+			return RETURN(ret);
+		}
+		ArrayList<Statement> stmts = new ArrayList<>();
+		if (ret != null) {
+			stmts.add(new Declaration.Variable(visitType(decl.getType().getReturn()), "wy_ret", ret));
+		}
+		stmts.addAll(asserts);
+		stmts.add(RETURN(value));
+		return new Statement.Block(stmts);
+	}
+
+	/**
+	 * Determine the arguments passed to the function checking the postcondition
+	 * of a given declaration.
+	 *
+	 * @param decl
+	 * @param ret  The value being returned, or <code>null</code> if none.
+	 * @return
+	 */
+	private static List<Expression> argumentsOf(Decl.Callable decl, Expression ret) {
+		ArrayList<Expression> args = new ArrayList<>();
+		for (Decl.Variable param : decl.getParameters()) {
+			args.add(VAR(param.getName().get()));
+		}
+		if (ret != null) {
+			args.add(ret);
+		}
+		return args;
+	}
+
+	/**
+	 * Check a loop invariant before evaluating the loop condition, and hence on
+	 * entry and after every iteration, provided loop invariants are checked. For
+	 * example, <code>while i < n where i >= 0</code> becomes:
+	 *
+	 * <pre>
+	 * while(({ assert(wy_int_ge(i, 0)); wy_int_lt(i, n); })) { ... }
+	 * </pre>
+	 *
+	 * @param invariant
+	 * @param condition
+	 * @return
+	 */
+	private Expression withInvariant(List<Expression> invariant, Expression condition) {
+		if (checks != CheckLevel.FULL || invariant.isEmpty()) {
+			return condition;
+		}
+		ArrayList<Statement> stmts = new ArrayList<>();
+		for (Expression clause : invariant) {
+			check(stmts, "loop invariant", clause, verified);
+		}
+		return stmts.isEmpty() ? condition : STATEMENT_EXPRESSION(stmts, condition);
+	}
+
+	/**
+	 * Generate a runtime check of a given condition, unless it has been
+	 * discharged by the verifier. Either way, the check is counted so the number
+	 * omitted can be reported.
+	 *
+	 * @param kind       The kind of check (e.g. "precondition").
+	 * @param condition
+	 * @param discharged Signals whether the check was proven to hold.
+	 * @return The check, or <code>null</code> if it was discharged.
+	 */
+	private Statement check(String kind, Expression condition, boolean discharged) {
+		if (count(kind, discharged)) {
+			return null;
+		}
+		mayFail = true;
+		return INVOKE("assert", Arrays.asList(condition));
+	}
+
+	private void check(List<Statement> stmts, String kind, Expression condition, boolean discharged) {
+		Statement s = check(kind, condition, discharged);
+		if (s != null) {
+			stmts.add(s);
+		}
+	}
+
+	/**
+	 * Count a check of a given kind, along with whether it is emitted.
+	 *
+	 * @param kind
+	 * @param discharged Signals whether the check was proven to hold.
+	 * @return Whether the check was discharged.
+	 */
+	private boolean count(String kind, boolean discharged) {
+		int[] counts = checkCounts.computeIfAbsent(kind, k -> new int[2]);
+		counts[0]++;
+		if (!discharged) {
+			counts[1]++;
+		}
+		return discharged;
+	}
+
+	/**
+	 * Determine the name of the function checking the invariant of a given type,
+	 * or <code>null</code> if it has none (or it is not checked).
+	 *
+	 * @param type
+	 * @return
+	 */
+	private String invariantOf(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (decl.getInvariant().size() > 0 && checksInvariant(decl)) {
+				return decl.getName().get() + "_inv";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether the invariant of a given type is checked. Recursive types are
+	 * excluded, since their definitions are generated separately.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean checksInvariant(Decl.Type decl) {
+		return checks.compareTo(CheckLevel.STANDARD) >= 0 && !isRecursive(decl);
+	}
+
+	private static boolean isExported(Decl.Callable decl) {
+		return decl.getModifiers().match(WyilFile.Modifier.Export.class) != null;
+	}
+
+	/**
+	 * Combine the clauses of a contract into a single condition.
+	 *
+	 * @param clauses
+	 * @return
+	 */
+	private static Expression conjunction(List<Expression> clauses) {
+		Expression e = clauses.get(0);
+		for (int i = 1; i < clauses.size(); ++i) {
+			e = AND(e, clauses.get(i));
+		}
+		return e;
+	}
+
+	// =======================================================================================================
+	// Quantifiers
+	// =======================================================================================================
+
+	/**
+	 * Translate a quantifier into a nest of counted loops, one for each of its
+	 * variables, which exits as soon as the result is known. For example,
+	 * <code>all { i in 0..|xs| | xs[i] >= 0 }</code> becomes:
+	 *
+	 * <pre>
+	 * ({
+	 *    bool wy_q = true;
+	 *    int64_t wy_i_end = wy_int_to_i64(wy_int_from_i64(xs.length));
+	 *    for(int64_t i = 0; wy_q && i < wy_i_end; i = i + 1) {
+	 *       wy_q = ...;
+	 *    }
+	 *    wy_q;
+	 * })
+	 * </pre>
+	 *
+	 * The bounds of each range are evaluated once, before its loop. A loop whose
+	 * range is known to be small has no early exit, and its body becomes a
+	 * branch-free reduction (e.g. <code>wy_q = wy_q & ...</code>) which the C
+	 * compiler can unroll or vectorise. Since the body is then evaluated beyond
+	 * the point where the result is known, this applies only when evaluating it
+	 * can never go wrong (see <code>isTotal()</code>).
+	 *
+	 * @param expr
+	 * @param ranges    The translated bounds of each variable.
+	 * @param body
+	 * @param universal Whether this is a universal quantifier.
+	 * @return
+	 */
+	private Expression quantifier(WyilFile.Expr.Quantifier expr, List<Pair<Expression, Expression>> ranges,
+			Expression body, boolean universal) {
+		Expression search = search(expr, ranges, universal);
+		if (search != null) {
+			return search;
+		}
+		List<Decl.StaticVariable> params = quantifiedBy(expr);
+		boolean total = isTotal(bodyOf(expr));
+		Expression q = VAR("wy_q");
+		Statement stmt;
+		if (total && isSmall(params.get(params.size() - 1))) {
+			stmt = ASSIGN(q, universal ? BIT_AND(q, body) : BIT_OR(q, body));
+		} else {
+			stmt = ASSIGN(q, body);
+		}
+		// Construct loops from the innermost outwards
+		List<Statement> stmts = Arrays.asList(stmt);
+		for (int i = params.size() - 1; i >= 0; --i) {
+			Decl.StaticVariable param = params.get(i);
+			ArrayRange range = (ArrayRange) param.getInitialiser();
+			String name = param.getName().get();
+			String end = "wy_" + name + "_end";
+			Expression var = VAR(name);
+			Expression condition = LT(var, VAR(end));
+			if (!total || !isSmall(param)) {
+				condition = AND(universal ? q : NOT(q), condition);
+			}
+			Statement initialiser = new Declaration.Variable(INT(64), name,
+					toIndex(range.getFirstOperand(), ranges.get(i).first()));
+			Statement increment = ASSIGN(var, ADD(var, INT_CONST(1)));
+			Statement loop = FOR(initialiser, condition, increment, new Statement.Block(stmts));
+			stmts = Arrays.asList(
+					new Declaration.Variable(INT(64), end, toIndex(range.getSecondOperand(), ranges.get(i).second())),
+					loop);
+		}
+		ArrayList<Statement> block = new ArrayList<>();
+		block.add(new Declaration.Variable(BOOL(), "wy_q", BOOL_CONST(universal)));
+		block.addAll(stmts);
+		return STATEMENT_EXPRESSION(block, q);
+	}
+
+	/**
+	 * Translate a quantifier which searches part of an array for a given value,
+	 * such as <code>some { i in 0..|xs| | xs[i] == c }</code> (or
+	 * <code>all { i in 0..|xs| | xs[i] != c }</code>), using the runtime's
+	 * <code>NAME_contains</code>. For arrays of bytes (or other byte-sized
+	 * elements) this uses <code>memchr()</code>, whilst boolean arrays (e.g.
+	 * <code>all { i in 0..|xs| | xs[i] }</code>) are searched a word at a time. This applies only to arrays held
+	 * in variables, whose elements are compared bitwise.
+	 *
+	 * @param expr
+	 * @param ranges
+	 * @param universal
+	 * @return The translated quantifier, or <code>null</code> if it is not a
+	 *         search.
+	 */
+	private Expression search(WyilFile.Expr.Quantifier expr, List<Pair<Expression, Expression>> ranges,
+			boolean universal) {
+		List<Decl.StaticVariable> params = quantifiedBy(expr);
+		WyilFile.Expr body = bodyOf(expr);
+		if (params.size() != 1) {
+			return null;
+		}
+		Decl.StaticVariable param = params.get(0);
+		WyilFile.Expr lhs;
+		WyilFile.Expr rhs = null;
+		if (isElementOf(body, param)) {
+			// Search for a true (or false) element
+			lhs = body;
+		} else if (body instanceof LogicalNot && isElementOf(((LogicalNot) body).getOperand(), param)) {
+			lhs = ((LogicalNot) body).getOperand();
+		} else if (universal ? body instanceof NotEqual : body instanceof Equal) {
+			lhs = ((WyilFile.Expr.BinaryOperator) body).getFirstOperand();
+			rhs = ((WyilFile.Expr.BinaryOperator) body).getSecondOperand();
+			if (!isElementOf(lhs, param)) {
+				WyilFile.Expr tmp = lhs;
+				lhs = rhs;
+				rhs = tmp;
+			}
+			HashSet<Decl.Variable> accessed = new HashSet<>();
+			findVariables(rhs, accessed, new HashSet<>());
+			if (!isElementOf(lhs, param) || accessed.contains(param)) {
+				return null;
+			}
+		} else {
+			return null;
+		}
+		WyilFile.Expr source = ((ArrayAccess) lhs).getFirstOperand();
+		WyilFile.Type.Array type = asArray(source.getType());
+		if (type == null || opsOf(type.getElement()) != null) {
+			return null;
+		}
+		Expression value;
+		if (rhs == null) {
+			value = BOOL_CONST((body == lhs) != universal);
+		} else {
+			IntegerRange elements = rangeOf(type.getElement());
+			IntegerRange values = rangeOf(rhs);
+			if (elements != null
+					&& (values == null || !values.within(elements.getLowerBound(), elements.getUpperBound()))) {
+				// The value may not be representable as an element
+				return null;
+			}
+			value = coerce(type.getElement(), rhs, visitExpression(rhs));
+		}
+		String name = ((Type.Array) visitType(type)).getName();
+		ArrayRange range = (ArrayRange) param.getInitialiser();
+		Expression found = INVOKE(name + "_contains",
+				Arrays.asList(visitExpression(source), toIndex(range.getFirstOperand(), ranges.get(0).first()),
+						toIndex(range.getSecondOperand(), ranges.get(0).second()), value));
+		return universal ? NOT(found) : found;
+	}
+
+	/**
+	 * Check whether a given expression reads the element of an array variable
+	 * at a given index variable (e.g. <code>xs[i]</code>).
+	 *
+	 * @param expr
+	 * @param index
+	 * @return
+	 */
+	private static boolean isElementOf(WyilFile.Expr expr, Decl.Variable index) {
+		return expr instanceof ArrayAccess && ((ArrayAccess) expr).getFirstOperand() instanceof VariableAccess
+				&& isVariable(((ArrayAccess) expr).getSecondOperand(), index);
+	}
+
+	/**
+	 * Translate the bounds of each variable of a quantifier (including those of
+	 * any quantifiers nested directly within it).
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private List<Pair<Expression, Expression>> visitRanges(WyilFile.Expr.Quantifier expr) {
+		ArrayList<Pair<Expression, Expression>> ranges = new ArrayList<>();
+		for (Decl.StaticVariable param : quantifiedBy(expr)) {
+			ArrayRange range = (ArrayRange) param.getInitialiser();
+			quantified.add(param);
+			ranges.add(new Pair<>(visitExpression(range.getFirstOperand()), visitExpression(range.getSecondOperand())));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Determine the variables of a quantifier. A quantifier of the same kind
+	 * nested directly within it (e.g. <code>all { i in .. | all { j in .. | ..
+	 * } }</code>) is flattened into it, so its variables are included.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static List<Decl.StaticVariable> quantifiedBy(WyilFile.Expr.Quantifier expr) {
+		ArrayList<Decl.StaticVariable> params = new ArrayList<>();
+		WyilFile.Expr e = expr;
+		while (e.getOpcode() == expr.getOpcode()) {
+			WyilFile.Expr.Quantifier q = (WyilFile.Expr.Quantifier) e;
+			for (Decl.StaticVariable param : q.getParameters()) {
+				params.add(param);
+			}
+			e = q.getOperand();
+		}
+		return params;
+	}
+
+	/**
+	 * Determine the body of a quantifier, after flattening as for
+	 * <code>quantifiedBy()</code>.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static WyilFile.Expr bodyOf(WyilFile.Expr.Quantifier expr) {
+		WyilFile.Expr e = expr;
+		while (e.getOpcode() == expr.getOpcode()) {
+			e = ((WyilFile.Expr.Quantifier) e).getOperand();
+		}
+		return e;
+	}
+
+	/**
+	 * Check whether evaluating a given expression can never go wrong, whatever
+	 * the values of its variables. This excludes reading an array (whose index
+	 * may be out of bounds), dividing (by zero), dereferencing and invoking
+	 * anything (which may fail).
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static boolean isTotal(SyntacticItem item) {
+		if (item instanceof ArrayAccess || item instanceof IntegerDivision || item instanceof IntegerRemainder
+				|| item instanceof Dereference || item instanceof FieldDereference || item instanceof Invoke
+				|| item instanceof IndirectInvoke) {
+			return false;
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			// NOTE: the bounds of a nested quantifier are held by its variables
+			SyntacticItem child = item.get(i);
+			if ((isPartOfBody(child) || child instanceof Decl.StaticVariable) && !isTotal(child)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a quantified variable is known to range over only a few
+	 * values.
+	 *
+	 * @param param
+	 * @return
+	 */
+	private boolean isSmall(Decl.StaticVariable param) {
+		ArrayRange range = (ArrayRange) param.getInitialiser();
+		BigInteger lo = rangeOf(range.getFirstOperand()).getLowerBound();
+		BigInteger hi = rangeOf(range.getSecondOperand()).getUpperBound();
+		return lo != null && hi != null && hi.subtract(lo).compareTo(BigInteger.valueOf(MAX_REDUCED_RANGE)) <= 0;
+	}
+
+	/**
+	 * Determine the range of values taken by a quantified variable. Since these
+	 * are held in an <code>int64_t</code> (see <code>quantifier()</code>), the
+	 * range is always bounded.
+	 *
+	 * @param var
+	 * @return
+	 */
+	private IntegerRange rangeOfQuantified(Decl.Variable var) {
+		ArrayRange range = (ArrayRange) ((Decl.StaticVariable) var).getInitialiser();
+		BigInteger lo = rangeOf(range.getFirstOperand()).getLowerBound();
+		BigInteger hi = rangeOf(range.getSecondOperand()).getUpperBound();
+		return new IntegerRange(lo, hi == null ? null : hi.subtract(BigInteger.ONE)).intersect(INT64_RANGE);
+	}
+
+	// =======================================================================================================
+	// Records
+	// =======================================================================================================
+
+	/**
+	 * Determine the order in which the fields of a record are laid out in C. This
+	 * differs from the order in which they are declared, since fields are sorted
+	 * by decreasing alignment to avoid padding. Amongst fields with the same
+	 * alignment, those accessed most often come first (so they are more likely to
+	 * share a cache line). Since fields are always accessed by name, this order is
+	 * not visible to Whiley.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private List<WyilFile.Type.Field> layoutOf(WyilFile.Type.Record type) {
+		ArrayList<WyilFile.Type.Field> fields = new ArrayList<>();
+		for (WyilFile.Type.Field f : type.getFields()) {
+			fields.add(f);
+		}
+		// NOTE: the sort is stable, hence declaration order breaks any ties
+		fields.sort((f1, f2) -> {
+			int c = Integer.compare(alignOf(f2.getType()), alignOf(f1.getType()));
+			if (c == 0) {
+				c = Integer.compare(fieldAccesses.getOrDefault(f2.getName().get(), 0),
+						fieldAccesses.getOrDefault(f1.getName().get(), 0));
+			}
+			return c;
+		});
+		return fields;
+	}
+
+	/**
+	 * Estimate the number of accesses to each field within a given item, where
+	 * accesses inside loops are assumed to happen more often.
+	 *
+	 * @param item
+	 * @param weight The weight of each access found.
+	 */
+	private void countFieldAccesses(SyntacticItem item, int weight) {
+		if (item instanceof RecordAccess) {
+			fieldAccesses.merge(((RecordAccess) item).getField().get(), weight, Integer::sum);
+		} else if (item instanceof While || item instanceof DoWhile || item instanceof For) {
+			weight = weight * 8;
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i))) {
+				countFieldAccesses(item.get(i), weight);
+			}
+		}
+	}
+
+	/**
+	 * Find the (non-integer) types whose invariants are tested at runtime by the
+	 * type tests in a given item, including those of the types they are defined
+	 * in terms of.
+	 *
+	 * @param item
+	 * @param found The types found so far.
+	 */
+	private void findTestedTypes(SyntacticItem item, Set<Decl.Type> found) {
+		if (item instanceof Is && rangeOf(((Is) item).getTestType()) == null) {
+			for (WyilFile.Type t = ((Is) item).getTestType(); t instanceof WyilFile.Type.Nominal;) {
+				Decl.Type decl = ((WyilFile.Type.Nominal) t).getLink().getTarget();
+				found.add(decl);
+				t = isRecursive(decl) ? null : decl.getType();
+			}
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i))) {
+				findTestedTypes(item.get(i), found);
+			}
+		}
+	}
+
+	/**
+	 * Determine the alignment (in bytes) of the C representation of a given type.
+	 * Records and tagged unions are aligned to their most aligned field, whilst
+	 * any other value is either a pointer or represented by a single C type (see
+	 * <code>canonical()</code>).
+	 *
+	 * @param type
+	 * @return
+	 */
+	private int alignOf(WyilFile.Type type) {
+		if (isStruct(type)) {
+			WyilFile.Type.Record record = (WyilFile.Type.Record) resolve(type);
+			int align = 1;
+			for (WyilFile.Type.Field f : record.getFields()) {
+				align = Math.max(align, alignOf(f.getType()));
+			}
+			return align;
+		} else if (isUnion(type, TAGGED)) {
+			int align = 1;
+			for (WyilFile.Type member : withoutNull(membersOf(type))) {
+				align = Math.max(align, alignOf(member));
+			}
+			return align;
+		} else if (isPointer(type) || isUnion(type, NULLABLE)) {
+			return POINTER_SIZE;
+		}
+		return alignOf(canonical(type));
+	}
+
+	/**
+	 * Determine the size (in bytes) of the C representation of a given type,
+	 * following the layout rules of C for structures and unions.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private int sizeOf(WyilFile.Type type) {
+		int size = 0;
+		if (isStruct(type)) {
+			for (WyilFile.Type.Field f : layoutOf((WyilFile.Type.Record) resolve(type))) {
+				size = align(size, alignOf(f.getType())) + sizeOf(f.getType());
+			}
+		} else if (isUnion(type, TAGGED)) {
+			for (WyilFile.Type member : withoutNull(membersOf(type))) {
+				size = Math.max(size, sizeOf(member));
+			}
+			// The tag is a single byte
+			size = align(1, alignOf(type)) + size;
+		} else if (isPointer(type) || isUnion(type, NULLABLE)) {
+			return POINTER_SIZE;
+		} else {
+			return sizeOf(canonical(type));
+		}
+		return align(size, alignOf(type));
+	}
+
+	/**
+	 * Determine the size (in bytes) of a C type which is not a structure or union
+	 * declared by the compiler. Runtime types are sized as defined in the runtime
+	 * headers, assuming a 64-bit target.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static int sizeOf(Type type) {
+		if (type instanceof Type.Bool) {
+			return 1;
+		} else if (type instanceof Type.Int && ((Type.Int) type).hasFixedWidth()) {
+			return ((Type.Int) type).getWidth() / 8;
+		} else if (type instanceof Type.Pointer) {
+			return POINTER_SIZE;
+		} else if (type instanceof Type.Array) {
+			// int64_t length and T* data
+			return 8 + POINTER_SIZE;
+		} else if (type instanceof Type.Nominal) {
+			String name = ((Type.Nominal) type).getName();
+			switch (name) {
+			case "wy_null":
+			case "wy_bool_null":
+				return 1;
+			case "wy_int":
+				return 8;
+			case "wy_open":
+				// Shape and data
+				return 2 * POINTER_SIZE;
+			default:
+				if (name.startsWith("wy_fn_")) {
+					// Function and environment
+					return 2 * POINTER_SIZE;
+				}
+			}
+		}
+		throw new IllegalArgumentException("unknown size of type: " + type);
+	}
+
+	/**
+	 * Determine the alignment (in bytes) of a C type which is not a structure or
+	 * union declared by the compiler. Each is either a scalar aligned to its size
+	 * or a structure of pointer-sized words.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static int alignOf(Type type) {
+		return Math.min(sizeOf(type), POINTER_SIZE);
+	}
+
+	/**
+	 * Check whether a given type is represented by a structure declared for a
+	 * (closed) record.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean isStruct(WyilFile.Type type) {
+		return rangeOf(type) == null && !isPointer(type) && resolve(type) instanceof WyilFile.Type.Record
+				&& !isOpen(type);
+	}
+
+	/**
+	 * Check whether a given type is represented as a union of the given kind
+	 * (i.e. NULLABLE, BOOL_NULL or TAGGED).
+	 *
+	 * @param type
+	 * @param kind
+	 * @return
+	 */
+	private boolean isUnion(WyilFile.Type type, int kind) {
+		if (rangeOf(type) != null || isPointer(type)) {
+			return false;
+		}
+		List<WyilFile.Type> members = membersOf(type);
+		return members != null && layoutOf(members).kind == kind;
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Determine whether a given type is an open record (e.g.
+	 * <code>{int x, ...}</code>), whose values may be records of any type with
+	 * (at least) the given fields.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static boolean isOpen(WyilFile.Type type) {
+		WyilFile.Type.Record record = asRecord(type);
+		return record != null && record.isOpen();
+	}
+
+	/**
+	 * Convert a (closed) record into an open record. The record is copied into
+	 * memory alongside its shape, which gives the offset of each field and is
+	 * declared once per record type.
+	 *
+	 * @param from The type of the record being converted.
+	 * @param to   The open record type being converted to.
+	 * @param e    The translated record.
+	 * @return
+	 */
+	private Expression open(WyilFile.Type.Record from, WyilFile.Type.Record to, Expression e) {
+		for (WyilFile.Type.Field f : to.getFields()) {
+			// Fields are accessed through the representation of the open record
+			WyilFile.Type t = fieldType(from, f.getName().get());
+			if (t == null || !Type.mangle(canonical(t)).equals(Type.mangle(canonical(f.getType())))) {
+				throw new IllegalArgumentException("unsupported conversion from " + from + " to " + to);
+			}
+		}
+		Type struct = canonical(from);
+		String name = ((Type.Nominal) struct).getName();
+		ArrayList<String> fields = new ArrayList<>();
+		for (WyilFile.Type.Field f : layoutOf(from)) {
+			fields.add(f.getName().get());
+		}
+		declare(new Declaration.ShapeDef(name, fields));
+		Expression data = ARRAY_LITERAL(struct, Arrays.asList(e));
+		return INVOKE("wy_open_from", Arrays.asList(ADDRESS_OF(VAR(name + "_shape")), data));
+	}
+
+	/**
+	 * Access a field of an open record. Since its offset is not known at compile
+	 * time, each access site caches the offset for the shape it last saw. Hence,
+	 * the field is only looked up by name when the shape changes.
+	 *
+	 * @param type   The open record type.
+	 * @param field  The field being accessed.
+	 * @param source The translated record.
+	 * @return
+	 */
+	private Expression openField(WyilFile.Type.Record type, String field, Expression source) {
+		Type t = canonical(fieldType(type, field));
+		Expression address = INVOKE("WY_OPEN_FIELD", Arrays.asList(source, STRING_CONST(field)));
+		return DEREFERENCE(CAST(POINTER(t), address));
+	}
+
+	/**
+	 * Determine whether a given parameter is passed by reference (i.e. as a
+	 * <code>const</code> pointer). This applies to large records which are never
+	 * modified by the callee. Records are still returned by value, rather than
+	 * through an explicit return slot, since the C calling convention already
+	 * returns large structures through memory provided by the caller. An explicit
+	 * slot would gain nothing, whilst preventing invocations from being used
+	 * within expressions.
+	 *
+	 * @param decl
+	 * @param index
+	 * @return
+	 */
+	private boolean isByReference(Decl.Callable decl, int index) {
+		if (!(decl instanceof Decl.FunctionOrMethod)) {
+			return false;
+		}
+		Decl.Variable param = decl.getParameters().get(index);
+		WyilFile.Type type = param.getType();
+		return asRecord(type) != null && boxOf(type) == null && sizeOf(type) > MAX_RECORD_BY_VALUE
+				&& !isModified(((Decl.FunctionOrMethod) decl).getBody(), param);
+	}
+
+	/**
+	 * Determine whether a given variable is a parameter of the enclosing
+	 * declaration which is passed by reference.
+	 *
+	 * @param var
+	 * @return
+	 */
+	private boolean isByReference(Decl.Variable var) {
+		if (enclosing instanceof Decl.Callable) {
+			Tuple<Decl.Variable> params = ((Decl.Callable) enclosing).getParameters();
+			for (int i = 0; i != params.size(); ++i) {
+				if (params.get(i) == var) {
+					return isByReference((Decl.Callable) enclosing, i);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the C type of a given parameter.
+	 *
+	 * @param decl
+	 * @param index
+	 * @return
+	 */
+	private Type parameterType(Decl.Callable decl, int index) {
+		Decl.Variable param = decl.getParameters().get(index);
+		Type type = toFixedWidth(rangeOf(decl, index));
+		if (type != null) {
+			return type;
+		} else if (isByReference(decl, index)) {
+			return POINTER(CONST(visitType(param.getType())));
+		}
+		return visitType(param.getType());
+	}
+
+	/**
+	 * Check whether a given variable, or any part of it (e.g. a field or element),
+	 * is assigned anywhere within a given item.
+	 *
+	 * @param item
+	 * @param var
+	 * @return
+	 */
+	private static boolean isModified(SyntacticItem item, Decl.Variable var) {
+		if (item instanceof Assign) {
+			for (WyilFile.LVal lv : ((Assign) item).getLeftHandSide()) {
+				WyilFile.Expr root = lv;
+				while (root instanceof ArrayAccess || root instanceof RecordAccess) {
+					root = root instanceof ArrayAccess ? ((ArrayAccess) root).getFirstOperand()
+							: ((RecordAccess) root).getOperand();
+				}
+				if (isVariable(root, var)) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i)) && isModified(item.get(i), var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// =======================================================================================================
+	// Unions
+	// =======================================================================================================
+
+	private static final int NULLABLE = 0;
+	private static final int BOOL_NULL = 1;
+	private static final int TAGGED = 2;
+
+	/**
+	 * Describes how the values of a union type are represented. In general, this
+	 * is a tagged union whose tag gives the index of the member held. However, a
+	 * union of null and a pointer is represented as a pointer (where null is
+	 * <code>NULL</code>), and <code>bool|null</code> is represented as a single
+	 * byte.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Layout {
+		/**
+		 * One of NULLABLE, BOOL_NULL or TAGGED.
+		 */
+		private final int kind;
+		/**
+		 * The C type representing the union.
+		 */
+		private final Type type;
+		/**
+		 * The name of the tagged union, or <code>null</code> if not tagged.
+		 */
+		private final String name;
+
+		public Layout(int kind, Type type, String name) {
+			this.kind = kind;
+			this.type = type;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Determine the representation of a union with the given members, declaring
+	 * the corresponding tagged union as necessary.
+	 *
+	 * @param members
+	 * @return
+	 */
+	private Layout layoutOf(List<WyilFile.Type> members) {
+		int n = indexOfNull(members);
+		if (members.size() == 2 && n >= 0) {
+			WyilFile.Type other = members.get(1 - n);
+			if (isPointer(other)) {
+				return new Layout(NULLABLE, canonical(other), null);
+			} else if (resolve(other) instanceof WyilFile.Type.Bool) {
+				return new Layout(BOOL_NULL, NOMINAL("wy_bool_null"), null);
+			}
+		}
+		String name = "wy_union";
+		ArrayList<Type> types = new ArrayList<>();
+		ArrayList<String> operations = new ArrayList<>();
+		for (WyilFile.Type member : members) {
+			if (resolve(member) instanceof WyilFile.Type.Null) {
+				// Null requires no payload
+				types.add(null);
+				operations.add(null);
+				name += "_null";
+			} else {
+				Type type = canonical(member);
+				types.add(type);
+				operations.add(opsOf(member));
+				name += "_" + Type.mangle(type);
+			}
+		}
+		declare(new Declaration.UnionTypeDef(name, types, operations));
+		return new Layout(TAGGED, NOMINAL(name), name);
+	}
+
+	/**
+	 * Determine the members of a given type if it is represented as a union, or
+	 * <code>null</code> otherwise. This looks through nominal types as necessary,
+	 * including recursive types which are not boxed.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private List<WyilFile.Type> membersOf(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Union) {
+			WyilFile.Type.Union u = (WyilFile.Type.Union) type;
+			ArrayList<WyilFile.Type> members = new ArrayList<>();
+			for (int i = 0; i != u.size(); ++i) {
+				members.add(u.get(i));
+			}
+			return members;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (!isRecursive(decl)) {
+				return membersOf(decl.getType());
+			} else if (!isBoxed(decl)) {
+				return bodyOf(decl);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the members of the type defined by a given declaration, which is
+	 * just the type itself unless it is a union.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private List<WyilFile.Type> bodyOf(Decl.Type decl) {
+		List<WyilFile.Type> members = membersOf(decl.getType());
+		return members != null ? members : Collections.singletonList(decl.getType());
+	}
+
+	private static List<WyilFile.Type> withoutNull(List<WyilFile.Type> members) {
+		ArrayList<WyilFile.Type> rest = new ArrayList<>();
+		for (WyilFile.Type member : members) {
+			if (!(resolve(member) instanceof WyilFile.Type.Null)) {
+				rest.add(member);
+			}
+		}
+		return rest;
+	}
+
+	private static int indexOfNull(List<WyilFile.Type> members) {
+		for (int i = 0; i != members.size(); ++i) {
+			if (resolve(members.get(i)) instanceof WyilFile.Type.Null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Look through any (non-recursive) nominal types to determine the underlying
+	 * type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static WyilFile.Type resolve(WyilFile.Type type) {
+		while (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (isRecursive(decl)) {
+				break;
+			}
+			type = decl.getType();
+		}
+		return type;
+	}
+
+	private static boolean isRecursive(Decl.Type decl) {
+		return decl.getOpcode() == WyilFile.DECL_rectype;
+	}
+
+	/**
+	 * Determine whether values of a given type are represented as pointers. This
+	 * includes references and all recursive types.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static boolean isPointer(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Reference) {
+			return true;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			return isRecursive(decl) || isPointer(decl.getType());
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether values of a given recursive type are boxed. This is
+	 * unnecessary when the only non-null member is already a pointer (e.g.
+	 * <code>type List is null|Link</code>), since such a type has finite size.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean isBoxed(Decl.Type decl) {
+		if (!isRecursive(decl)) {
+			return false;
+		} else if (!boxes.containsKey(decl)) {
+			// Guard against recursive types
+			boxes.put(decl, true);
+			List<WyilFile.Type> members = withoutNull(bodyOf(decl));
+			boxes.put(decl, members.size() != 1 || !isPointer(members.get(0)));
+		}
+		return boxes.get(decl);
+	}
+
+	/**
+	 * Determine the declaration of a boxed recursive type, if a given type is one.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Decl.Type boxOf(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (isBoxed(decl)) {
+				return decl;
+			} else if (!isRecursive(decl)) {
+				return boxOf(decl.getType());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the box which must be written when writing a field of a given
+	 * type. This looks through nullable pointers, since a field can only be
+	 * written when the value is not null.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Decl.Type writableBoxOf(WyilFile.Type type) {
+		Decl.Type box = boxOf(type);
+		List<WyilFile.Type> members = membersOf(type);
+		if (box == null && members != null && members.size() == 2 && indexOfNull(members) >= 0) {
+			return writableBoxOf(members.get(1 - indexOfNull(members)));
+		}
+		return box;
+	}
+
+	/**
+	 * Allocate (or duplicate, for writing) a box. Boxes are allocated from the
+	 * region of the enclosing function when they cannot escape it, and from the
+	 * heap otherwise.
+	 *
+	 * @param box       The boxed type.
+	 * @param operation The allocating operation (i.e. "_new" or "_write").
+	 * @param arg       The argument to the operation.
+	 * @return
+	 */
+	private Expression allocate(Decl.Type box, String operation, Expression arg) {
+		String name = box.getName().get() + operation;
+		if (hasRegion()) {
+			regionUsed = true;
+			return INVOKE(name + "_in", Arrays.asList(ADDRESS_OF(VAR(REGION)), arg));
+		}
+		return INVOKE(name, Arrays.asList(arg));
+	}
+
+	/**
+	 * Determine whether boxes allocated by the enclosing declaration cannot escape
+	 * it, and hence can be allocated from a region freed when it returns. This is
+	 * the case for a function (which cannot write through references) whose
+	 * return type cannot hold a box.
+	 *
+	 * @return
+	 */
+	private boolean hasRegion() {
+		return lambdaDepth == 0 && enclosing instanceof Decl.Function
+				&& !containsBox(((Decl.Function) enclosing).getType().getReturn(), new HashSet<>());
+	}
+
+	/**
+	 * Determine whether values of a given type may hold a box.
+	 *
+	 * @param type
+	 * @param visited The nominal types already considered.
+	 * @return
+	 */
+	private boolean containsBox(WyilFile.Type type, HashSet<Decl.Type> visited) {
+		if (type instanceof WyilFile.Type.Bool || type instanceof WyilFile.Type.Byte
+				|| type instanceof WyilFile.Type.Int || type instanceof WyilFile.Type.Null
+				|| type instanceof WyilFile.Type.Void) {
+			return false;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			return isBoxed(decl) || (visited.add(decl) && containsBox(decl.getType(), visited));
+		} else if (type instanceof WyilFile.Type.Array) {
+			return containsBox(((WyilFile.Type.Array) type).getElement(), visited);
+		} else if (type instanceof WyilFile.Type.Reference) {
+			return containsBox(((WyilFile.Type.Reference) type).getElement(), visited);
+		} else if (type instanceof WyilFile.Type.Record) {
+			if (((WyilFile.Type.Record) type).isOpen()) {
+				// Open records may hold any other fields
+				return true;
+			}
+			for (WyilFile.Type.Field f : ((WyilFile.Type.Record) type).getFields()) {
+				if (containsBox(f.getType(), visited)) {
+					return true;
+				}
+			}
+			return false;
+		} else if (type instanceof WyilFile.Type.Union) {
+			WyilFile.Type.Union u = (WyilFile.Type.Union) type;
+			for (int i = 0; i != u.size(); ++i) {
+				if (containsBox(u.get(i), visited)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		// Conservatively assume other types (e.g. lambdas) may hold a box
+		return true;
+	}
+
+	/**
+	 * Determine the pointer type which represents a recursive type which is not
+	 * boxed. This looks through any other such types, since they may not be
+	 * declared yet.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private WyilFile.Type pointerOf(Decl.Type decl) {
+		HashSet<Decl.Type> visited = new HashSet<>();
+		WyilFile.Type type = withoutNull(bodyOf(decl)).get(0);
+		while (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type d = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (!visited.add(d)) {
+				throw new IllegalArgumentException("invalid recursive type: " + decl.getName());
+			} else if (isRecursive(d) && isBoxed(d)) {
+				break;
+			}
+			type = isRecursive(d) ? withoutNull(bodyOf(d)).get(0) : d.getType();
+		}
+		return type;
+	}
+
+	/**
+	 * Determine the C type used to represent values of a given type. Unlike
+	 * <code>visitType()</code>, this looks through nominal types (other than
+	 * recursive types) so that equivalent types share a representation. This is
+	 * necessary when constructing types (e.g. arrays and unions) whose names are
+	 * derived from their members.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type canonical(WyilFile.Type type) {
+		IntegerRange range = rangeOf(type);
+		if (range != null) {
+			Type.Int fixed = toFixedWidth(range);
+			return fixed != null ? fixed : WY_INT;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) type).getLink().getTarget();
+			if (!isRecursive(decl)) {
+				return canonical(decl.getType());
+			}
+		}
+		return visitType(type);
+	}
+
+	/**
+	 * Determine the prefix of the runtime operations (e.g. <code>_equals</code>)
+	 * for values of a given type, or <code>null</code> if they are compared
+	 * bitwise and require no copying.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private String opsOf(WyilFile.Type type) {
+		IntegerRange range = rangeOf(type);
+		if (range != null) {
+			// Big integers cannot be compared bitwise
+			return toFixedWidth(range) == null ? "wy_int" : null;
+		}
+		Decl.Type box = boxOf(type);
+		if (box != null) {
+			return box.getName().get();
+		} else if (isOpen(type)) {
+			return "wy_open";
+		} else if (asArray(type) != null) {
+			return ((Type.Array) canonical(asArray(type))).getName();
+		} else if (isStruct(type)) {
+			return ((Type.Nominal) canonical(type)).getName();
+		}
+		List<WyilFile.Type> members = membersOf(type);
+		if (members != null) {
+			Layout layout = layoutOf(members);
+			if (layout.kind == TAGGED) {
+				return layout.name;
+			} else if (layout.kind == NULLABLE) {
+				return opsOf(members.get(1 - indexOfNull(members)));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the member of a union which holds values of a given type, or
+	 * <code>-1</code> if there is none.
+	 *
+	 * @param members
+	 * @param type
+	 * @return
+	 */
+	private int find(List<WyilFile.Type> members, WyilFile.Type type) {
+		for (int i = 0; i != members.size(); ++i) {
+			if (members.get(i).equals(type)) {
+				return i;
+			}
+		}
+		for (int i = 0; i != members.size(); ++i) {
+			if (isCompatible(members.get(i), type)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether two types have the same kind of representation, such that
+	 * values of one can be converted to the other.
+	 *
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	private boolean isCompatible(WyilFile.Type t1, WyilFile.Type t2) {
+		if (rangeOf(t1) != null || rangeOf(t2) != null) {
+			return rangeOf(t1) != null && rangeOf(t2) != null;
+		} else if (boxOf(t1) != null || boxOf(t2) != null) {
+			return boxOf(t1) == boxOf(t2);
+		}
+		t1 = resolve(t1);
+		t2 = resolve(t2);
+		if (t1 instanceof WyilFile.Type.Nominal || t2 instanceof WyilFile.Type.Nominal) {
+			// Recursive types which are not boxed
+			return t1 instanceof WyilFile.Type.Nominal && t2 instanceof WyilFile.Type.Nominal
+					&& ((WyilFile.Type.Nominal) t1).getLink().getTarget() == ((WyilFile.Type.Nominal) t2).getLink()
+							.getTarget();
+		} else if (t1 instanceof WyilFile.Type.Array) {
+			return t2 instanceof WyilFile.Type.Array && isCompatible(((WyilFile.Type.Array) t1).getElement(),
+					((WyilFile.Type.Array) t2).getElement());
+		} else if (t1 instanceof WyilFile.Type.Record) {
+			if (!(t2 instanceof WyilFile.Type.Record)) {
+				return false;
+			}
+			WyilFile.Type.Record r1 = (WyilFile.Type.Record) t1;
+			WyilFile.Type.Record r2 = (WyilFile.Type.Record) t2;
+			if (r1.isOpen() != r2.isOpen() || r1.getFields().size() != r2.getFields().size()) {
+				return false;
+			}
+			for (WyilFile.Type.Field f : r1.getFields()) {
+				WyilFile.Type t = fieldType(r2, f.getName().get());
+				if (t == null || !isCompatible(f.getType(), t)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (t1 instanceof WyilFile.Type.Union || t2 instanceof WyilFile.Type.Union) {
+			return t1 instanceof WyilFile.Type.Union && t2 instanceof WyilFile.Type.Union
+					&& Type.mangle(canonical(t1)).equals(Type.mangle(canonical(t2)));
+		}
+		// Null, bool, byte and references
+		return t1.getClass() == t2.getClass();
+	}
+
+	/**
+	 * Convert a value from the representation of one type into that of another,
+	 * where one is a subtype of the other. This converts between integer
+	 * representations, injects values into unions and boxes, and extracts them
+	 * again (e.g. when the type of a variable has been refined).
+	 *
+	 * @param from The type of the value being converted.
+	 * @param to   The type being converted to.
+	 * @param e    The translated value.
+	 * @return
+	 */
+	private Expression convert(WyilFile.Type from, WyilFile.Type to, Expression e) {
+		return convert(from, rangeOf(from), to, rangeOf(to), e);
+	}
+
+	private Expression convert(WyilFile.Type from, IntegerRange fromRange, WyilFile.Type to, IntegerRange toRange,
+			Expression e) {
+		if (fromRange != null && toRange != null) {
+			return convert(fromRange, toRange, e);
+		} else if (from.equals(to)) {
+			return e;
+		} else if (isOpen(to) && asRecord(from) != null && !isOpen(from)) {
+			return open(asRecord(from), asRecord(to), e);
+		}
+		// Injection into a union or box
+		Decl.Type box = boxOf(to);
+		List<WyilFile.Type> members = box != null ? bodyOf(box) : membersOf(to);
+		int i = members == null ? -1 : find(members, from);
+		if (i >= 0) {
+			return inject(box, members, i, from, fromRange, e);
+		}
+		// Extraction from a union or box
+		box = boxOf(from);
+		members = box != null ? bodyOf(box) : membersOf(from);
+		i = members == null ? -1 : find(members, to);
+		if (i >= 0) {
+			return extract(box, members, i, to, toRange, e);
+		} else if (fromRange != null) {
+			return widen(toFixedWidth(fromRange), e);
+		} else if (box != null || members != null || boxOf(to) != null || membersOf(to) != null) {
+			// Unions with the same representation (e.g. through a nominal type)
+			if (!Type.mangle(canonical(from)).equals(Type.mangle(canonical(to)))) {
+				throw new IllegalArgumentException("unsupported conversion from " + from + " to " + to);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Inject a value into a given member of a union or box.
+	 *
+	 * @param box       The boxed type being injected into, or <code>null</code>.
+	 * @param members   The members of the union or box.
+	 * @param i         The index of the member being injected into.
+	 * @param from      The type of the value being injected.
+	 * @param fromRange The range of the value, if it is an integer.
+	 * @param e         The translated value.
+	 * @return
+	 */
+	private Expression inject(Decl.Type box, List<WyilFile.Type> members, int i, WyilFile.Type from,
+			IntegerRange fromRange, Expression e) {
+		WyilFile.Type member = members.get(i);
+		boolean isNull = resolve(member) instanceof WyilFile.Type.Null;
+		if (box != null) {
+			if (isNull) {
+				return VAR("NULL");
+			}
+			List<WyilFile.Type> rest = withoutNull(members);
+			Expression value = rest.size() == 1 ? convert(from, fromRange, member, rangeOf(member), e)
+					: inject(null, rest, rest.indexOf(member), from, fromRange, e);
+			return allocate(box, "_new", value);
+		}
+		Layout layout = layoutOf(members);
+		switch (layout.kind) {
+		case NULLABLE:
+			return isNull ? VAR("NULL") : convert(from, fromRange, member, rangeOf(member), e);
+		case BOOL_NULL:
+			return isNull ? VAR("WY_BOOL_NULL") : e;
+		default:
+			ArrayList<Pair<String, Expression>> fields = new ArrayList<>();
+			fields.add(new Pair<>("tag", INT_CONST(i)));
+			if (!isNull) {
+				fields.add(new Pair<>("u.m" + i, convert(from, fromRange, member, rangeOf(member), e)));
+			}
+			return CAST(layout.type, INITIALISER(fields));
+		}
+	}
+
+	/**
+	 * Extract the value of a given member from a union or box. The value is
+	 * assumed to hold that member.
+	 *
+	 * @param box     The boxed type being extracted from, or <code>null</code>.
+	 * @param members The members of the union or box.
+	 * @param i       The index of the member being extracted.
+	 * @param to      The type being extracted to.
+	 * @param toRange The range of the type, if it is an integer.
+	 * @param e       The translated value.
+	 * @return
+	 */
+	private Expression extract(Decl.Type box, List<WyilFile.Type> members, int i, WyilFile.Type to,
+			IntegerRange toRange, Expression e) {
+		WyilFile.Type member = members.get(i);
+		if (resolve(member) instanceof WyilFile.Type.Null) {
+			return VAR("WY_NULL");
+		} else if (box != null) {
+			Expression value = FIELD_DEREFERENCE(e, "value");
+			List<WyilFile.Type> rest = withoutNull(members);
+			return rest.size() == 1 ? convert(member, rangeOf(member), to, toRange, value)
+					: extract(null, rest, rest.indexOf(member), to, toRange, value);
+		}
+		Layout layout = layoutOf(members);
+		switch (layout.kind) {
+		case NULLABLE:
+			return convert(member, rangeOf(member), to, toRange, e);
+		case BOOL_NULL:
+			return CAST(BOOL(), e);
+		default:
+			return convert(member, rangeOf(member), to, toRange, FIELD_ACCESS(FIELD_ACCESS(e, "u"), "m" + i));
+		}
+	}
+
+	/**
+	 * Translate an equality comparison, according to the representation of its
+	 * operands. When one operand is a union (or box) and the other is not, the
+	 * latter is injected first.
+	 *
+	 * @param expr
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private Expression equals(WyilFile.Expr.BinaryOperator expr, Expression lhs, Expression rhs) {
+		WyilFile.Expr first = expr.getFirstOperand();
+		WyilFile.Expr second = expr.getSecondOperand();
+		if (rangeOf(first) != null && rangeOf(second) != null) {
+			return compare(expr, lhs, rhs, "equals");
+		}
+		WyilFile.Type type = first.getType();
+		if (boxOf(type) == null && membersOf(type) == null) {
+			type = second.getType();
+		}
+		lhs = convert(first.getType(), rangeOf(first), type, rangeOf(type), lhs);
+		rhs = convert(second.getType(), rangeOf(second), type, rangeOf(type), rhs);
+		List<WyilFile.Type> members = membersOf(type);
+		WyilFile.Expr other = resolve(first.getType()) instanceof WyilFile.Type.Null ? second : first;
+		if (resolve(other.getType()) instanceof WyilFile.Type.Null) {
+			return EQ(lhs, rhs);
+		} else if (resolve(first.getType()) instanceof WyilFile.Type.Null
+				|| resolve(second.getType()) instanceof WyilFile.Type.Null) {
+			// Comparing against null only requires checking the tag (or pointer)
+			Expression e = other == first ? lhs : rhs;
+			Expression n = other == first ? rhs : lhs;
+			if (members != null && layoutOf(members).kind == TAGGED) {
+				return EQ(FIELD_ACCESS(e, "tag"), INT_CONST(indexOfNull(members)));
+			}
+			return EQ(e, n);
+		}
+		String ops = opsOf(type);
+		if (ops != null) {
+			return INVOKE(ops + "_equals", Arrays.asList(lhs, rhs));
+		}
+		return EQ(lhs, rhs);
+	}
+
+	/**
+	 * Translate a runtime type test. For unions (and boxes), the members which
+	 * satisfy the test are determined at compile time as a set of tags, so the
+	 * test itself only examines the tag. Any bounds given by the invariant of the
+	 * tested type are then checked against the integer held by each matching
+	 * member. For example, testing a value of type <code>int|u8|null</code> for
+	 * <code>nat</code> checks that it either holds an <code>int</code> which is
+	 * not negative, or holds a <code>u8</code>. Other invariants are checked by
+	 * calling the function generated for the tested type on the value held.
+	 *
+	 * @param from  The type of the value being tested.
+	 * @param range The range of the value, if it is an integer.
+	 * @param type  The type being tested for.
+	 * @param e     The translated value.
+	 * @return
+	 */
+	private Expression test(WyilFile.Type from, IntegerRange range, WyilFile.Type type, Expression e) {
+		Decl.Type box = boxOf(from);
+		List<WyilFile.Type> members = box != null ? bodyOf(box) : membersOf(from);
+		if (members == null) {
+			// Not a union, hence the test is decided statically (bar any invariant)
+			return isCompatible(from, type) ? testInvariant(range, type, e) : BOOL_CONST(false);
+		}
+		List<WyilFile.Type> targets = membersOf(type);
+		BitSet tags = new BitSet();
+		for (int i = 0; i != members.size(); ++i) {
+			WyilFile.Type member = members.get(i);
+			if (isCompatible(member, type) || (targets != null && find(targets, member) >= 0)) {
+				tags.set(i);
+			}
+		}
+		Expression test = testTag(box, members, tags, e);
+		if (tags.isEmpty() || (rangeOf(type) == null && !hasInvariant(type))) {
+			return test;
+		}
+		// Check the invariant against the value held by each matching member
+		Map<Integer, Expression> bounds = new LinkedHashMap<>();
+		for (int i = tags.nextSetBit(0); i >= 0; i = tags.nextSetBit(i + 1)) {
+			IntegerRange r = rangeOf(members.get(i));
+			Expression b;
+			if (rangeOf(type) == null) {
+				b = testPredicate(type, extract(box, members, i, type, null, e));
+			} else if (r == null) {
+				throw new IllegalArgumentException("runtime test of constrained type: " + type);
+			} else {
+				b = testInvariant(r, type, extract(box, members, i, members.get(i), r, e));
+			}
+			if (!(b instanceof Expression.BoolConstant)) {
+				bounds.put(i, b);
+			}
+		}
+		if (bounds.isEmpty()) {
+			return test;
+		} else if (tags.cardinality() == 1) {
+			return isTrue(test) ? bounds.get(tags.nextSetBit(0)) : AND(test, bounds.get(tags.nextSetBit(0)));
+		}
+		test = null;
+		for (int i = tags.nextSetBit(0); i >= 0; i = tags.nextSetBit(i + 1)) {
+			BitSet tag = new BitSet();
+			tag.set(i);
+			Expression ith = testTag(box, members, tag, e);
+			ith = bounds.containsKey(i) ? AND(ith, bounds.get(i)) : ith;
+			test = test == null ? ith : OR(test, ith);
+		}
+		return test;
+	}
+
+	private static boolean isTrue(Expression e) {
+		return e instanceof Expression.BoolConstant && ((Expression.BoolConstant) e).getConstant();
+	}
+
+	/**
+	 * Test whether the tag of a union (or box) is one of a given set.
+	 *
+	 * @param box     The boxed type being tested, or <code>null</code>.
+	 * @param members The members of the union or box.
+	 * @param tags    The members which satisfy the test.
+	 * @param e       The translated value.
+	 * @return
+	 */
+	private Expression testTag(Decl.Type box, List<WyilFile.Type> members, BitSet tags, Expression e) {
+		int n = indexOfNull(members);
+		if (tags.cardinality() == members.size()) {
+			return BOOL_CONST(true);
+		} else if (tags.isEmpty()) {
+			return BOOL_CONST(false);
+		} else if (box != null) {
+			List<WyilFile.Type> rest = withoutNull(members);
+			if (rest.size() == 1) {
+				return tags.get(n) ? EQ(e, VAR("NULL")) : NEQ(e, VAR("NULL"));
+			}
+			// Renumber the tags, since the boxed union has no null member
+			BitSet restTags = new BitSet();
+			for (int i = 0, j = 0; i != members.size(); ++i) {
+				if (i != n && tags.get(i)) {
+					restTags.set(j);
+				}
+				j = (i != n) ? j + 1 : j;
+			}
+			if (restTags.isEmpty()) {
+				return EQ(e, VAR("NULL"));
+			}
+			Expression tag = FIELD_ACCESS(FIELD_DEREFERENCE(e, "value"), "tag");
+			Expression test = testTag(tag, restTags, rest.size());
+			if (n < 0) {
+				return test;
+			} else if (tags.get(n)) {
+				return OR(EQ(e, VAR("NULL")), test);
+			} else if (restTags.cardinality() == rest.size()) {
+				return NEQ(e, VAR("NULL"));
+			} else {
+				return AND(NEQ(e, VAR("NULL")), test);
+			}
+		}
+		switch (layoutOf(members).kind) {
+		case NULLABLE:
+			return tags.get(n) ? EQ(e, VAR("NULL")) : NEQ(e, VAR("NULL"));
+		case BOOL_NULL:
+			return tags.get(n) ? EQ(e, VAR("WY_BOOL_NULL")) : NEQ(e, VAR("WY_BOOL_NULL"));
+		default:
+			return testTag(FIELD_ACCESS(e, "tag"), tags, members.size());
+		}
+	}
+
+	/**
+	 * Test whether a tag is one of a given set. Where possible, this is a single
+	 * comparison (for one tag) or range check (for consecutive tags). Otherwise,
+	 * the set is encoded as a 64-bit mask which is indexed by the tag.
+	 *
+	 * @param tag  The tag being tested.
+	 * @param tags The tags which satisfy the test.
+	 * @param size The number of possible tags.
+	 * @return
+	 */
+	private static Expression testTag(Expression tag, BitSet tags, int size) {
+		int lo = tags.nextSetBit(0);
+		int hi = tags.length() - 1;
+		if (tags.cardinality() == size) {
+			return BOOL_CONST(true);
+		} else if (lo == hi) {
+			return EQ(tag, INT_CONST(lo));
+		} else if (tags.cardinality() == (hi - lo) + 1) {
+			Expression upper = LTEQ(tag, INT_CONST(hi));
+			return lo == 0 ? upper : AND(GTEQ(tag, INT_CONST(lo)), upper);
+		} else if (size <= 64) {
+			Expression mask = CAST(UINT(64), INT_CONST(tags.toLongArray()[0]));
+			return NEQ(BIT_AND(SHR(mask, tag), INT_CONST(1)), INT_CONST(0));
+		}
+		Expression test = null;
+		for (int i = lo; i >= 0; i = tags.nextSetBit(i + 1)) {
+			Expression ith = EQ(tag, INT_CONST(i));
+			test = test == null ? ith : OR(test, ith);
+		}
+		return test;
+	}
+
+	/**
+	 * Test whether a value satisfies the invariant of a type. For integers, this
+	 * checks the bounds given by the invariant, where these are not already
+	 * implied by its range.
+	 *
+	 * @param range The range of the value being tested, or <code>null</code> if it
+	 *              is not an integer.
+	 * @param type  The type being tested for.
+	 * @param e     The translated value.
+	 * @return
+	 */
+	private Expression testInvariant(IntegerRange range, WyilFile.Type type, Expression e) {
+		IntegerRange target = rangeOf(type);
+		if (target == null) {
+			return testPredicate(type, e);
+		} else if (range == null) {
+			return BOOL_CONST(true);
+		}
+		Type.Int fixed = toFixedWidth(range);
+		Expression test = null;
+		BigInteger lo = target.getLowerBound();
+		BigInteger hi = target.getUpperBound();
+		if (lo != null && (range.getLowerBound() == null || range.getLowerBound().compareTo(lo) < 0)) {
+			test = testBound(fixed, e, lo, "ge");
+		}
+		if (hi != null && (range.getUpperBound() == null || range.getUpperBound().compareTo(hi) > 0)) {
+			Expression upper = testBound(fixed, e, hi, "le");
+			test = test == null ? upper : AND(test, upper);
+		}
+		return test == null ? BOOL_CONST(true) : test;
+	}
+
+	/**
+	 * Check whether a given type, or any type it is defined in terms of, has an
+	 * invariant.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean hasInvariant(WyilFile.Type type) {
+		for (WyilFile.Type t = type; t instanceof WyilFile.Type.Nominal;) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) t).getLink().getTarget();
+			if (decl.getInvariant().size() > 0) {
+				return true;
+			}
+			t = isRecursive(decl) ? null : decl.getType();
+		}
+		return false;
+	}
+
+	/**
+	 * Test whether a (non-integer) value satisfies the invariant of a type being
+	 * tested for, along with those of the types it is defined in terms of. Each
+	 * is tested by calling the function following the type's definition, which
+	 * is generated for any type tested in this way. Hence, the invariants of
+	 * recursive types (and of types declared in other modules) cannot be tested.
+	 *
+	 * @param type The type being tested for.
+	 * @param e    The translated value, represented as that type.
+	 * @return
+	 */
+	private Expression testPredicate(WyilFile.Type type, Expression e) {
+		Expression test = null;
+		for (WyilFile.Type t = type; t instanceof WyilFile.Type.Nominal;) {
+			Decl.Type decl = ((WyilFile.Type.Nominal) t).getLink().getTarget();
+			if (decl.getInvariant().size() > 0) {
+				if (isRecursive(decl) || !tested.contains(decl)) {
+					throw new IllegalArgumentException("runtime test of constrained type: " + type);
+				}
+				// The type may be defined after its first test
+				String name = decl.getName().get() + "_inv";
+				String vn = decl.getVariableDeclaration().getName().get();
+				List<Declaration.Parameter> params = Arrays.asList(new Declaration.Parameter(canonical(decl.getType()), vn));
+				declare(new Declaration.Method(BOOL(), name, params, null, STATIC_INLINE));
+				// NOTE: the invariants of underlying types are tested first
+				Expression ith = INVOKE(name, Arrays.asList(e));
+				test = test == null ? ith : AND(ith, test);
+			}
+			t = isRecursive(decl) ? null : decl.getType();
+		}
+		return test == null ? BOOL_CONST(true) : test;
+	}
+
+	private static Expression testBound(Type.Int fixed, Expression e, BigInteger bound, String op) {
+		if (fixed != null) {
+			// Bounds beyond the fixed-width type would already be implied
+			Expression c = INT_CONST(bound.longValueExact());
+			e = (fixed.getWidth() == 32 && !fixed.isSigned()) ? CAST(INT(64), e) : e;
+			return op.equals("ge") ? GTEQ(e, c) : LTEQ(e, c);
+		}
+		Expression c;
+		if (bound.compareTo(MIN_SMALL_INT) >= 0 && bound.compareTo(MAX_SMALL_INT) <= 0) {
+			c = INT_CONST_WY(bound.longValueExact());
+		} else {
+			c = INVOKE("wy_int_parse", Arrays.asList(STRING_CONST(bound.toString())));
+		}
+		return INVOKE("wy_int_" + op, Arrays.asList(e, c));
+	}
+
+	// =======================================================================================================
+	// Integers
+	// =======================================================================================================
+
+	/**
+	 * Determine the range of values permitted by a given type, or
+	 * <code>null</code> if it is not an integer type. For nominal types, this
+	 * includes any bounds given by their invariants.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private IntegerRange rangeOf(WyilFile.Type type) {
+		if (type instanceof WyilFile.Type.Int) {
+			return IntegerRange.UNBOUNDED;
+		} else if (type instanceof WyilFile.Type.Nominal) {
+			return rangeOf(((WyilFile.Type.Nominal) type).getLink().getTarget());
+		} else {
+			return null;
+		}
+	}
+
+	private IntegerRange rangeOf(WyilFile.Decl.Type decl) {
+		if (!typeRanges.containsKey(decl)) {
+			// Guard against recursive types
+			typeRanges.put(decl, null);
+			IntegerRange r = rangeOf(decl.getType());
+			if (r != null) {
+				r = r.intersect(IntegerRange.infer(decl.getVariableDeclaration(), decl.getInvariant()));
+			}
+			typeRanges.put(decl, r);
+		}
+		return typeRanges.get(decl);
+	}
+
+	/**
+	 * Determine the range of values permitted for a given parameter. For functions
+	 * and methods this includes any bounds given by the precondition, provided the
+	 * parameter is never assigned (since the precondition only holds on entry).
+	 * However, exported declarations whose precondition is checked must accept
+	 * any value, since they may be called from outside the module.
+	 *
+	 * @param decl
+	 * @param index
+	 * @return
+	 */
+	private IntegerRange rangeOf(Decl.Callable decl, int index) {
+		Decl.Variable param = decl.getParameters().get(index);
+		if (!parameterRanges.containsKey(param)) {
+			IntegerRange r = rangeOf(param.getType());
+			if (r != null && decl instanceof Decl.FunctionOrMethod) {
+				Decl.FunctionOrMethod fm = (Decl.FunctionOrMethod) decl;
+				if (!isAssigned(fm.getBody(), param) && !(isExported(fm) && checks != CheckLevel.NONE)) {
+					r = r.intersect(IntegerRange.infer(param, fm.getRequires()));
+				}
+			}
+			parameterRanges.put(param, r);
+		}
+		return parameterRanges.get(param);
+	}
+
+	/**
+	 * Determine the range of values which may be produced by a given expression,
+	 * or <code>null</code> if it is not an integer expression.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private IntegerRange rangeOf(WyilFile.Expr expr) {
+		if (expr instanceof VariableAccess) {
+			// Variables are represented according to their declared type
+			Decl.Variable var = ((VariableAccess) expr).getVariableDeclaration();
+			if (quantified.contains(var)) {
+				return rangeOfQuantified(var);
+			}
+			IntegerRange r = rangeOf(var.getType());
+			if (r != null && enclosing instanceof Decl.Callable) {
+				Tuple<Decl.Variable> params = ((Decl.Callable) enclosing).getParameters();
+				for (int i = 0; i != params.size(); ++i) {
+					if (params.get(i) == var) {
+						return rangeOf((Decl.Callable) enclosing, i);
+					}
+				}
+			}
+			if (r != null) {
+				return r;
+			}
+		}
+		return rangeOf(expr.getType());
+	}
+
+	/**
+	 * Determine the narrowest fixed-width type which can hold every value in a
+	 * given range, or <code>null</code> if none exists (in which case the value
+	 * is represented as a <code>wy_int</code>). Unsigned 64-bit values are not
+	 * used, since they cannot be converted to and from <code>wy_int</code>
+	 * directly.
+	 *
+	 * @param range
+	 * @return
+	 */
+	private static Type.Int toFixedWidth(IntegerRange range) {
+		if (range == null || !range.isBounded()) {
+			return null;
+		} else if (range.getLowerBound().signum() >= 0) {
+			for (int width = 8; width <= 32; width *= 2) {
+				if (range.within(BigInteger.ZERO, BigInteger.ONE.shiftLeft(width).subtract(BigInteger.ONE))) {
+					return (Type.Int) UINT(width);
+				}
+			}
+		}
+		for (int width = 8; width <= 64; width *= 2) {
+			BigInteger max = BigInteger.ONE.shiftLeft(width - 1);
+			if (range.within(max.negate(), max.subtract(BigInteger.ONE))) {
+				return (Type.Int) INT(width);
+			}
+		}
+		return null;
+	}
+
+	private Type.Int toFixedWidth(WyilFile.Expr expr) {
+		return toFixedWidth(rangeOf(expr));
+	}
+
+	/**
+	 * Convert the value of an integer expression into a <code>wy_int</code>, as
+	 * required for general arithmetic. This is a no-operation unless the
+	 * expression has a fixed-width representation.
+	 *
+	 * @param expr The expression whose value is being converted.
+	 * @param e    The translated expression.
+	 * @return
+	 */
+	private Expression widen(WyilFile.Expr expr, Expression e) {
+		return widen(toFixedWidth(expr), e);
+	}
+
+	private static Expression widen(Type.Int type, Expression e) {
+		if (type == null) {
+			return e;
+		} else if (type.getWidth() <= 32) {
+			return INVOKE("WY_INT", Arrays.asList(e));
+		} else {
+			return INVOKE("wy_int_from_i64", Arrays.asList(e));
+		}
+	}
+
+	/**
+	 * Coerce a value being stored into a location (e.g. a variable, parameter or
+	 * field) into the representation used by that location. This copies arrays
+	 * as necessary, and then converts the value as described for
+	 * <code>convert()</code>.
+	 *
+	 * @param target The type of the location being stored into.
+	 * @param expr   The expression whose value is being stored.
+	 * @param e      The translated expression.
+	 * @return
+	 */
+	private Expression coerce(WyilFile.Type target, WyilFile.Expr expr, Expression e) {
+		return coerce(target, target == null ? null : rangeOf(target), expr, e);
+	}
+
+	/**
+	 * As above, but where the range of the location may be narrower than its type
+	 * suggests (e.g. for a parameter bounded by a precondition).
+	 *
+	 * @param target The type of the location being stored into.
+	 * @param range  The range of the location, or <code>null</code> if it does not
+	 *               hold integers.
+	 * @param expr   The expression whose value is being stored.
+	 * @param e      The translated expression.
+	 * @return
+	 */
+	private Expression coerce(WyilFile.Type target, IntegerRange range, WyilFile.Expr expr, Expression e) {
+		e = copy(expr, e);
+		if (target == null) {
+			return widen(expr, e);
+		}
+		return convert(expr.getType(), rangeOf(expr), target, range, e);
+	}
+
+	/**
+	 * Convert between the fixed-width and <code>wy_int</code> representations of
+	 * integers in given ranges. Narrowing conversions are checked at runtime,
+	 * unless the value is a constant known to be in range. This holds even when
+	 * the module is claimed to be verified, since a value out of range would
+	 * otherwise be silently truncated.
+	 *
+	 * @param source The range of the value being converted.
+	 * @param target The range of the representation being converted to.
+	 * @param e      The translated value.
+	 * @return
+	 */
+	private Expression convert(IntegerRange source, IntegerRange target, Expression e) {
+		if (toFixedWidth(target) == null) {
+			return widen(toFixedWidth(source), e);
+		} else if (toFixedWidth(source) != null) {
+			// C handles conversions between fixed-width types
+			return e;
+		}
+		Expression lo = INT_CONST(target.getLowerBound().longValueExact());
+		Expression hi = INT_CONST(target.getUpperBound().longValueExact());
+		if (e instanceof Expression.Invoke) {
+			Expression.Invoke i = (Expression.Invoke) e;
+			Expression arg = i.getArguments().isEmpty() ? null : i.getArguments().get(0);
+			if (i.getName().equals("WY_INT") && arg instanceof Expression.IntConstant) {
+				BigInteger c = BigInteger.valueOf(((Expression.IntConstant) arg).getConstant());
+				if (new IntegerRange(c, c).within(target.getLowerBound(), target.getUpperBound())) {
+					// Constant known to be in range
+					return arg;
+				}
+			} else if (i.getName().equals("wy_int_from_i64")) {
+				// Value already computed natively
+				count("narrowing", false);
+				mayFail = true;
+				return INVOKE("wy_i64_narrow", Arrays.asList(arg, lo, hi));
+			}
+		}
+		count("narrowing", false);
+		mayFail = true;
+		return INVOKE("wy_int_narrow", Arrays.asList(e, lo, hi));
+	}
+
+	/**
+	 * Obtain an expression for the value of an integer expression which can be
+	 * safely operated on natively (i.e. using 64-bit C arithmetic), or
+	 * <code>null</code> if this is not possible. This applies to fixed-width
+	 * values of at most 32 bits and to small constants.
+	 *
+	 * @param expr     The expression whose value is required.
+	 * @param e        The translated expression.
+	 * @param multiply Whether the value will be multiplied, in which case unsigned
+	 *                 32-bit values are excluded to avoid overflow.
+	 * @return
+	 */
+	private Expression toNative(WyilFile.Expr expr, Expression e, boolean multiply) {
+		Type.Int type = toFixedWidth(expr);
+		if (type != null) {
+			if (type.getWidth() <= 16 || (type.getWidth() == 32 && (type.isSigned() || !multiply))) {
+				return e;
+			}
+		} else if (e instanceof Expression.Invoke) {
+			Expression.Invoke i = (Expression.Invoke) e;
+			if (i.getName().equals("WY_INT") && i.getArguments().get(0) instanceof Expression.IntConstant) {
+				long c = ((Expression.IntConstant) i.getArguments().get(0)).getConstant();
+				if (c >= Integer.MIN_VALUE && c <= Integer.MAX_VALUE) {
+					return i.getArguments().get(0);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Translate an integer arithmetic operation. When both operands can be
+	 * operated on natively this cannot overflow 64 bits, and the result is
+	 * computed directly. Otherwise, the <code>wy_int</code> operation is used.
+	 *
+	 * @param expr
+	 * @param lhs
+	 * @param rhs
+	 * @param op   The name of the operation (e.g. "add")
+	 * @return
+	 */
+	private Expression arithmetic(WyilFile.Expr.BinaryOperator expr, Expression lhs, Expression rhs, String op) {
+		WyilFile.Expr first = expr.getFirstOperand();
+		WyilFile.Expr second = expr.getSecondOperand();
+		Expression l = toNative(first, lhs, op.equals("mul"));
+		Expression r = toNative(second, rhs, op.equals("mul"));
+		if (l != null && r != null && !op.equals("div") && !op.equals("rem")) {
+			Expression e;
+			l = CAST(INT(64), l);
+			switch (op) {
+			case "add":
+				e = ADD(l, r);
+				break;
+			case "sub":
+				e = SUB(l, r);
+				break;
+			default:
+				e = MUL(l, r);
+			}
+			return INVOKE("wy_int_from_i64", Arrays.asList(e));
+		}
+		return INVOKE("wy_int_" + op, Arrays.asList(widen(first, lhs), widen(second, rhs)));
+	}
+
+	/**
+	 * Translate an integer comparison. When both operands have a fixed-width
+	 * representation (or are constants), they are compared directly.
+	 *
+	 * @param expr
+	 * @param lhs
+	 * @param rhs
+	 * @param op   The name of the comparison (e.g. "lt")
+	 * @return
+	 */
+	private Expression compare(WyilFile.Expr.BinaryOperator expr, Expression lhs, Expression rhs, String op) {
+		WyilFile.Expr first = expr.getFirstOperand();
+		WyilFile.Expr second = expr.getSecondOperand();
+		Expression l = toComparable(first, lhs);
+		Expression r = toComparable(second, rhs);
+		if (l != null && r != null) {
+			switch (op) {
+			case "lt":
+				return LT(l, r);
+			case "le":
+				return LTEQ(l, r);
+			case "gt":
+				return GT(l, r);
+			case "ge":
+				return GTEQ(l, r);
+			default:
+				return EQ(l, r);
+			}
+		}
+		return INVOKE("wy_int_" + op, Arrays.asList(widen(first, lhs), widen(second, rhs)));
+	}
+
+	private Expression toComparable(WyilFile.Expr expr, Expression e) {
+		Type.Int type = toFixedWidth(expr);
+		if (type != null) {
+			// Avoid unsigned comparisons when mixed with signed values
+			return (type.getWidth() == 32 && !type.isSigned()) ? CAST(INT(64), e) : e;
+		} else if (e instanceof Expression.Invoke) {
+			Expression.Invoke i = (Expression.Invoke) e;
+			if (i.getName().equals("WY_INT") && i.getArguments().get(0) instanceof Expression.IntConstant) {
+				return i.getArguments().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine the items of an array literal as they would be written in
+	 * constant data, or <code>null</code> if any is not a constant. For
+	 * simplicity, only arrays whose elements are copied bitwise (and are not
+	 * packed) are considered.
+	 * Integers are written in their tagged form (e.g. <code>WY_INT(1)</code>
+	 * becomes <code>3</code>), which is more compact.
+	 *
+	 * @param type
+	 * @param items The translated items.
+	 * @return
+	 */
+	private List<Expression> constantsOf(WyilFile.Type.Array type, List<Expression> items) {
+		if (opsOf(type.getElement()) != null || canonical(type.getElement()) instanceof Type.Bool) {
+			return null;
+		}
+		ArrayList<Expression> constants = new ArrayList<>();
+		for (Expression item : items) {
+			if (item instanceof Expression.BoolConstant || item instanceof Expression.IntConstant) {
+				constants.add(item);
+			} else if (item instanceof Expression.Invoke && ((Expression.Invoke) item).getName().equals("WY_INT")
+					&& ((Expression.Invoke) item).getArguments().get(0) instanceof Expression.IntConstant) {
+				long c = ((Expression.IntConstant) ((Expression.Invoke) item).getArguments().get(0)).getConstant();
+				constants.add(INT_CONST((c << 1) | 1));
+			} else {
+				return null;
+			}
+		}
+		return constants;
+	}
+
+	/**
+	 * Declare read-only data holding the given items of a constant array,
+	 * unless identical data has already been declared. The data is named after
+	 * its contents, so identical data declared by different modules is also
+	 * shared.
+	 *
+	 * @param type
+	 * @param items The items, as determined by <code>constantsOf()</code>.
+	 * @return The name of the data.
+	 */
+	private String constantArray(Type.Array type, List<Expression> items) {
+		String key = keyOf(type, items);
+		String prefix = "wy_const_" + Integer.toHexString(key.hashCode());
+		for (int i = 0;; ++i) {
+			String name = i == 0 ? prefix : prefix + "_" + i;
+			Declaration.ConstantArrayDef existing = findConstantArray(name);
+			if (existing == null) {
+				Type element = type.getElement();
+				boolean binary = items.size() >= MIN_BINARY_ITEMS && element instanceof Type.Int
+						&& ((Type.Int) element).getWidth() == 8 && !((Type.Int) element).isSigned();
+				declare(new Declaration.ConstantArrayDef(name, type, items, binary));
+				return name;
+			} else if (keyOf(existing.getType(), existing.getItems()).equals(key)) {
+				return name;
+			}
+		}
+	}
+
+	private Declaration.ConstantArrayDef findConstantArray(String name) {
+		ArrayList<Declaration> decls = new ArrayList<>(auxiliaries);
+		decls.addAll(cFile.getDeclarations());
+		for (Declaration d : decls) {
+			if (d instanceof Declaration.ConstantArrayDef && ((Declaration.ConstantArrayDef) d).getName().equals(name)) {
+				return (Declaration.ConstantArrayDef) d;
+			}
+		}
+		return null;
+	}
+
+	private static String keyOf(Type.Array type, List<Expression> items) {
+		StringBuilder key = new StringBuilder(type.getName());
+		for (Expression item : items) {
+			if (item instanceof Expression.BoolConstant) {
+				key.append(((Expression.BoolConstant) item).getConstant() ? ",t" : ",f");
+			} else {
+				key.append(",").append(((Expression.IntConstant) item).getConstant());
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Check whether a given expression is a constant represented by zero bits
+	 * (e.g. <code>false</code> or a fixed-width zero). Note that the
+	 * <code>wy_int</code> zero is not, since small integers are tagged.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private static boolean isZeroBits(Expression e) {
+		if (e instanceof Expression.BoolConstant) {
+			return !((Expression.BoolConstant) e).getConstant();
+		} else if (e instanceof Expression.IntConstant) {
+			return ((Expression.IntConstant) e).getConstant() == 0;
+		} else if (e instanceof Expression.Cast) {
+			return isZeroBits(((Expression.Cast) e).getOperand());
+		}
+		return false;
+	}
+
+	/**
+	 * Convert an integer into a native value suitable for indexing an array (or
+	 * shifting a byte).
+	 *
+	 * @param expr The expression whose value is being converted.
+	 * @param e    The translated expression.
+	 * @return
+	 */
+	private Expression toIndex(WyilFile.Expr expr, Expression e) {
+		if (toFixedWidth(expr) != null) {
+			return e;
+		}
+		return INVOKE("wy_int_to_i64", Arrays.asList(e));
+	}
+
+	/**
+	 * Check whether a given variable is assigned anywhere within a given item
+	 * (e.g. the body of a function).
+	 *
+	 * @param item
+	 * @param var
+	 * @return
+	 */
+	private static boolean isAssigned(SyntacticItem item, Decl.Variable var) {
+		if (item instanceof Assign) {
+			for (WyilFile.LVal lv : ((Assign) item).getLeftHandSide()) {
+				if (lv instanceof VariableAccess && ((VariableAccess) lv).getVariableDeclaration() == var) {
+					return true;
+				}
+			}
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			if (isPartOfBody(item.get(i)) && isAssigned(item.get(i), var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
      * Determine the appropriate mangled string for a given named declaration. This is critical to ensuring that
      * overloaded declarations do not clash.
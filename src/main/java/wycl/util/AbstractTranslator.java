@@ -949,12 +949,18 @@ public abstract class AbstractTranslator<D, S, E, T> {
 			return visitArrayType((Type.Array)type);
 		case TYPE_bool:
 			return visitBoolType((Type.Bool)type);
+		case TYPE_function:
+		case TYPE_method:
+		case TYPE_property:
+			return visitCallableType((Type.Callable)type);
 		case TYPE_byte:
 			return visitByteType((Type.Byte)type);
 		case TYPE_int:
 			return visitIntType((Type.Int)type);
 		case TYPE_nominal:
 			return visitNominalType((Type.Nominal)type);
+		case TYPE_null:
+			return visitNullType((Type.Null)type);
 		case TYPE_record:
 			return visitRecordType((Type.Record)type);
 		case TYPE_reference:
@@ -977,6 +983,10 @@ public abstract class AbstractTranslator<D, S, E, T> {
 		return constructBoolType(type);
 	}
 
+	public T visitCallableType(Type.Callable type) {
+		return constructCallableType(type);
+	}
+
 	public T visitByteType(Type.Byte type) {
 		return constructByteType(type);
 	}
@@ -989,6 +999,10 @@ public abstract class AbstractTranslator<D, S, E, T> {
 		return constructNominalType(type);
 	}
 
+	public T visitNullType(Type.Null type) {
+		return constructNullType(type);
+	}
+
 	public T visitRecordType(Type.Record type) {
 		ArrayList<Pair<T,String>> types = new ArrayList<>();
 		WyilFile.Tuple<Type.Field> fields = type.getFields();
@@ -1205,10 +1219,14 @@ public abstract class AbstractTranslator<D, S, E, T> {
 
 	public abstract T constructByteType(Type.Byte type);
 
+	public abstract T constructCallableType(Type.Callable type);
+
 	public abstract T constructIntType(Type.Int type);
 
 	public abstract T constructNominalType(Type.Nominal type);
 
+	public abstract T constructNullType(Type.Null type);
+
 	public abstract T constructRecordType(Type.Record type, List<Pair<T,String>> types);
 
 	public abstract T constructReferenceType(Type.Reference type, T element);
@@ -1310,7 +1328,7 @@ public abstract class AbstractTranslator<D, S, E, T> {
 	 * @author David J. Pearce
 	 *
 	 */
-	private static class CallableScope extends EnclosingScope {
+	protected static class CallableScope extends EnclosingScope {
 		private final Decl.Callable declaration;
 
 		public CallableScope(Decl.Callable declaration) {
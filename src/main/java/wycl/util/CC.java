@@ -1,9 +1,7 @@
 package wycl.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 
 /**
@@ -15,18 +13,33 @@ import java.util.ArrayList;
 public class CC {
 	private final String ccCommand = "gcc";
 	private File target = new File("a.out");
+	private final ArrayList<String> defines = new ArrayList<>();
 
 	public CC setTarget(File target) {
 		this.target = target;
 		return this;
 	}
 
+	/**
+	 * Define a preprocessor macro (e.g. <code>WY_STATS</code>) when compiling.
+	 *
+	 * @param define
+	 * @return
+	 */
+	public CC addDefine(String define) {
+		this.defines.add(define);
+		return this;
+	}
+
 	public Result run(File... files) {
 		ArrayList<String> args = new ArrayList<>();
 		// String[] args = new String[files.length + 4];
 		args.add(ccCommand);
 		args.add("-o");
 		args.add(target.toString());
+		for (String define : defines) {
+			args.add("-D" + define);
+		}
 		for (int i = 0; i != files.length; ++i) {
 			args.add(files[i].toString());
 		}
@@ -38,13 +51,13 @@ public class CC {
 			Process child = builder.start();
 			try {
 				// Second, read the result whilst checking for a timeout
-				InputStream input = child.getInputStream();
-				InputStream error = child.getErrorStream();
+				StreamCapture stdout = new StreamCapture(child.getInputStream());
+				StreamCapture stderr = new StreamCapture(child.getErrorStream());
 				int exitCode = child.waitFor();
-				byte[] stdout = readInputStream(input);
-				byte[] stderr = readInputStream(error);
+				stdout.await();
+				stderr.await();
 				if (exitCode != 0) {
-					return new Result.Error(exitCode, stdout, stderr);
+					return new Result.Error(exitCode, stdout.getBytes(), stderr.getBytes());
 				} else {
 					return new Result.Success();
 				}
@@ -112,21 +125,4 @@ public class CC {
 			}
 		}
 	}
-
-    /**
-     * Read an input stream entirely into a byte array.
-     *
-     * @param input
-     * @return
-     * @throws IOException
-     */
-    private static byte[] readInputStream(InputStream input) throws IOException {
-        byte[] buffer = new byte[1024];
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        while (input.available() > 0) {
-            int count = input.read(buffer);
-            output.write(buffer, 0, count);
-        }
-        return output.toByteArray();
-    }
 }
@@ -0,0 +1,191 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import wycc.lang.SyntacticItem;
+import wycc.util.AbstractCompilationUnit.Tuple;
+import wycc.util.Pair;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Expr;
+import wyil.lang.WyilFile.Stmt;
+
+/**
+ * Determines the functions (or lambdas) which may be invoked by indirect
+ * invocations within a module. For each variable, this tracks the lambdas and
+ * function references which may flow into it through initialisers,
+ * assignments and the arguments of direct invocations. For example:
+ *
+ * <pre>
+ * function apply(function(int)->(int) f, int x) -> (int):
+ *     return f(x)
+ * ...
+ * apply(&inc, 1)
+ * </pre>
+ *
+ * Here, <code>f</code> may only be <code>inc</code>, provided
+ * <code>apply</code> cannot be called from outside the module. Where some
+ * value of unknown origin may flow into a variable (e.g. the result of an
+ * invocation), its targets are marked as inexact. That is, they are the
+ * targets known to be possible, rather than all those possible.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class CallTargets {
+	/**
+	 * The targets found so far for each variable.
+	 */
+	private final Map<Decl.Variable, Set<Decl.Callable>> targets = new HashMap<>();
+
+	/**
+	 * Those variables which may hold values of unknown origin.
+	 */
+	private final Set<Decl.Variable> inexact = new HashSet<>();
+
+	/**
+	 * Each pair represents a value which may flow into a variable.
+	 */
+	private final List<Pair<Decl.Variable, Expr>> flows = new ArrayList<>();
+
+	public CallTargets(WyilFile wf) {
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				if (decl instanceof Decl.Callable) {
+					Decl.Callable callable = (Decl.Callable) decl;
+					if (isExternal(callable)) {
+						inexact.addAll(callable.getParameters());
+					}
+					findFlows(decl);
+				}
+			}
+		}
+		// Propagate targets until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Pair<Decl.Variable, Expr> flow : flows) {
+				Decl.Variable var = flow.first();
+				Set<Decl.Callable> ts = targets.computeIfAbsent(var, v -> new LinkedHashSet<>());
+				changed |= ts.addAll(getTargets(flow.second()));
+				if (!isExact(flow.second())) {
+					changed |= inexact.add(var);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the targets which a given expression may evaluate to. These are all the
+	 * possible targets if the expression is exact, and otherwise only those known
+	 * to be possible.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public Set<Decl.Callable> getTargets(Expr expr) {
+		if (expr instanceof Expr.LambdaAccess) {
+			return Collections.singleton(((Expr.LambdaAccess) expr).getBinding().getLink().getTarget());
+		} else if (expr instanceof Decl.Lambda) {
+			return Collections.singleton((Decl.Lambda) expr);
+		} else if (expr instanceof Expr.VariableAccess) {
+			Decl.Variable var = ((Expr.VariableAccess) expr).getVariableDeclaration();
+			return targets.getOrDefault(var, Collections.emptySet());
+		} else {
+			return Collections.emptySet();
+		}
+	}
+
+	/**
+	 * Check whether the targets of a given expression are all those possible.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public boolean isExact(Expr expr) {
+		if (expr instanceof Expr.LambdaAccess || expr instanceof Decl.Lambda) {
+			return true;
+		} else if (expr instanceof Expr.VariableAccess) {
+			return !inexact.contains(((Expr.VariableAccess) expr).getVariableDeclaration());
+		} else {
+			return false;
+		}
+	}
+
+	private void findFlows(SyntacticItem item) {
+		if (item instanceof Stmt.Initialiser) {
+			Stmt.Initialiser stmt = (Stmt.Initialiser) item;
+			Tuple<Decl.Variable> vars = stmt.getVariables();
+			if (vars.size() == 1 && stmt.hasInitialiser()) {
+				flows.add(new Pair<>(vars.get(0), stmt.getInitialiser()));
+			} else if (stmt.hasInitialiser()) {
+				inexact.addAll(vars);
+			}
+		} else if (item instanceof Stmt.Assign) {
+			Tuple<WyilFile.LVal> lhs = ((Stmt.Assign) item).getLeftHandSide();
+			Tuple<Expr> rhs = ((Stmt.Assign) item).getRightHandSide();
+			for (int i = 0; i != lhs.size(); ++i) {
+				if (lhs.get(i) instanceof Expr.VariableAccess) {
+					Decl.Variable var = ((Expr.VariableAccess) lhs.get(i)).getVariableDeclaration();
+					if (lhs.size() == rhs.size()) {
+						flows.add(new Pair<>(var, rhs.get(i)));
+					} else {
+						inexact.add(var);
+					}
+				}
+			}
+		} else if (item instanceof Expr.Invoke) {
+			Expr.Invoke expr = (Expr.Invoke) item;
+			Tuple<Decl.Variable> params = expr.getBinding().getLink().getTarget().getParameters();
+			Tuple<Expr> args = expr.getOperands();
+			for (int i = 0; i != args.size(); ++i) {
+				flows.add(new Pair<>(params.get(i), args.get(i)));
+			}
+		} else if (item instanceof Expr.LambdaAccess) {
+			// The target may now be invoked with anything
+			inexact.addAll(((Expr.LambdaAccess) item).getBinding().getLink().getTarget().getParameters());
+		} else if (item instanceof Decl.Lambda) {
+			inexact.addAll(((Decl.Lambda) item).getParameters());
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem child = item.get(i);
+			// Ignore declarations reachable from this item (e.g. invocation targets)
+			if (!(child instanceof Decl) || child instanceof Decl.Variable || child instanceof Decl.Lambda) {
+				findFlows(child);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given declaration may be invoked from outside the module,
+	 * in which case its parameters may hold anything.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private static boolean isExternal(Decl.Callable decl) {
+		return decl.getModifiers().match(WyilFile.Modifier.Public.class) != null
+				|| decl.getModifiers().match(WyilFile.Modifier.Export.class) != null
+				|| decl.getModifiers().match(WyilFile.Modifier.Native.class) != null;
+	}
+}
@@ -0,0 +1,191 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import wycc.lang.SyntacticItem;
+import wyil.lang.WyilFile;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Expr;
+import wyil.lang.WyilFile.Stmt;
+
+/**
+ * Decides how each function, method and property in a module should be
+ * inlined, based on the size of its body and how often it is called. Since
+ * every module is translated into the same C file, nothing other than exported
+ * (or native) declarations need be visible outside it. Hence, the remainder are
+ * declared <code>static</code>, so the C compiler is free to inline them.
+ * Small pure functions (and properties) are always substituted at their call
+ * sites, whilst others which are small or rarely called are only suggested for
+ * inlining. Recursive declarations are never inlined.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Inliner {
+	/**
+	 * The largest body (in terms of statements and expressions) of a pure
+	 * function which is always substituted at its call sites.
+	 */
+	private static final int MAX_SUBSTITUTED_SIZE = 16;
+
+	/**
+	 * The most code (in terms of statements and expressions) which inlining a
+	 * declaration may duplicate across its call sites.
+	 */
+	private static final int MAX_DUPLICATED_SIZE = 128;
+
+	public enum Decision {
+		/**
+		 * Visible outside the module, hence cannot be inlined.
+		 */
+		EXTERNAL,
+		/**
+		 * Not inlined, though the C compiler may still choose to.
+		 */
+		STATIC,
+		/**
+		 * Suggested for inlining.
+		 */
+		INLINE,
+		/**
+		 * Always substituted at call sites.
+		 */
+		SUBSTITUTE
+	}
+
+	private final Map<Decl.Callable, Decision> decisions = new LinkedHashMap<>();
+	private final Map<Decl.Callable, Integer> sizes = new HashMap<>();
+	private final Map<Decl.Callable, Integer> calls = new HashMap<>();
+	private final Map<Decl.Callable, Set<Decl.Callable>> callees = new HashMap<>();
+
+	public Inliner(WyilFile wf) {
+		ArrayList<Decl.Callable> decls = new ArrayList<>();
+		for (Decl.Unit unit : wf.getModule().getUnits()) {
+			for (Decl decl : unit.getDeclarations()) {
+				if (decl instanceof Decl.Callable) {
+					Decl.Callable callable = (Decl.Callable) decl;
+					callees.put(callable, new HashSet<>());
+					sizes.put(callable, analyse(callable, decl, 1));
+					decls.add(callable);
+				}
+			}
+		}
+		for (Decl.Callable decl : decls) {
+			decisions.put(decl, decide(decl));
+		}
+	}
+
+	/**
+	 * Get the decision made for a given declaration.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	public Decision getDecision(Decl.Callable decl) {
+		return decisions.getOrDefault(decl, Decision.EXTERNAL);
+	}
+
+	/**
+	 * Describe the decision made for each declaration, along with the size and
+	 * (estimated) number of calls it was based on.
+	 *
+	 * @return
+	 */
+	public List<String> getReport() {
+		ArrayList<String> report = new ArrayList<>();
+		for (Map.Entry<Decl.Callable, Decision> e : decisions.entrySet()) {
+			Decl.Callable decl = e.getKey();
+			String entry = decl.getQualifiedName() + ": " + e.getValue().toString().toLowerCase() + " (size "
+					+ sizes.get(decl) + ", calls " + calls.getOrDefault(decl, 0);
+			report.add(entry + (isRecursive(decl) ? ", recursive)" : ")"));
+		}
+		return report;
+	}
+
+	private Decision decide(Decl.Callable decl) {
+		int size = sizes.get(decl);
+		int n = calls.getOrDefault(decl, 0);
+		if (isExternal(decl)) {
+			return Decision.EXTERNAL;
+		} else if (isRecursive(decl)) {
+			return Decision.STATIC;
+		} else if (!(decl instanceof Decl.Method) && size <= MAX_SUBSTITUTED_SIZE) {
+			return Decision.SUBSTITUTE;
+		} else if (n <= 1 || size * (n - 1) <= MAX_DUPLICATED_SIZE) {
+			return Decision.INLINE;
+		}
+		return Decision.STATIC;
+	}
+
+	/**
+	 * Determine the size of a given item, whilst recording the calls it makes.
+	 * Calls within loops are assumed to happen more often.
+	 *
+	 * @param caller The declaration enclosing the item.
+	 * @param item
+	 * @param weight The weight of each call found.
+	 * @return
+	 */
+	private int analyse(Decl.Callable caller, SyntacticItem item, int weight) {
+		int size = (item instanceof Stmt || item instanceof Expr) ? 1 : 0;
+		if (item instanceof Expr.Invoke) {
+			Decl.Callable callee = ((Expr.Invoke) item).getBinding().getLink().getTarget();
+			calls.merge(callee, weight, Integer::sum);
+			callees.get(caller).add(callee);
+		} else if (item instanceof Stmt.While || item instanceof Stmt.DoWhile || item instanceof Stmt.For) {
+			weight = weight * 8;
+		}
+		for (int i = 0; i != item.size(); ++i) {
+			SyntacticItem child = item.get(i);
+			// Ignore declarations reachable from this item (e.g. invocation targets)
+			if (!(child instanceof Decl) || child instanceof Decl.Variable || child instanceof Decl.Lambda) {
+				size += analyse(caller, child, weight);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Check whether a given declaration may (directly or indirectly) call itself.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	private boolean isRecursive(Decl.Callable decl) {
+		HashSet<Decl.Callable> visited = new HashSet<>();
+		ArrayList<Decl.Callable> worklist = new ArrayList<>(callees.get(decl));
+		while (!worklist.isEmpty()) {
+			Decl.Callable d = worklist.remove(worklist.size() - 1);
+			if (d == decl) {
+				return true;
+			} else if (visited.add(d) && callees.containsKey(d)) {
+				worklist.addAll(callees.get(d));
+			}
+		}
+		return false;
+	}
+
+	private static boolean isExternal(Decl.Callable decl) {
+		return decl.getModifiers().match(WyilFile.Modifier.Export.class) != null
+				|| decl.getModifiers().match(WyilFile.Modifier.Native.class) != null;
+	}
+}
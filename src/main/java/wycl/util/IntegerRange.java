@@ -0,0 +1,177 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.math.BigInteger;
+
+import wycc.util.AbstractCompilationUnit.Value;
+import wyil.lang.WyilFile.Decl;
+import wyil.lang.WyilFile.Expr;
+
+/**
+ * Represents a (possibly unbounded) range of integer values, such as those
+ * permitted by a type like <code>type u8 is (int x) where 0 <= x && x <= 255</code>.
+ * Ranges are inferred from constraints (e.g. type invariants or preconditions)
+ * by looking for comparisons between the constrained variable and integer
+ * constants. Other constraints are simply ignored, hence an inferred range is
+ * always a safe over-approximation of the values permitted.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class IntegerRange {
+	/**
+	 * The range containing all integers.
+	 */
+	public static final IntegerRange UNBOUNDED = new IntegerRange(null, null);
+
+	/**
+	 * The smallest value in the range, or <code>null</code> if unbounded below.
+	 */
+	private final BigInteger lower;
+	/**
+	 * The largest value in the range, or <code>null</code> if unbounded above.
+	 */
+	private final BigInteger upper;
+
+	public IntegerRange(BigInteger lower, BigInteger upper) {
+		this.lower = lower;
+		this.upper = upper;
+	}
+
+	public BigInteger getLowerBound() {
+		return lower;
+	}
+
+	public BigInteger getUpperBound() {
+		return upper;
+	}
+
+	/**
+	 * Check whether this range is bounded both above and below.
+	 *
+	 * @return
+	 */
+	public boolean isBounded() {
+		return lower != null && upper != null;
+	}
+
+	/**
+	 * Check whether every value in this range lies within a given range.
+	 *
+	 * @param lo
+	 * @param hi
+	 * @return
+	 */
+	public boolean within(BigInteger lo, BigInteger hi) {
+		return isBounded() && lower.compareTo(lo) >= 0 && upper.compareTo(hi) <= 0;
+	}
+
+	/**
+	 * Determine the range of values contained in both this and another range.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public IntegerRange intersect(IntegerRange other) {
+		BigInteger lo = lower == null ? other.lower : (other.lower == null ? lower : lower.max(other.lower));
+		BigInteger hi = upper == null ? other.upper : (other.upper == null ? upper : upper.min(other.upper));
+		return new IntegerRange(lo, hi);
+	}
+
+	/**
+	 * Infer the range of a given variable from one or more clauses which are
+	 * known to hold (e.g. the clauses of a type invariant or precondition).
+	 *
+	 * @param var     The variable being constrained
+	 * @param clauses The clauses constraining it
+	 * @return
+	 */
+	public static IntegerRange infer(Decl.Variable var, Iterable<Expr> clauses) {
+		IntegerRange r = UNBOUNDED;
+		for (Expr clause : clauses) {
+			r = r.intersect(infer(var, clause));
+		}
+		return r;
+	}
+
+	private static IntegerRange infer(Decl.Variable var, Expr clause) {
+		if (clause instanceof Expr.LogicalAnd) {
+			return infer(var, ((Expr.LogicalAnd) clause).getOperands());
+		} else if (clause instanceof Expr.BinaryOperator) {
+			Expr.BinaryOperator c = (Expr.BinaryOperator) clause;
+			Expr lhs = c.getFirstOperand();
+			Expr rhs = c.getSecondOperand();
+			BigInteger l = constant(lhs);
+			BigInteger r = constant(rhs);
+			if (isVariable(var, lhs) && r != null) {
+				// x op c
+				if (clause instanceof Expr.IntegerLessThan) {
+					return new IntegerRange(null, r.subtract(BigInteger.ONE));
+				} else if (clause instanceof Expr.IntegerLessThanOrEqual) {
+					return new IntegerRange(null, r);
+				} else if (clause instanceof Expr.IntegerGreaterThan) {
+					return new IntegerRange(r.add(BigInteger.ONE), null);
+				} else if (clause instanceof Expr.IntegerGreaterThanOrEqual) {
+					return new IntegerRange(r, null);
+				} else if (clause instanceof Expr.Equal) {
+					return new IntegerRange(r, r);
+				}
+			} else if (isVariable(var, rhs) && l != null) {
+				// c op x
+				if (clause instanceof Expr.IntegerLessThan) {
+					return new IntegerRange(l.add(BigInteger.ONE), null);
+				} else if (clause instanceof Expr.IntegerLessThanOrEqual) {
+					return new IntegerRange(l, null);
+				} else if (clause instanceof Expr.IntegerGreaterThan) {
+					return new IntegerRange(null, l.subtract(BigInteger.ONE));
+				} else if (clause instanceof Expr.IntegerGreaterThanOrEqual) {
+					return new IntegerRange(null, l);
+				} else if (clause instanceof Expr.Equal) {
+					return new IntegerRange(l, l);
+				}
+			}
+		}
+		return UNBOUNDED;
+	}
+
+	private static boolean isVariable(Decl.Variable var, Expr e) {
+		return e instanceof Expr.VariableAccess && ((Expr.VariableAccess) e).getVariableDeclaration() == var;
+	}
+
+	/**
+	 * Extract the value of an integer constant, or <code>null</code> if the given
+	 * expression is not one.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private static BigInteger constant(Expr e) {
+		if (e instanceof Expr.Constant) {
+			Value v = ((Expr.Constant) e).getValue();
+			if (v instanceof Value.Int) {
+				return ((Value.Int) v).get();
+			}
+		} else if (e instanceof Expr.IntegerNegation) {
+			BigInteger i = constant(((Expr.IntegerNegation) e).getOperand());
+			return i == null ? null : i.negate();
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + (lower == null ? "-inf" : lower) + ".." + (upper == null ? "+inf" : upper) + "]";
+	}
+}
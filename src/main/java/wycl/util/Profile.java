@@ -0,0 +1,54 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the decisions made whilst compiling (e.g. which functions were
+ * inlined), so they can be reported afterwards. Entries are grouped into named
+ * sections, which are reported in the order they were first added.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Profile {
+	private final Map<String, List<String>> sections = new LinkedHashMap<>();
+
+	public void add(String section, String entry) {
+		sections.computeIfAbsent(section, s -> new ArrayList<>()).add(entry);
+	}
+
+	public void addAll(String section, List<String> entries) {
+		sections.computeIfAbsent(section, s -> new ArrayList<>()).addAll(entries);
+	}
+
+	public List<String> get(String section) {
+		return sections.getOrDefault(section, Collections.emptyList());
+	}
+
+	public void write(PrintStream out) {
+		for (Map.Entry<String, List<String>> e : sections.entrySet()) {
+			out.println(e.getKey() + ":");
+			for (String entry : e.getValue()) {
+				out.println("  " + entry);
+			}
+		}
+	}
+}
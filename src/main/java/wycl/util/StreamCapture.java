@@ -0,0 +1,190 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Capture everything produced by a given input stream until the End-Of-File
+ * (EOF) is reached. Reading happens on a background task to ensure that reading
+ * from other streams can happen concurrently. For example, we can read
+ * concurrently from <code>stdout</code> and <code>stderr</code> for some
+ * process without blocking that process.
+ *
+ * The amount of output retained is bounded. Specifically, the first
+ * <code>limit/2</code> bytes are retained in full, whilst the remainder is kept
+ * in a ring buffer holding the last <code>limit/2</code> bytes. Hence, for a
+ * program which produces a large amount of output, both the start and end of
+ * that output remain available. Stream data is read in large blocks and stored
+ * as raw bytes, and is only decoded into a string when requested.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StreamCapture {
+	/**
+	 * The default number of bytes retained from a stream.
+	 */
+	public static final int DEFAULT_LIMIT = 64 * 1024;
+	/**
+	 * The size of blocks read from the stream.
+	 */
+	private static final int BLOCK_SIZE = 8192;
+	/**
+	 * Executor used for all capture tasks. This uses virtual threads where
+	 * available and, otherwise, a pool of daemon threads.
+	 */
+	private static final ExecutorService executor = createExecutor();
+
+	private final byte[] head;
+	private final byte[] tail;
+	/**
+	 * Number of bytes written into the head buffer.
+	 */
+	private int headSize;
+	/**
+	 * Total number of bytes read from the stream.
+	 */
+	private long total;
+	private final Future<?> task;
+
+	public StreamCapture(InputStream input) {
+		this(input, DEFAULT_LIMIT);
+	}
+
+	public StreamCapture(InputStream input, int limit) {
+		this.head = new byte[limit / 2];
+		this.tail = new byte[limit - head.length];
+		this.task = executor.submit(() -> {
+			read(input);
+			return null;
+		});
+	}
+
+	/**
+	 * Wait until the end of the stream has been reached.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		try {
+			task.get();
+		} catch (ExecutionException e) {
+			// Reading failed part way through, so we just retain what was read
+		}
+	}
+
+	/**
+	 * Get the total number of bytes read from the stream, which may exceed the
+	 * number retained.
+	 *
+	 * @return
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Check whether any output was discarded.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isTruncated() {
+		return total > (head.length + tail.length);
+	}
+
+	/**
+	 * Get the retained bytes. If the output was truncated, this consists of the
+	 * head followed immediately by the tail.
+	 *
+	 * @return
+	 */
+	public synchronized byte[] getBytes() {
+		int tailSize = (int) Math.min(tail.length, total - headSize);
+		byte[] bytes = new byte[headSize + tailSize];
+		System.arraycopy(head, 0, bytes, 0, headSize);
+		// Position in the ring buffer of the oldest retained byte
+		int start = (int) ((total - headSize - tailSize) % Math.max(1, tail.length));
+		int first = Math.min(tailSize, tail.length - start);
+		System.arraycopy(tail, start, bytes, headSize, first);
+		System.arraycopy(tail, 0, bytes, headSize + first, tailSize - first);
+		return bytes;
+	}
+
+	/**
+	 * Decode the retained output as a string. If the output was truncated, then a
+	 * marker indicating how much was omitted is included between the head and the
+	 * tail.
+	 */
+	@Override
+	public synchronized String toString() {
+		byte[] bytes = getBytes();
+		if (isTruncated()) {
+			String h = new String(bytes, 0, headSize, StandardCharsets.UTF_8);
+			String t = new String(bytes, headSize, bytes.length - headSize, StandardCharsets.UTF_8);
+			long omitted = total - bytes.length;
+			return h + "\n[... " + omitted + " bytes omitted ...]\n" + t;
+		} else {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private void read(InputStream input) throws IOException {
+		byte[] block = new byte[BLOCK_SIZE];
+		int n;
+		while ((n = input.read(block)) != -1) {
+			append(block, n);
+		}
+	}
+
+	private synchronized void append(byte[] block, int n) {
+		int offset = 0;
+		// Fill the head first
+		if (headSize < head.length) {
+			int m = Math.min(n, head.length - headSize);
+			System.arraycopy(block, 0, head, headSize, m);
+			headSize += m;
+			offset = m;
+		}
+		// Everything else goes into the ring buffer
+		if (tail.length > 0) {
+			while (offset < n) {
+				int pos = (int) ((total + offset - headSize) % tail.length);
+				int m = Math.min(n - offset, tail.length - pos);
+				System.arraycopy(block, offset, tail, pos, m);
+				offset += m;
+			}
+		}
+		total += n;
+	}
+
+	private static ExecutorService createExecutor() {
+		try {
+			// Use virtual threads when running on a JVM which supports them.
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "stream-capture");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+}
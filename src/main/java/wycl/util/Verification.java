@@ -0,0 +1,103 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import wycc.util.Trie;
+
+/**
+ * Records which WyIL files have been verified. A build which runs the verifier
+ * on a module, and finds that every check holds, records this alongside its
+ * WyIL file (i.e. in <code>NAME.wyil.verified</code>) as a digest of that file.
+ * A module is then treated as verified only when the digest matches the WyIL
+ * file being compiled. Hence, a module which has changed since it was verified
+ * (or was never verified) is compiled with every check.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Verification {
+	/**
+	 * Record that a given module has been verified.
+	 *
+	 * @param wyildir The directory holding the WyIL file.
+	 * @param source  The module which was verified.
+	 * @throws IOException
+	 */
+	public static void record(File wyildir, Trie source) throws IOException {
+		byte[] digest = digestOf(wyilFile(wyildir, source));
+		Files.write(recordFile(wyildir, source).toPath(), toHex(digest).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Remove any record that a given module has been verified (e.g. when it is
+	 * rebuilt without verification).
+	 *
+	 * @param wyildir The directory holding the WyIL file.
+	 * @param source  The module.
+	 * @throws IOException
+	 */
+	public static void remove(File wyildir, Trie source) throws IOException {
+		Files.deleteIfExists(recordFile(wyildir, source).toPath());
+	}
+
+	/**
+	 * Determine whether a given module has been verified, as shown by a record
+	 * matching its WyIL file.
+	 *
+	 * @param wyildir The directory holding the WyIL file.
+	 * @param source  The module being compiled.
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isVerified(File wyildir, Trie source) throws IOException {
+		File record = recordFile(wyildir, source);
+		if (!record.exists()) {
+			return false;
+		}
+		String expected = new String(Files.readAllBytes(record.toPath()), StandardCharsets.US_ASCII).trim();
+		return expected.equals(toHex(digestOf(wyilFile(wyildir, source))));
+	}
+
+	private static File wyilFile(File wyildir, Trie source) {
+		return new File(wyildir, source.toNativeString() + ".wyil");
+	}
+
+	private static File recordFile(File wyildir, Trie source) {
+		return new File(wyildir, source.toNativeString() + ".wyil.verified");
+	}
+
+	private static byte[] digestOf(File file) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder r = new StringBuilder();
+		for (byte b : bytes) {
+			r.append(String.format("%02x", b));
+		}
+		return r.toString();
+	}
+}
@@ -15,7 +15,9 @@ package wycl.util.testing;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import wyc.util.testing.WhileyCompileTest;
@@ -25,9 +27,18 @@ import wycc.util.testing.TestFile;
 import wycc.util.testing.TestStage;
 import wycc.util.testing.TestFile.Error;
 import wycl.Main;
+import wycl.tasks.CLangCompiler;
 import wyil.lang.WyilFile;
 
 public class CLangCompileTest implements TestStage {
+	/**
+	 * Preprocessor macros defined when compiling generated C files.
+	 */
+	private final String[] defines;
+
+	public CLangCompileTest(String... defines) {
+		this.defines = defines;
+	}
 
 	@Override
 	public Result apply(Trie path, Path dir, Map<Trie, TextFile> state, TestFile tf) throws IOException {
@@ -37,7 +48,20 @@ public class CLangCompileTest implements TestStage {
 		String method = tf.get(String.class, "main.method").orElse("test");
 		Trie entry = Trie.fromString(unit).append(method);
 		try {
-			boolean r = new Main().setWyilDir(dir.toFile()).setCDir(dir.toFile()).setTarget(path).addSource(path).setEntry(entry).run();
+			Main main = new Main().setWyilDir(dir.toFile()).setCDir(dir.toFile()).setTarget(path).addSource(path).setEntry(entry);
+			for (String define : defines) {
+				main.addDefine(define);
+			}
+			// Options given by the test itself (e.g. c.memoise="fib")
+			for (String define : list(tf.get(String.class, "c.defines").orElse(""))) {
+				main.addDefine(define);
+			}
+			for (String name : list(tf.get(String.class, "c.memoise").orElse(""))) {
+				main.addMemoised(name);
+			}
+			String checks = tf.get(String.class, "c.checks").orElse("standard");
+			main.setCheckLevel(CLangCompiler.CheckLevel.valueOf(checks.toUpperCase()));
+			boolean r = main.run();
 			//
 			if(r) {
 				return new Result(ignored, new Error[0]);
@@ -56,6 +80,22 @@ public class CLangCompileTest implements TestStage {
 		}
 	}
 
+	/**
+	 * Split a comma-separated list of names, ignoring any which are empty.
+	 *
+	 * @param names
+	 * @return
+	 */
+	private static List<String> list(String names) {
+		ArrayList<String> r = new ArrayList<>();
+		for (String name : names.split(",")) {
+			if (!name.trim().isEmpty()) {
+				r.add(name.trim());
+			}
+		}
+		return r;
+	}
+
 	@Override
 	public Error[] filter(Error[] errors) {
 		return Arrays.asList(errors).stream().filter(m -> m.getErrorNumber() == 0).toArray(TestFile.Error[]::new);
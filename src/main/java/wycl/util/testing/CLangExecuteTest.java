@@ -16,37 +16,57 @@ package wycl.util.testing;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 import wycc.util.TextFile;
 import wycc.util.Trie;
 import wycc.util.testing.TestFile;
 import wycc.util.testing.TestFile.Error;
 import wycc.util.testing.TestStage;
-import wycl.util.StreamGrabber;
+import wycl.util.StreamCapture;
 import wyil.lang.WyilFile;
 
 public class CLangExecuteTest implements TestStage {
+	/**
+	 * Receives anything written to <code>stderr</code> by each test which executed
+	 * successfully (e.g. runtime statistics).
+	 */
+	private final BiConsumer<Trie, String> listener;
+
+	public CLangExecuteTest() {
+		this((t, s) -> {});
+	}
+
+	public CLangExecuteTest(BiConsumer<Trie, String> listener) {
+		this.listener = listener;
+	}
 
 	@Override
 	public Result apply(Trie path, Path dir, Map<Trie, TextFile> state, TestFile tf) throws IOException {
 		boolean ignored = tf.get(Boolean.class, "c.execute.ignore").orElse(false);
 		// Test was expected to compile, so attempt to run the code.
 		String unit = tf.get(String.class, "main.file").orElse("main");
+		// A pattern which must occur in anything written to stderr (e.g. statistics)
+		Pattern expected = tf.get(String.class, "c.stderr").map(Pattern::compile).orElse(null);
+		// Whether the test must instead fail at runtime (e.g. a check which aborts)
+		boolean fails = tf.get(Boolean.class, "c.execute.fails").orElse(false);
 		//
 		try {
 			Path executable = dir.resolve(path.toString());
 			Process p = Runtime.getRuntime().exec(executable.toString());
-			StringBuffer syserr = new StringBuffer();
-			StringBuffer sysout = new StringBuffer();
-			new StreamGrabber(p.getErrorStream(), syserr);
-			new StreamGrabber(p.getInputStream(), sysout);
+			StreamCapture syserr = new StreamCapture(p.getErrorStream());
+			StreamCapture sysout = new StreamCapture(p.getInputStream());
 			int exitCode = p.waitFor();
-			if (exitCode != 0) {
+			syserr.await();
+			sysout.await();
+			if ((exitCode != 0) != fails || (expected != null && !expected.matcher(syserr.toString()).find())) {
 				System.err.println(syserr); // propagate anything from the error
 				TestFile.Coordinate c = new TestFile.Coordinate(0, new TestFile.Range(0, 0));
 				return new Result(ignored, new Error(WyilFile.INTERNAL_FAILURE, Trie.fromString(unit), c));
 			}
 			// stream
+			listener.accept(path, syserr.toString());
 			return new Result(ignored, new Error[0]);
 		} catch (Exception ex) {
 			ex.printStackTrace();
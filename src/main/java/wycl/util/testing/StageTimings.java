@@ -0,0 +1,241 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util.testing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records how long each stage of each test took (e.g. compiling the generated
+ * C file, or executing the resulting binary). Timings can be written to disk
+ * and used as a baseline for subsequent runs, in which case any test whose
+ * stages have become significantly slower is reported as a regression. This
+ * provides a simple mechanism for catching performance regressions in the
+ * generated code, as well as in the compiler itself.
+ *
+ * The file format is line-based, where each line has the form
+ * <code>name stage millis</code> separated by tabs. Lines beginning with
+ * <code>#</code> are ignored. A stage may be timed more than once (e.g. when
+ * a test is rerun to confirm a regression), in which case its median time is
+ * used. When the same test and stage appear more than once in a file, each
+ * occurrence is treated as a separate sample.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StageTimings {
+	/**
+	 * Maps each test to the times taken for each of its stages.
+	 */
+	private final Map<String, Map<String, List<Long>>> timings = new TreeMap<>();
+
+	public synchronized void record(String test, String stage, long millis) {
+		timings.computeIfAbsent(test, t -> new TreeMap<>()).computeIfAbsent(stage, s -> new ArrayList<>()).add(millis);
+	}
+
+	/**
+	 * Get the median time recorded for a given stage of a given test, or
+	 * <code>null</code> if no such time was recorded.
+	 *
+	 * @param test
+	 * @param stage
+	 * @return
+	 */
+	public synchronized Long get(String test, String stage) {
+		Map<String, List<Long>> stages = timings.get(test);
+		List<Long> samples = stages == null ? null : stages.get(stage);
+		return samples == null ? null : median(samples);
+	}
+
+	/**
+	 * Get the number of times a given stage of a given test was recorded.
+	 *
+	 * @param test
+	 * @param stage
+	 * @return
+	 */
+	public synchronized int getSamples(String test, String stage) {
+		Map<String, List<Long>> stages = timings.get(test);
+		List<Long> samples = stages == null ? null : stages.get(stage);
+		return samples == null ? 0 : samples.size();
+	}
+
+	/**
+	 * Merge the timings from another run into these timings. The stages recorded
+	 * by the other run replace those recorded here, whilst all others are
+	 * retained. This allows a baseline to be updated by several shards in turn.
+	 *
+	 * @param other
+	 */
+	public synchronized void merge(StageTimings other) {
+		synchronized (other) {
+			for (Map.Entry<String, Map<String, List<Long>>> t : other.timings.entrySet()) {
+				Map<String, List<Long>> stages = timings.computeIfAbsent(t.getKey(), k -> new TreeMap<>());
+				for (Map.Entry<String, List<Long>> s : t.getValue().entrySet()) {
+					stages.put(s.getKey(), new ArrayList<>(s.getValue()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the total time recorded across all stages of a given test.
+	 *
+	 * @param test
+	 * @return
+	 */
+	public synchronized long getTotal(String test) {
+		long total = 0;
+		Map<String, List<Long>> stages = timings.get(test);
+		if (stages != null) {
+			for (List<Long> samples : stages.values()) {
+				total += median(samples);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Check whether any of the given stages of a given test have regressed
+	 * relative to a baseline. A stage is considered to have regressed when its
+	 * median time is more than <code>threshold</code> times its baseline time,
+	 * and is also slower by more than <code>slack</code> milliseconds. The latter
+	 * prevents spurious regressions from very short stages, whose timings are
+	 * dominated by noise. Callers should rerun a test which appears to have
+	 * regressed, rather than trust a single sample.
+	 *
+	 * @param baseline  The timings against which to compare.
+	 * @param test      The test being checked.
+	 * @param stages    The stages being checked.
+	 * @param threshold The permitted ratio of current to baseline time.
+	 * @param slack     The permitted absolute increase (in milliseconds).
+	 * @return A description of each stage which regressed.
+	 */
+	public List<String> regressions(StageTimings baseline, String test, Collection<String> stages, double threshold,
+			long slack) {
+		ArrayList<String> regressions = new ArrayList<>();
+		for (String stage : stages) {
+			Long before = baseline.get(test, stage);
+			Long after = get(test, stage);
+			if (before != null && after != null && after > before * threshold && (after - before) > slack) {
+				regressions.add(test + " " + stage + " regressed from " + before + "ms to " + after + "ms");
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Determine the slowest tests overall, ordered from slowest to fastest.
+	 *
+	 * @param n The maximum number of tests to return.
+	 * @return
+	 */
+	public synchronized List<String> slowest(int n) {
+		ArrayList<String> tests = new ArrayList<>(timings.keySet());
+		tests.sort((l, r) -> Long.compare(getTotal(r), getTotal(l)));
+		return tests.subList(0, Math.min(n, tests.size()));
+	}
+
+	/**
+	 * Write a simple report of the slowest tests, giving the time taken by each
+	 * stage.
+	 *
+	 * @param n   The number of tests to include.
+	 * @param out
+	 */
+	public synchronized void writeSlowest(int n, PrintWriter out) {
+		for (String test : slowest(n)) {
+			out.print(test);
+			out.print("\t");
+			out.print(getTotal(test));
+			out.print("ms");
+			for (Map.Entry<String, List<Long>> e : timings.get(test).entrySet()) {
+				out.print("\t");
+				out.print(e.getKey());
+				out.print("=");
+				out.print(median(e.getValue()));
+				out.print("ms");
+			}
+			out.println();
+		}
+		out.flush();
+	}
+
+	public synchronized void write(Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.println("# name\tstage\tmillis");
+			for (Map.Entry<String, Map<String, List<Long>>> t : timings.entrySet()) {
+				for (Map.Entry<String, List<Long>> s : t.getValue().entrySet()) {
+					out.print(t.getKey());
+					out.print("\t");
+					out.print(s.getKey());
+					out.print("\t");
+					out.println(median(s.getValue()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read timings from a given file. If the file does not exist, then no timings
+	 * are returned.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static StageTimings read(Path file) throws IOException {
+		StageTimings timings = new StageTimings();
+		if (Files.exists(file)) {
+			try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					String[] fields = line.split("\t");
+					if (fields.length != 3) {
+						throw new IOException("invalid timing entry: " + line);
+					}
+					try {
+						timings.record(fields[0], fields[1], Long.parseLong(fields[2]));
+					} catch (NumberFormatException ex) {
+						throw new IOException("invalid timing entry: " + line);
+					}
+				}
+			}
+		}
+		return timings;
+	}
+
+	private static long median(List<Long> samples) {
+		ArrayList<Long> sorted = new ArrayList<>(samples);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+}
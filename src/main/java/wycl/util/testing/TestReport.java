@@ -0,0 +1,242 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util.testing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the outcome of running a set of test cases, along with how long each
+ * took. A report can be written to disk and read back, which allows the results
+ * from several independent test runs (e.g. the shards of a test suite spread
+ * across different machines) to be merged into one. The durations recorded
+ * here also serve as the historical runtimes used to balance shards (see
+ * <code>TestShards</code>).
+ *
+ * The file format is line-based, where each line has the form
+ * <code>name result millis</code> separated by tabs. Lines beginning with
+ * <code>#</code> are ignored.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TestReport {
+	/**
+	 * The results which indicate a test did not pass.
+	 */
+	private static final List<String> FAILURES = Arrays.asList("FAILURE", "INVALIDIGNORED");
+
+	/**
+	 * The set of recorded entries, sorted by test name.
+	 */
+	private final Map<String, Entry> entries = new TreeMap<>();
+
+	/**
+	 * Record the outcome of a given test. If an entry already exists for this test
+	 * then it is replaced.
+	 *
+	 * @param name   Name of the test in question.
+	 * @param result Outcome of the test (e.g. <code>SUCCESS</code>).
+	 * @param millis Time taken to run the test (in milliseconds).
+	 */
+	public synchronized void record(String name, String result, long millis) {
+		entries.put(name, new Entry(name, result, millis));
+	}
+
+	public synchronized Collection<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+	public synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Extract the recorded duration of every test in this report.
+	 *
+	 * @return
+	 */
+	public synchronized Map<String, Long> getDurations() {
+		HashMap<String, Long> durations = new HashMap<>();
+		for (Entry e : entries.values()) {
+			durations.put(e.getName(), e.getMillis());
+		}
+		return durations;
+	}
+
+	/**
+	 * Merge all entries from a given report into this report. Entries in the given
+	 * report take precedence over those already present.
+	 *
+	 * @param other
+	 */
+	public synchronized void merge(TestReport other) {
+		for (Entry e : other.getEntries()) {
+			entries.put(e.getName(), e);
+		}
+	}
+
+	/**
+	 * Count the number of entries which did not pass.
+	 *
+	 * @return
+	 */
+	public synchronized int countFailures() {
+		int count = 0;
+		for (Entry e : entries.values()) {
+			if (e.isFailure()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public synchronized void write(Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.println("# name\tresult\tmillis");
+			for (Entry e : entries.values()) {
+				out.print(e.getName());
+				out.print("\t");
+				out.print(e.getResult());
+				out.print("\t");
+				out.println(e.getMillis());
+			}
+		}
+	}
+
+	/**
+	 * Read a report from a given file. If the file does not exist, then an empty
+	 * report is returned. This makes it easy to bootstrap test runs where no
+	 * history is yet available.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static TestReport read(Path file) throws IOException {
+		TestReport report = new TestReport();
+		if (Files.exists(file)) {
+			try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					String[] fields = line.split("\t");
+					if (fields.length != 3) {
+						throw new IOException("invalid report entry: " + line);
+					}
+					try {
+						report.record(fields[0], fields[1], Long.parseLong(fields[2]));
+					} catch (NumberFormatException ex) {
+						throw new IOException("invalid report entry: " + line);
+					}
+				}
+			}
+		}
+		return report;
+	}
+
+	public static class Entry {
+		private final String name;
+		private final String result;
+		private final long millis;
+
+		public Entry(String name, String result, long millis) {
+			this.name = name;
+			this.result = result;
+			this.millis = millis;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getResult() {
+			return result;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public boolean isFailure() {
+			return FAILURES.contains(result);
+		}
+	}
+
+	/**
+	 * Merge one or more shard reports into a single report. For example:
+	 *
+	 * <pre>
+	 * java wycl.util.testing.TestReport -o merged.txt shard-0.txt shard-1.txt
+	 * </pre>
+	 *
+	 * A summary of the merged results is printed, and the exit code is non-zero
+	 * if any test failed.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		Path output = null;
+		List<Path> inputs = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-o") && (i + 1) < args.length) {
+				output = Paths.get(args[++i]);
+			} else {
+				inputs.add(Paths.get(args[i]));
+			}
+		}
+		if (inputs.isEmpty()) {
+			System.err.println("usage: TestReport [-o output] report1 report2 ...");
+			System.exit(2);
+		}
+		TestReport merged = new TestReport();
+		for (Path input : inputs) {
+			merged.merge(read(input));
+		}
+		if (output != null) {
+			merged.write(output);
+		}
+		// Summarise results
+		Map<String, Integer> counts = new TreeMap<>();
+		long total = 0;
+		for (Entry e : merged.getEntries()) {
+			counts.merge(e.getResult(), 1, Integer::sum);
+			total += e.getMillis();
+		}
+		System.out.println("Merged " + inputs.size() + " report(s), " + merged.entries.size() + " test(s), " + total + "ms");
+		for (Map.Entry<String, Integer> c : counts.entrySet()) {
+			System.out.println("  " + c.getKey() + ": " + c.getValue());
+		}
+		System.exit(merged.countFailures() == 0 ? 0 : 1);
+	}
+}
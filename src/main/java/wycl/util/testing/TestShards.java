@@ -0,0 +1,122 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util.testing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Responsible for partitioning a set of test cases into a fixed number of
+ * shards, such that each shard can be run independently (e.g. on a different
+ * machine). Tests are distributed according to their historical runtime, rather
+ * than their name, so that all shards take roughly the same time to complete.
+ * This uses the well-known "longest processing time first" heuristic: tests are
+ * considered in order of decreasing runtime, and each is assigned to the shard
+ * with the least total runtime so far.
+ *
+ * The partition is deterministic. That is, given the same tests and the same
+ * history, every machine computes exactly the same partition. Thus, each shard
+ * can compute its own portion without any coordination.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TestShards {
+	/**
+	 * Runtime assumed for any test when no history is available at all.
+	 */
+	private static final long DEFAULT_MILLIS = 1000;
+
+	/**
+	 * Select the tests belonging to a given shard.
+	 *
+	 * @param tests   The complete set of tests being partitioned.
+	 * @param history Historical runtime (in milliseconds) of tests, which may be
+	 *                incomplete.
+	 * @param index   The index of the shard being selected (from <code>0</code>).
+	 * @param count   The total number of shards.
+	 * @return The tests belonging to this shard, sorted by name.
+	 */
+	public static <T extends Comparable<T>> List<T> select(List<T> tests, Map<String, Long> history, int index,
+			int count) {
+		if (count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("invalid shard " + index + " of " + count);
+		}
+		List<List<T>> shards = partition(tests, history, count);
+		List<T> selected = shards.get(index);
+		Collections.sort(selected);
+		return selected;
+	}
+
+	/**
+	 * Partition a given set of tests into a fixed number of shards.
+	 *
+	 * @param tests   The complete set of tests being partitioned.
+	 * @param history Historical runtime (in milliseconds) of tests, which may be
+	 *                incomplete.
+	 * @param count   The total number of shards.
+	 * @return
+	 */
+	public static <T extends Comparable<T>> List<List<T>> partition(List<T> tests, Map<String, Long> history,
+			int count) {
+		final long fallback = estimate(history);
+		// Sort tests by decreasing runtime, breaking ties by name to ensure a
+		// deterministic order.
+		ArrayList<T> sorted = new ArrayList<>(tests);
+		sorted.sort((l, r) -> {
+			long lm = history.getOrDefault(l.toString(), fallback);
+			long rm = history.getOrDefault(r.toString(), fallback);
+			int c = Long.compare(rm, lm);
+			return c != 0 ? c : l.compareTo(r);
+		});
+		// Assign each test to the least loaded shard, breaking ties by shard index.
+		List<List<T>> shards = new ArrayList<>();
+		long[] loads = new long[count];
+		for (int i = 0; i != count; ++i) {
+			shards.add(new ArrayList<>());
+		}
+		for (T test : sorted) {
+			int least = 0;
+			for (int i = 1; i != count; ++i) {
+				if (loads[i] < loads[least]) {
+					least = i;
+				}
+			}
+			shards.get(least).add(test);
+			loads[least] += history.getOrDefault(test.toString(), fallback);
+		}
+		return shards;
+	}
+
+	/**
+	 * Estimate the runtime of a test with no recorded history. For this, we use
+	 * the median of all known runtimes as this is not skewed by the occasional very
+	 * slow test.
+	 *
+	 * @param history
+	 * @return
+	 */
+	private static long estimate(Map<String, Long> history) {
+		if (history.isEmpty()) {
+			return DEFAULT_MILLIS;
+		} else {
+			ArrayList<Long> millis = new ArrayList<>(history.values());
+			Collections.sort(millis);
+			// Ensure every test has some weight
+			return Math.max(1, millis.get(millis.size() / 2));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycl.util.testing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import wycc.util.TextFile;
+import wycc.util.Trie;
+import wycc.util.testing.TestFile;
+import wycc.util.testing.TestFile.Error;
+import wycc.util.testing.TestStage;
+
+/**
+ * A test stage which wraps another, and records how long the wrapped stage took
+ * for each test.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TimedStage implements TestStage {
+	private final String name;
+	private final TestStage stage;
+	private final StageTimings timings;
+
+	public TimedStage(TestStage stage, StageTimings timings) {
+		this(stage.getClass().getSimpleName(), stage, timings);
+	}
+
+	public TimedStage(String name, TestStage stage, StageTimings timings) {
+		this.name = name;
+		this.stage = stage;
+		this.timings = timings;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Result apply(Trie path, Path dir, Map<Trie, TextFile> state, TestFile tf) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return stage.apply(path, dir, state, tf);
+		} finally {
+			timings.record(path.toString(), name, (System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	@Override
+	public Error[] filter(Error[] errors) {
+		return stage.filter(errors);
+	}
+
+	@Override
+	public boolean required() {
+		return stage.required();
+	}
+}
@@ -0,0 +1,465 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Runtime support for Whiley arrays.
+//
+// Every Whiley array is represented as a "fat pointer" which carries both its
+// length and a pointer to its elements.  Since C has no generics, a separate
+// array type is declared for each element type using one of the macros below.
+// For example, WY_ARRAY_DECL(wy_array_int, int) declares the type wy_array_int
+// along with the following operations:
+//
+//   wy_array_int wy_array_int_alloc(int64_t n);
+//   wy_array_int wy_array_int_zeros(int64_t n);
+//   wy_array_int wy_array_int_fill(int64_t n, int v);
+//   wy_array_int wy_array_int_const(int64_t n, const int *data);
+//   wy_array_int wy_array_int_from(int64_t n, const int *items);
+//   wy_array_int wy_array_int_copy(wy_array_int a);
+//   bool wy_array_int_equals(wy_array_int a, wy_array_int b);
+//   void wy_array_int_release(wy_array_int a);
+//   void wy_array_int_assign(wy_array_int *dst, wy_array_int src);
+//   int *wy_array_int_write(wy_array_int *a);
+//   wy_array_int wy_array_int_update(wy_array_int a, int64_t i, int v);
+//
+// Arrays whose elements are compared bitwise also have the following, which
+// determines whether a value occurs between two indices:
+//
+//   bool wy_array_int_contains(wy_array_int a, int64_t lo, int64_t hi, int v);
+//
+// Whiley arrays have value semantics, which are implemented using
+// copy-on-write.  Every element buffer is preceded by a header holding a
+// reference count.  Copying an array simply shares its buffer, and a buffer is
+// only duplicated when it is written whilst shared.  A negative reference count
+// indicates a buffer which is never freed: WY_REFS_CONST marks constant data,
+// which is copied when first written, and WY_REFS_STACK marks a buffer on the
+// stack, which is written in place but copied whenever it is shared.
+//
+// Arrays of booleans are packed into 64-bit words (see WY_BITS_DECL).
+//
+// An array whose elements are all zero bits (e.g. [false; n]) is allocated with
+// calloc(), via NAME_zeros.  Otherwise, NAME_fill sets every element to the
+// same value.
+//
+// A buffer may also be allocated on the stack (see WY_ARRAY_STACK), provided
+// the array is never shared, released or reassigned.  Should it be shared
+// nonetheless, the stack buffer is copied rather than referenced.
+//
+// When compiled with WY_STATS defined, the number of buffers allocated, shared
+// and duplicated are reported on exit.
+// ============================================================================
+#ifndef WY_ARRAY_H
+#define WY_ARRAY_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "wy_int.h"
+
+/**
+ * Allocate a block of memory, aborting if no memory is available.
+ */
+static inline void *wy_malloc(size_t size) {
+  void *ptr = malloc(size == 0 ? 1 : size);
+  if (ptr == NULL) {
+    fprintf(stderr, "out of memory\n");
+    abort();
+  }
+  return ptr;
+}
+
+/**
+ * The header which precedes the elements of every array buffer.  This is
+ * aligned such that elements of any type can follow it immediately.
+ */
+typedef union {
+  int64_t refs;
+  max_align_t align;
+} wy_header;
+
+#define WY_HEADER(data) (((wy_header *)(data)) - 1)
+
+/**
+ * The reference count of constant data (see WY_ARRAY_CONST).
+ */
+#define WY_REFS_CONST (-1)
+
+/**
+ * The reference count of a buffer on the stack (see WY_ARRAY_STACK).
+ */
+#define WY_REFS_STACK (-2)
+
+#ifdef WY_STATS
+static int64_t wy_stats_allocs, wy_stats_shares, wy_stats_copies, wy_stats_inplace;
+#define WY_COUNT(c) ((c)++)
+__attribute__((destructor)) static void wy_array_stats(void) {
+  fprintf(stderr, "wy_array: allocs=%lld shares=%lld copies=%lld inplace=%lld\n",
+          (long long)wy_stats_allocs, (long long)wy_stats_shares,
+          (long long)wy_stats_copies, (long long)wy_stats_inplace);
+}
+#else
+#define WY_COUNT(c) ((void)0)
+#endif
+
+/**
+ * Allocate a buffer with space for a given number of bytes of elements, with a
+ * reference count of one.
+ */
+static inline void *wy_buffer_alloc(size_t size) {
+  wy_header *h = (wy_header *)wy_malloc(sizeof(wy_header) + size);
+  h->refs = 1;
+  WY_COUNT(wy_stats_allocs);
+  return h + 1;
+}
+
+/**
+ * As for wy_buffer_alloc, but with every byte of the elements zeroed.
+ */
+static inline void *wy_buffer_calloc(size_t size) {
+  wy_header *h = (wy_header *)calloc(1, sizeof(wy_header) + size);
+  if (h == NULL) {
+    fprintf(stderr, "out of memory\n");
+    abort();
+  }
+  h->refs = 1;
+  WY_COUNT(wy_stats_allocs);
+  return h + 1;
+}
+
+/**
+ * Record a new reference to a buffer.
+ */
+static inline void wy_buffer_share(void *data) {
+  if (data != NULL && WY_HEADER(data)->refs > 0) {
+    WY_HEADER(data)->refs++;
+  }
+  WY_COUNT(wy_stats_shares);
+}
+
+/**
+ * Drop a reference to a buffer, returning true if the buffer is no longer
+ * referenced and should be freed.
+ */
+static inline bool wy_buffer_drop(void *data) {
+  return data != NULL && WY_HEADER(data)->refs > 0 && --WY_HEADER(data)->refs == 0;
+}
+
+/**
+ * Check whether a buffer can be written in place.
+ */
+static inline bool wy_buffer_unique(void *data) {
+  return WY_HEADER(data)->refs == 1 || WY_HEADER(data)->refs == WY_REFS_STACK;
+}
+
+/**
+ * Check whether a buffer is on the stack, such that it must be copied rather
+ * than shared.
+ */
+static inline bool wy_buffer_stack(void *data) {
+  return data != NULL && WY_HEADER(data)->refs == WY_REFS_STACK;
+}
+
+#define WY_ARRAY_COMMON(NAME, T)                                               \
+  typedef T NAME##_item;                                                       \
+  typedef struct {                                                             \
+    int64_t length;                                                            \
+    T *data;                                                                   \
+  } NAME;                                                                      \
+  static inline NAME NAME##_alloc(int64_t n) {                                 \
+    NAME r;                                                                    \
+    r.length = n;                                                              \
+    r.data = (T *)wy_buffer_alloc((size_t)n * sizeof(T));                      \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_zeros(int64_t n) {                                 \
+    NAME r;                                                                    \
+    r.length = n;                                                              \
+    r.data = (T *)wy_buffer_calloc((size_t)n * sizeof(T));                     \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_const(int64_t n, const T *data) {                 \
+    NAME r = {n, (T *)data};                                                   \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_from(int64_t n, const T *items);                   \
+  static inline NAME NAME##_copy(NAME a) {                                     \
+    if (WY_UNLIKELY(wy_buffer_stack(a.data))) {                                \
+      return NAME##_from(a.length, a.data);                                    \
+    }                                                                          \
+    wy_buffer_share(a.data);                                                   \
+    return a;                                                                  \
+  }                                                                            \
+  static inline void NAME##_release(NAME a);                                   \
+  static inline void NAME##_assign(NAME *dst, NAME src) {                      \
+    NAME old = *dst;                                                           \
+    *dst = src;                                                                \
+    NAME##_release(old);                                                       \
+  }                                                                            \
+  static inline T *NAME##_write(NAME *a) {                                     \
+    if (WY_UNLIKELY(!wy_buffer_unique(a->data))) {                             \
+      NAME##_assign(a, NAME##_from(a->length, a->data));                       \
+      WY_COUNT(wy_stats_copies);                                               \
+    } else {                                                                   \
+      WY_COUNT(wy_stats_inplace);                                              \
+    }                                                                          \
+    return a->data;                                                            \
+  }
+
+/**
+ * Declare a variable VAR of array type NAME holding N elements (copied from
+ * the given items), whose buffer is on the stack.  The buffer is written in
+ * place and is never freed.  Copying the array duplicates the buffer onto the
+ * heap, such that no reference to the stack outlives it.
+ */
+#define WY_ARRAY_STACK(NAME, VAR, N, ...)                                      \
+  struct {                                                                     \
+    wy_header header;                                                          \
+    NAME##_item data[N];                                                       \
+  } VAR##_buf = {.header = {WY_REFS_STACK}};                                   \
+  memcpy(VAR##_buf.data, __VA_ARGS__, sizeof(VAR##_buf.data));                 \
+  NAME VAR = {N, VAR##_buf.data}
+
+/**
+ * Declare constant data VAR holding N elements of array type NAME (given by the
+ * remaining arguments), for use with NAME_const.  Since its reference count is
+ * WY_REFS_CONST, the data is never freed and is copied when first written.
+ */
+#define WY_ARRAY_CONST(NAME, VAR, N, ...)                                      \
+  static const struct {                                                        \
+    wy_header header;                                                          \
+    NAME##_item data[N];                                                       \
+  } VAR = {.header = {WY_REFS_CONST}, .data = {__VA_ARGS__}};
+
+/**
+ * Declare an array type whose elements can be copied and compared bitwise
+ * (e.g. integers, bytes and booleans).  Copying and equality are implemented
+ * with memcpy() and memcmp() respectively, whilst filling and searching an
+ * array with byte-sized elements use memset() and memchr().
+ */
+#define WY_ARRAY_DECL(NAME, T)                                                 \
+  WY_ARRAY_COMMON(NAME, T)                                                     \
+  static inline NAME NAME##_from(int64_t n, const T *items) {                  \
+    NAME r = NAME##_alloc(n);                                                  \
+    memcpy(r.data, items, (size_t)n * sizeof(T));                              \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_fill(int64_t n, T v) {                             \
+    NAME r = NAME##_alloc(n);                                                  \
+    if (sizeof(T) == 1) {                                                      \
+      memset(r.data, *(unsigned char *)&v, (size_t)n);                         \
+      return r;                                                                \
+    }                                                                          \
+    int64_t i = 0;                                                             \
+    for (; i + 4 <= n; i += 4) {                                               \
+      r.data[i] = v;                                                           \
+      r.data[i + 1] = v;                                                       \
+      r.data[i + 2] = v;                                                       \
+      r.data[i + 3] = v;                                                       \
+    }                                                                          \
+    for (; i < n; i++) {                                                       \
+      r.data[i] = v;                                                           \
+    }                                                                          \
+    return r;                                                                  \
+  }                                                                            \
+  static inline void NAME##_release(NAME a) {                                  \
+    if (wy_buffer_drop(a.data)) {                                              \
+      free(WY_HEADER(a.data));                                                 \
+    }                                                                          \
+  }                                                                            \
+  static inline bool NAME##_equals(NAME a, NAME b) {                           \
+    return a.length == b.length &&                                             \
+           (a.data == b.data ||                                                \
+            memcmp(a.data, b.data, (size_t)a.length * sizeof(T)) == 0);        \
+  }                                                                            \
+  static inline NAME NAME##_update(NAME a, int64_t i, T v) {                   \
+    NAME##_write(&a)[i] = v;                                                   \
+    return a;                                                                  \
+  }                                                                            \
+  static inline bool NAME##_contains(NAME a, int64_t lo, int64_t hi, T v) {    \
+    if (sizeof(T) == 1) {                                                      \
+      size_t n = lo < hi ? (size_t)(hi - lo) : 0;                              \
+      return memchr(a.data + lo, *(unsigned char *)&v, n) != NULL;             \
+    }                                                                          \
+    for (int64_t i = lo; i < hi; i++) {                                        \
+      if (memcmp(&a.data[i], &v, sizeof(T)) == 0) {                            \
+        return true;                                                           \
+      }                                                                        \
+    }                                                                          \
+    return false;                                                              \
+  }
+
+/**
+ * The number of 64-bit words holding N packed booleans.
+ */
+#define WY_BITS_WORDS(N) (((size_t)(N) + 63) / 64)
+
+/**
+ * Declare an array type whose boolean elements are packed into 64-bit words,
+ * such that element i is bit (i % 64) of word (i / 64).  Bits beyond the
+ * length are always zero, hence arrays are compared and searched a word at a
+ * time.  Elements are read with NAME_get and written with NAME_set, whilst
+ * NAME_count gives the number of true elements.  Otherwise, the operations are
+ * those of any other array type.
+ */
+#define WY_BITS_DECL(NAME)                                                     \
+  typedef bool NAME##_item;                                                    \
+  typedef struct {                                                             \
+    int64_t length;                                                            \
+    uint64_t *data;                                                            \
+  } NAME;                                                                      \
+  static inline NAME NAME##_alloc(int64_t n) {                                 \
+    NAME r;                                                                    \
+    r.length = n;                                                              \
+    r.data = (uint64_t *)wy_buffer_calloc(WY_BITS_WORDS(n) * sizeof(uint64_t)); \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_zeros(int64_t n) { return NAME##_alloc(n); }       \
+  static inline NAME NAME##_fill(int64_t n, bool v) {                          \
+    NAME r = NAME##_alloc(n);                                                  \
+    if (v) {                                                                   \
+      memset(r.data, 0xff, WY_BITS_WORDS(n) * sizeof(uint64_t));               \
+      if (n % 64 != 0) {                                                       \
+        r.data[n / 64] = (UINT64_C(1) << (n % 64)) - 1;                        \
+      }                                                                        \
+    }                                                                          \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_from(int64_t n, const bool *items) {               \
+    NAME r = NAME##_alloc(n);                                                  \
+    for (int64_t i = 0; i < n; i++) {                                          \
+      r.data[i >> 6] |= (uint64_t)items[i] << (i & 63);                        \
+    }                                                                          \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_copy(NAME a) {                                     \
+    wy_buffer_share(a.data);                                                   \
+    return a;                                                                  \
+  }                                                                            \
+  static inline void NAME##_release(NAME a) {                                  \
+    if (wy_buffer_drop(a.data)) {                                              \
+      free(WY_HEADER(a.data));                                                 \
+    }                                                                          \
+  }                                                                            \
+  static inline void NAME##_assign(NAME *dst, NAME src) {                      \
+    NAME old = *dst;                                                           \
+    *dst = src;                                                                \
+    NAME##_release(old);                                                       \
+  }                                                                            \
+  static inline uint64_t *NAME##_write(NAME *a) {                              \
+    if (WY_UNLIKELY(!wy_buffer_unique(a->data))) {                             \
+      NAME b = NAME##_alloc(a->length);                                        \
+      memcpy(b.data, a->data, WY_BITS_WORDS(a->length) * sizeof(uint64_t));    \
+      NAME##_assign(a, b);                                                     \
+      WY_COUNT(wy_stats_copies);                                               \
+    } else {                                                                   \
+      WY_COUNT(wy_stats_inplace);                                              \
+    }                                                                          \
+    return a->data;                                                            \
+  }                                                                            \
+  static inline bool NAME##_get(NAME a, int64_t i) {                           \
+    return (a.data[i >> 6] >> (i & 63)) & 1;                                   \
+  }                                                                            \
+  static inline void NAME##_set(NAME *a, int64_t i, bool v) {                  \
+    uint64_t *data = NAME##_write(a);                                          \
+    uint64_t m = UINT64_C(1) << (i & 63);                                      \
+    data[i >> 6] = (data[i >> 6] & ~m) | (-(uint64_t)v & m);                   \
+  }                                                                            \
+  static inline NAME NAME##_update(NAME a, int64_t i, bool v) {                \
+    NAME##_set(&a, i, v);                                                      \
+    return a;                                                                  \
+  }                                                                            \
+  static inline bool NAME##_equals(NAME a, NAME b) {                           \
+    return a.length == b.length &&                                             \
+           (a.data == b.data ||                                                \
+            memcmp(a.data, b.data,                                             \
+                   WY_BITS_WORDS(a.length) * sizeof(uint64_t)) == 0);          \
+  }                                                                            \
+  static inline bool NAME##_contains(NAME a, int64_t lo, int64_t hi, bool v) { \
+    for (int64_t w = lo >> 6; lo < hi && w <= (hi - 1) >> 6; w++) {            \
+      uint64_t bits = v ? a.data[w] : ~a.data[w];                              \
+      if (w == lo >> 6) {                                                      \
+        bits &= ~UINT64_C(0) << (lo & 63);                                     \
+      }                                                                        \
+      if (w == (hi - 1) >> 6) {                                                \
+        bits &= ~UINT64_C(0) >> (63 - ((hi - 1) & 63));                       \
+      }                                                                        \
+      if (bits != 0) {                                                         \
+        return true;                                                           \
+      }                                                                        \
+    }                                                                          \
+    return false;                                                              \
+  }                                                                            \
+  static inline int64_t NAME##_count(NAME a) {                                 \
+    int64_t n = 0;                                                             \
+    for (size_t w = 0; w < WY_BITS_WORDS(a.length); w++) {                     \
+      n += __builtin_popcountll(a.data[w]);                                    \
+    }                                                                          \
+    return n;                                                                  \
+  }
+
+/**
+ * Declare an array type whose elements must be copied, released and compared
+ * using the given functions (e.g. arrays of arrays).  Here, EQ(T,T) determines
+ * whether two elements are equal, COPY(T) produces a copy of an element, and
+ * RELEASE(T) drops an element.  Filling an array takes ownership of the given
+ * element, so that every element shares it (e.g. the buffer of an array).
+ */
+#define WY_ARRAY_DECL_WITH(NAME, T, EQ, COPY, RELEASE)                         \
+  WY_ARRAY_COMMON(NAME, T)                                                     \
+  static inline NAME NAME##_from(int64_t n, const T *items) {                  \
+    NAME r = NAME##_alloc(n);                                                  \
+    for (int64_t i = 0; i < n; i++) {                                          \
+      r.data[i] = COPY(items[i]);                                              \
+    }                                                                          \
+    return r;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_fill(int64_t n, T v) {                             \
+    NAME r = NAME##_alloc(n);                                                  \
+    for (int64_t i = 0; i < n; i++) {                                          \
+      r.data[i] = COPY(v);                                                     \
+    }                                                                          \
+    RELEASE(v);                                                                \
+    return r;                                                                  \
+  }                                                                            \
+  static inline void NAME##_release(NAME a) {                                  \
+    if (wy_buffer_drop(a.data)) {                                              \
+      for (int64_t i = 0; i < a.length; i++) {                                 \
+        RELEASE(a.data[i]);                                                    \
+      }                                                                        \
+      free(WY_HEADER(a.data));                                                 \
+    }                                                                          \
+  }                                                                            \
+  static inline bool NAME##_equals(NAME a, NAME b) {                           \
+    if (a.length != b.length) {                                                \
+      return false;                                                            \
+    }                                                                          \
+    for (int64_t i = 0; i < a.length; i++) {                                   \
+      if (!EQ(a.data[i], b.data[i])) {                                         \
+        return false;                                                          \
+      }                                                                        \
+    }                                                                          \
+    return true;                                                               \
+  }                                                                            \
+  static inline NAME NAME##_update(NAME a, int64_t i, T v) {                   \
+    T *data = NAME##_write(&a);                                                \
+    RELEASE(data[i]);                                                          \
+    data[i] = v;                                                               \
+    return a;                                                                  \
+  }
+
+#endif
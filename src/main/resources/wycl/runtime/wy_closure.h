@@ -0,0 +1,68 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Runtime support for Whiley lambdas and function (or method) references.
+//
+// A closure pairs a function pointer with an environment holding the variables
+// captured when it was created.  The function receives the environment as its
+// first parameter.  Closure types are generated by the compiler, since their
+// signatures vary.  For example, function(int)->(int) becomes:
+//
+//   typedef struct { wy_int (*fn)(void *, wy_int); void *env; } wy_fn_...;
+//
+// The environment of a lambda is a structure holding exactly the variables it
+// captures.  Lambdas which capture nothing, and references to named functions,
+// have a NULL environment and so require no allocation.
+// ============================================================================
+#ifndef WY_CLOSURE_H
+#define WY_CLOSURE_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <string.h>
+
+#include "wy_array.h"
+#include "wy_region.h"
+
+/**
+ * Closures are equal only when they have the same function and environment.
+ * Copying and releasing a closure does nothing to its environment.
+ */
+#define WY_CLOSURE_DECL(NAME)                                                  \
+  static inline bool NAME##_equals(NAME a, NAME b) {                           \
+    return a.fn == b.fn && a.env == b.env;                                     \
+  }                                                                            \
+  static inline NAME NAME##_copy(NAME a) { return a; }                         \
+  static inline void NAME##_release(NAME a) { (void)a; }
+
+/**
+ * Allocate an environment on the heap, initialised from a given value.
+ */
+static inline void *wy_env_new(size_t size, const void *data) {
+  void *p = wy_malloc(size);
+  memcpy(p, data, size);
+  return p;
+}
+
+/**
+ * Allocate an environment from a region, initialised from a given value.
+ */
+static inline void *wy_env_new_in(wy_region *r, size_t size, const void *data) {
+  void *p = wy_region_alloc(r, size);
+  memcpy(p, data, size);
+  return p;
+}
+
+#endif
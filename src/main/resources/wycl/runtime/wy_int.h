@@ -0,0 +1,607 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Runtime support for Whiley's unbounded integers.
+//
+// A wy_int is a single 64-bit word.  When the least significant bit is set,
+// the remaining 63 bits hold the value directly (a "small" integer in the
+// range -2^62 .. 2^62-1).  Otherwise, the word is a pointer to an immutable
+// arbitrary-precision integer (a "big" integer).  Big integers are always
+// normalised, so any value in the small range is represented as a small
+// integer.  Hence, two integers are equal if they have the same bits, or if
+// both are big and have the same magnitude and sign.
+//
+// Arithmetic on small integers is inlined, using the compiler's overflow
+// checking builtins to detect when a result leaves the small range.  Only then
+// is the (out-of-line) slow path taken.  The slow path uses stack buffers for
+// its intermediate results where possible, and allocates only the final big
+// integer (if the result does not fit in the small range).
+//
+// Big integers are never freed.  Since integers are copied freely (e.g. into
+// arrays, records and closures) without any ownership being tracked, there is
+// no point at which a big integer is known to be unreachable.  Hence, each
+// operation whose result leaves the small range leaks its result.  This is a
+// deliberate limitation, on the basis that such results are rare.
+// ============================================================================
+#ifndef WY_INT_H
+#define WY_INT_H
+
+#include <assert.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#ifndef WY_LIKELY
+#define WY_LIKELY(c) __builtin_expect(!!(c), 1)
+#define WY_UNLIKELY(c) __builtin_expect(!!(c), 0)
+#endif
+
+typedef int64_t wy_int;
+
+/**
+ * An arbitrary-precision integer, represented as a sign and magnitude.  The
+ * magnitude is stored as 32-bit limbs in little-endian order, and the most
+ * significant limb is never zero.
+ */
+typedef struct {
+  int32_t sign;
+  uint32_t size;
+  uint32_t limbs[];
+} wy_big;
+
+#define WY_INT_MAX_SMALL ((INT64_C(1) << 62) - 1)
+#define WY_INT_MIN_SMALL (-(INT64_C(1) << 62))
+
+/**
+ * Construct an integer from a constant within the small range.
+ */
+#define WY_INT(c) ((wy_int)(((uint64_t)(int64_t)(c) << 1) | 1))
+
+/**
+ * Number of limbs for which intermediate results are held on the stack.
+ */
+#define WY_INT_STACK 64
+
+static inline bool wy_int_is_small(wy_int x) { return x & 1; }
+
+static inline int64_t wy_int_small(wy_int x) { return x >> 1; }
+
+static inline const wy_big *wy_int_big(wy_int x) {
+  return (const wy_big *)(intptr_t)x;
+}
+
+// ============================================================================
+// Slow path
+// ============================================================================
+
+/**
+ * A view of any integer as a sign and magnitude.  For small integers, the
+ * magnitude is held in the view itself.
+ */
+typedef struct {
+  int sign;
+  uint32_t size;
+  const uint32_t *limbs;
+  uint32_t buf[2];
+} wy_int_view;
+
+static void wy_int_view_init(wy_int_view *v, wy_int x) {
+  if (wy_int_is_small(x)) {
+    int64_t s = wy_int_small(x);
+    uint64_t m = s < 0 ? -(uint64_t)s : (uint64_t)s;
+    v->sign = s < 0 ? -1 : 1;
+    v->buf[0] = (uint32_t)m;
+    v->buf[1] = (uint32_t)(m >> 32);
+    v->size = v->buf[1] != 0 ? 2 : (v->buf[0] != 0 ? 1 : 0);
+    v->limbs = v->buf;
+  } else {
+    const wy_big *b = wy_int_big(x);
+    v->sign = b->sign;
+    v->size = b->size;
+    v->limbs = b->limbs;
+  }
+}
+
+/**
+ * Construct an integer from a sign and magnitude, normalising it as necessary.
+ */
+static wy_int wy_int_make(int sign, const uint32_t *limbs, uint32_t size) {
+  while (size > 0 && limbs[size - 1] == 0) {
+    size--;
+  }
+  if (size <= 2) {
+    uint64_t m = size == 0 ? 0 : limbs[0];
+    if (size == 2) {
+      m |= (uint64_t)limbs[1] << 32;
+    }
+    if (sign > 0 && m <= (uint64_t)WY_INT_MAX_SMALL) {
+      return WY_INT((int64_t)m);
+    } else if (sign < 0 && m <= (uint64_t)1 << 62) {
+      return WY_INT(-(int64_t)m);
+    }
+  }
+  wy_big *b = (wy_big *)malloc(sizeof(wy_big) + size * sizeof(uint32_t));
+  if (b == NULL) {
+    fprintf(stderr, "out of memory\n");
+    abort();
+  }
+  b->sign = sign;
+  b->size = size;
+  memcpy(b->limbs, limbs, size * sizeof(uint32_t));
+  return (wy_int)(intptr_t)b;
+}
+
+/**
+ * Obtain a buffer for an intermediate result of a given number of limbs,
+ * using the given stack buffer where possible.
+ */
+static uint32_t *wy_int_buffer(uint32_t *stack, uint32_t size) {
+  if (size <= WY_INT_STACK) {
+    memset(stack, 0, WY_INT_STACK * sizeof(uint32_t));
+    return stack;
+  }
+  uint32_t *r = (uint32_t *)calloc(size, sizeof(uint32_t));
+  if (r == NULL) {
+    fprintf(stderr, "out of memory\n");
+    abort();
+  }
+  return r;
+}
+
+static void wy_int_free(uint32_t *stack, uint32_t *buffer) {
+  if (buffer != stack) {
+    free(buffer);
+  }
+}
+
+static int wy_mag_cmp(const uint32_t *a, uint32_t an, const uint32_t *b, uint32_t bn) {
+  if (an != bn) {
+    return an < bn ? -1 : 1;
+  }
+  for (uint32_t i = an; i-- > 0;) {
+    if (a[i] != b[i]) {
+      return a[i] < b[i] ? -1 : 1;
+    }
+  }
+  return 0;
+}
+
+// r[0..max(an,bn)] = a + b
+static void wy_mag_add(uint32_t *r, const uint32_t *a, uint32_t an, const uint32_t *b, uint32_t bn) {
+  uint64_t carry = 0;
+  uint32_t n = an > bn ? an : bn;
+  for (uint32_t i = 0; i < n; i++) {
+    uint64_t t = carry + (i < an ? a[i] : 0) + (i < bn ? b[i] : 0);
+    r[i] = (uint32_t)t;
+    carry = t >> 32;
+  }
+  r[n] = (uint32_t)carry;
+}
+
+// r[0..an-1] = a - b, where a >= b
+static void wy_mag_sub(uint32_t *r, const uint32_t *a, uint32_t an, const uint32_t *b, uint32_t bn) {
+  int64_t borrow = 0;
+  for (uint32_t i = 0; i < an; i++) {
+    int64_t t = (int64_t)a[i] - (i < bn ? b[i] : 0) - borrow;
+    borrow = t < 0;
+    r[i] = (uint32_t)(t + (borrow << 32));
+  }
+}
+
+// r[0..an+bn-1] = a * b, where r is initially zero
+static void wy_mag_mul(uint32_t *r, const uint32_t *a, uint32_t an, const uint32_t *b, uint32_t bn) {
+  for (uint32_t i = 0; i < an; i++) {
+    uint64_t carry = 0;
+    for (uint32_t j = 0; j < bn; j++) {
+      uint64_t t = (uint64_t)a[i] * b[j] + r[i + j] + carry;
+      r[i + j] = (uint32_t)t;
+      carry = t >> 32;
+    }
+    r[i + bn] = (uint32_t)carry;
+  }
+}
+
+// q[0..m-n] = u / v and r[0..n-1] = u % v, where m >= n and v[n-1] != 0.
+// This is Knuth's Algorithm D, and un (m+1 limbs) and vn (n limbs) are
+// scratch space.
+static void wy_mag_divmod(uint32_t *q, uint32_t *r, const uint32_t *u, uint32_t m, const uint32_t *v,
+                          uint32_t n, uint32_t *un, uint32_t *vn) {
+  const uint64_t b = (uint64_t)1 << 32;
+  if (n == 1) {
+    uint64_t k = 0;
+    for (uint32_t j = m; j-- > 0;) {
+      uint64_t t = (k << 32) | u[j];
+      q[j] = (uint32_t)(t / v[0]);
+      k = t - (uint64_t)q[j] * v[0];
+    }
+    r[0] = (uint32_t)k;
+    return;
+  }
+  // Normalise so the top limb of the divisor has its high bit set
+  int s = __builtin_clz(v[n - 1]);
+  for (uint32_t i = n - 1; i > 0; i--) {
+    vn[i] = (v[i] << s) | (uint32_t)((uint64_t)v[i - 1] >> (32 - s));
+  }
+  vn[0] = v[0] << s;
+  un[m] = (uint32_t)((uint64_t)u[m - 1] >> (32 - s));
+  for (uint32_t i = m - 1; i > 0; i--) {
+    un[i] = (u[i] << s) | (uint32_t)((uint64_t)u[i - 1] >> (32 - s));
+  }
+  un[0] = u[0] << s;
+  for (uint32_t j = m - n + 1; j-- > 0;) {
+    // Estimate the next quotient limb
+    uint64_t num = ((uint64_t)un[j + n] << 32) | un[j + n - 1];
+    uint64_t qhat = num / vn[n - 1];
+    uint64_t rhat = num - qhat * vn[n - 1];
+    while (qhat >= b || qhat * vn[n - 2] > ((rhat << 32) | un[j + n - 2])) {
+      qhat--;
+      rhat += vn[n - 1];
+      if (rhat >= b) {
+        break;
+      }
+    }
+    // Multiply and subtract
+    int64_t k = 0, t;
+    for (uint32_t i = 0; i < n; i++) {
+      uint64_t p = qhat * vn[i];
+      t = (int64_t)un[i + j] - k - (int64_t)(p & 0xFFFFFFFF);
+      un[i + j] = (uint32_t)t;
+      k = (int64_t)(p >> 32) - (t >> 32);
+    }
+    t = (int64_t)un[j + n] - k;
+    un[j + n] = (uint32_t)t;
+    q[j] = (uint32_t)qhat;
+    if (t < 0) {
+      // Estimate was one too large, so add back
+      q[j]--;
+      k = 0;
+      for (uint32_t i = 0; i < n; i++) {
+        t = (int64_t)un[i + j] + vn[i] + k;
+        un[i + j] = (uint32_t)t;
+        k = t >> 32;
+      }
+      un[j + n] += (uint32_t)k;
+    }
+  }
+  // Unnormalise the remainder
+  for (uint32_t i = 0; i < n; i++) {
+    r[i] = (un[i] >> s) | (uint32_t)((uint64_t)un[i + 1] << (32 - s));
+  }
+}
+
+static wy_int wy_int_addv(const wy_int_view *a, const wy_int_view *b, int bsign) {
+  uint32_t stack[WY_INT_STACK];
+  uint32_t n = (a->size > b->size ? a->size : b->size) + 1;
+  uint32_t *r = wy_int_buffer(stack, n);
+  int sign;
+  if (a->sign == bsign) {
+    wy_mag_add(r, a->limbs, a->size, b->limbs, b->size);
+    sign = a->sign;
+  } else if (wy_mag_cmp(a->limbs, a->size, b->limbs, b->size) >= 0) {
+    wy_mag_sub(r, a->limbs, a->size, b->limbs, b->size);
+    sign = a->sign;
+  } else {
+    wy_mag_sub(r, b->limbs, b->size, a->limbs, a->size);
+    sign = bsign;
+  }
+  wy_int result = wy_int_make(sign, r, n);
+  wy_int_free(stack, r);
+  return result;
+}
+
+__attribute__((noinline)) static wy_int wy_int_add_slow(wy_int x, wy_int y) {
+  wy_int_view a, b;
+  wy_int_view_init(&a, x);
+  wy_int_view_init(&b, y);
+  return wy_int_addv(&a, &b, b.sign);
+}
+
+__attribute__((noinline)) static wy_int wy_int_sub_slow(wy_int x, wy_int y) {
+  wy_int_view a, b;
+  wy_int_view_init(&a, x);
+  wy_int_view_init(&b, y);
+  return wy_int_addv(&a, &b, -b.sign);
+}
+
+__attribute__((noinline)) static wy_int wy_int_mul_slow(wy_int x, wy_int y) {
+  uint32_t stack[WY_INT_STACK];
+  wy_int_view a, b;
+  wy_int_view_init(&a, x);
+  wy_int_view_init(&b, y);
+  uint32_t n = a.size + b.size;
+  uint32_t *r = wy_int_buffer(stack, n);
+  wy_mag_mul(r, a.limbs, a.size, b.limbs, b.size);
+  wy_int result = wy_int_make(a.sign * b.sign, r, n);
+  wy_int_free(stack, r);
+  return result;
+}
+
+/**
+ * Compute the truncated quotient and remainder of two integers.  Either result
+ * may be NULL if not required.
+ */
+__attribute__((noinline)) static void wy_int_divmod_slow(wy_int x, wy_int y, wy_int *quot, wy_int *rem) {
+  wy_int_view a, b;
+  wy_int_view_init(&a, x);
+  wy_int_view_init(&b, y);
+  if (b.size == 0) {
+    fprintf(stderr, "division by zero\n");
+    abort();
+  } else if (wy_mag_cmp(a.limbs, a.size, b.limbs, b.size) < 0) {
+    if (quot != NULL) {
+      *quot = WY_INT(0);
+    }
+    if (rem != NULL) {
+      *rem = x;
+    }
+    return;
+  }
+  uint32_t qstack[WY_INT_STACK], rstack[WY_INT_STACK], ustack[WY_INT_STACK], vstack[WY_INT_STACK];
+  uint32_t *q = wy_int_buffer(qstack, a.size - b.size + 1);
+  uint32_t *r = wy_int_buffer(rstack, b.size);
+  uint32_t *un = wy_int_buffer(ustack, a.size + 1);
+  uint32_t *vn = wy_int_buffer(vstack, b.size);
+  wy_mag_divmod(q, r, a.limbs, a.size, b.limbs, b.size, un, vn);
+  if (quot != NULL) {
+    *quot = wy_int_make(a.sign * b.sign, q, a.size - b.size + 1);
+  }
+  if (rem != NULL) {
+    *rem = wy_int_make(a.sign, r, b.size);
+  }
+  wy_int_free(qstack, q);
+  wy_int_free(rstack, r);
+  wy_int_free(ustack, un);
+  wy_int_free(vstack, vn);
+}
+
+__attribute__((noinline)) static int wy_int_cmp_slow(wy_int x, wy_int y) {
+  wy_int_view a, b;
+  wy_int_view_init(&a, x);
+  wy_int_view_init(&b, y);
+  if (a.size == 0 && b.size == 0) {
+    return 0;
+  } else if (a.size == 0) {
+    return -b.sign;
+  } else if (b.size == 0 || a.sign != b.sign) {
+    return a.sign;
+  }
+  return a.sign * wy_mag_cmp(a.limbs, a.size, b.limbs, b.size);
+}
+
+/**
+ * Construct an integer from a 64-bit value which may not be in the small range.
+ */
+__attribute__((noinline)) static wy_int wy_int_from_i64_slow(int64_t v) {
+  uint64_t m = v < 0 ? -(uint64_t)v : (uint64_t)v;
+  uint32_t limbs[2] = {(uint32_t)m, (uint32_t)(m >> 32)};
+  return wy_int_make(v < 0 ? -1 : 1, limbs, 2);
+}
+
+/**
+ * Parse an integer from a string of decimal digits, with an optional leading
+ * minus sign.  This is used for constants outside the small range.
+ */
+static inline wy_int wy_int_parse(const char *str) {
+  int sign = 1;
+  if (*str == '-') {
+    sign = -1;
+    str++;
+  }
+  uint32_t stack[WY_INT_STACK];
+  uint32_t n = (uint32_t)(strlen(str) / 9) + 2;
+  uint32_t *r = wy_int_buffer(stack, n);
+  uint32_t size = 0;
+  for (; *str != '\0'; str++) {
+    uint64_t carry = (uint64_t)(*str - '0');
+    for (uint32_t i = 0; i < size; i++) {
+      uint64_t t = (uint64_t)r[i] * 10 + carry;
+      r[i] = (uint32_t)t;
+      carry = t >> 32;
+    }
+    if (carry != 0) {
+      r[size++] = (uint32_t)carry;
+    }
+  }
+  wy_int result = wy_int_make(sign, r, size);
+  wy_int_free(stack, r);
+  return result;
+}
+
+/**
+ * Write an integer in decimal to a given stream.
+ */
+static inline void wy_int_fprint(FILE *out, wy_int x) {
+  if (wy_int_is_small(x)) {
+    fprintf(out, "%lld", (long long)wy_int_small(x));
+    return;
+  }
+  const wy_big *b = wy_int_big(x);
+  uint32_t size = b->size;
+  uint32_t *mag = (uint32_t *)malloc(size * sizeof(uint32_t));
+  // Each chunk holds nine decimal digits
+  uint32_t *chunks = (uint32_t *)malloc((size * 10 / 9 + 2) * sizeof(uint32_t));
+  if (mag == NULL || chunks == NULL) {
+    fprintf(stderr, "out of memory\n");
+    abort();
+  }
+  memcpy(mag, b->limbs, size * sizeof(uint32_t));
+  uint32_t count = 0;
+  while (size > 0) {
+    uint64_t k = 0;
+    for (uint32_t j = size; j-- > 0;) {
+      uint64_t t = (k << 32) | mag[j];
+      mag[j] = (uint32_t)(t / 1000000000);
+      k = t % 1000000000;
+    }
+    chunks[count++] = (uint32_t)k;
+    while (size > 0 && mag[size - 1] == 0) {
+      size--;
+    }
+  }
+  if (b->sign < 0) {
+    fputc('-', out);
+  }
+  fprintf(out, "%u", chunks[count - 1]);
+  for (uint32_t i = count - 1; i-- > 0;) {
+    fprintf(out, "%09u", chunks[i]);
+  }
+  free(mag);
+  free(chunks);
+}
+
+// ============================================================================
+// Fast path
+// ============================================================================
+
+static inline wy_int wy_int_from_i64(int64_t v) {
+  if (WY_LIKELY(v >= WY_INT_MIN_SMALL && v <= WY_INT_MAX_SMALL)) {
+    return WY_INT(v);
+  }
+  return wy_int_from_i64_slow(v);
+}
+
+/**
+ * Convert an integer to a 64-bit value (e.g. for indexing an array).  This
+ * aborts if the value does not fit.
+ */
+static inline int64_t wy_int_to_i64(wy_int x) {
+  if (WY_LIKELY(wy_int_is_small(x))) {
+    return wy_int_small(x);
+  }
+  const wy_big *b = wy_int_big(x);
+  uint64_t m = b->size == 0 ? 0 : b->limbs[0];
+  if (b->size == 2) {
+    m |= (uint64_t)b->limbs[1] << 32;
+  }
+  if (b->size > 2 || (b->sign > 0 && m > INT64_MAX) || (b->sign < 0 && m > (uint64_t)INT64_MAX + 1)) {
+    fprintf(stderr, "integer overflow\n");
+    abort();
+  }
+  return b->sign < 0 ? (int64_t)-m : (int64_t)m;
+}
+
+/**
+ * Terminate following a Whiley fail statement, or a failed runtime check.
+ * Unlike an assertion, this is not disabled by NDEBUG, hence functions which
+ * always fail never return.
+ */
+__attribute__((noreturn, cold)) static inline void wy_fail(void) {
+  fprintf(stderr, "fail\n");
+  abort();
+}
+
+/**
+ * Convert an integer to a fixed-width value which should lie within a given
+ * range (e.g. because of a type invariant).  The range is always checked, since
+ * a value outside it would otherwise be truncated.
+ */
+static inline int64_t wy_int_narrow(wy_int x, int64_t lo, int64_t hi) {
+  int64_t v = wy_int_to_i64(x);
+  if (WY_UNLIKELY(v < lo || v > hi)) {
+    wy_fail();
+  }
+  return v;
+}
+
+/**
+ * As for wy_int_narrow, but for a value which has already been computed as a
+ * fixed-width value.
+ */
+static inline int64_t wy_i64_narrow(int64_t v, int64_t lo, int64_t hi) {
+  if (WY_UNLIKELY(v < lo || v > hi)) {
+    wy_fail();
+  }
+  return v;
+}
+
+static inline wy_int wy_int_add(wy_int a, wy_int b) {
+  wy_int r;
+  if (WY_LIKELY(a & b & 1) && !__builtin_add_overflow(a, b - 1, &r)) {
+    return r;
+  }
+  return wy_int_add_slow(a, b);
+}
+
+static inline wy_int wy_int_sub(wy_int a, wy_int b) {
+  wy_int r;
+  if (WY_LIKELY(a & b & 1) && !__builtin_sub_overflow(a, b - 1, &r)) {
+    return r;
+  }
+  return wy_int_sub_slow(a, b);
+}
+
+static inline wy_int wy_int_mul(wy_int a, wy_int b) {
+  wy_int r;
+  if (WY_LIKELY(a & b & 1) && !__builtin_mul_overflow(a >> 1, b - 1, &r)) {
+    return r | 1;
+  }
+  return wy_int_mul_slow(a, b);
+}
+
+static inline wy_int wy_int_div(wy_int a, wy_int b) {
+  if (WY_LIKELY(a & b & 1) && b != WY_INT(0)) {
+    return wy_int_from_i64(wy_int_small(a) / wy_int_small(b));
+  }
+  wy_int q;
+  wy_int_divmod_slow(a, b, &q, NULL);
+  return q;
+}
+
+static inline wy_int wy_int_rem(wy_int a, wy_int b) {
+  if (WY_LIKELY(a & b & 1) && b != WY_INT(0)) {
+    return WY_INT(wy_int_small(a) % wy_int_small(b));
+  }
+  wy_int r;
+  wy_int_divmod_slow(a, b, NULL, &r);
+  return r;
+}
+
+static inline wy_int wy_int_neg(wy_int a) {
+  wy_int r;
+  if (WY_LIKELY(a & 1) && !__builtin_sub_overflow((wy_int)2, a, &r)) {
+    return r;
+  }
+  return wy_int_sub_slow(WY_INT(0), a);
+}
+
+static inline bool wy_int_equals(wy_int a, wy_int b) {
+  return a == b || (!(a & 1) && !(b & 1) && wy_int_cmp_slow(a, b) == 0);
+}
+
+static inline bool wy_int_lt(wy_int a, wy_int b) {
+  return WY_LIKELY(a & b & 1) ? a < b : wy_int_cmp_slow(a, b) < 0;
+}
+
+static inline bool wy_int_le(wy_int a, wy_int b) {
+  return WY_LIKELY(a & b & 1) ? a <= b : wy_int_cmp_slow(a, b) <= 0;
+}
+
+static inline bool wy_int_gt(wy_int a, wy_int b) {
+  return WY_LIKELY(a & b & 1) ? a > b : wy_int_cmp_slow(a, b) > 0;
+}
+
+static inline bool wy_int_ge(wy_int a, wy_int b) {
+  return WY_LIKELY(a & b & 1) ? a >= b : wy_int_cmp_slow(a, b) >= 0;
+}
+
+// Integers are immutable, hence copying is trivial and nothing is released.
+// These allow integers to be stored in arrays.
+static inline wy_int wy_int_copy(wy_int a) { return a; }
+
+static inline void wy_int_release(wy_int a) { (void)a; }
+
+#endif
@@ -0,0 +1,122 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Memoisation of Whiley functions.
+//
+// A memoised function caches its results in a fixed-size table keyed on its
+// arguments, which are held in a structure generated by the compiler.  For
+// example, a function f(int x, int y) has a table declared with:
+//
+//   typedef struct { wy_int x; wy_int y; } f_key;
+//   WY_MEMO_DECL(f_memo, f_key, wy_int)
+//
+// Keys are compared bitwise, hence must be zeroed before their fields are
+// assigned (so padding is ignored).  The table uses open addressing, where a
+// key is held in one of the WY_MEMO_PROBES slots following its hash.  When
+// all of these are used, the first is evicted.  When compiled with WY_STATS
+// defined, the number of hits, misses and evictions of each table are reported
+// on exit.
+// ============================================================================
+#ifndef WY_MEMO_H
+#define WY_MEMO_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "wy_array.h"
+
+/**
+ * The number of slots in each table, which must be a power of two.
+ */
+#ifndef WY_MEMO_SIZE
+#define WY_MEMO_SIZE 4096
+#endif
+
+/**
+ * The number of slots in which a given key may be held.
+ */
+#define WY_MEMO_PROBES 4
+
+/**
+ * Hash a key using FNV-1a.
+ */
+static inline uint64_t wy_memo_hash(const void *key, size_t size) {
+  const unsigned char *p = (const unsigned char *)key;
+  uint64_t h = 14695981039346656037ULL;
+  for (size_t i = 0; i < size; i++) {
+    h = (h ^ p[i]) * 1099511628211ULL;
+  }
+  return h ^ (h >> 32);
+}
+
+#ifdef WY_STATS
+#define WY_MEMO_STATS(NAME)                                                    \
+  static int64_t NAME##_hits, NAME##_misses, NAME##_evictions;                 \
+  __attribute__((destructor)) static void NAME##_report(void) {               \
+    fprintf(stderr, "%s: hits=%lld misses=%lld evictions=%lld\n", #NAME,       \
+            (long long)NAME##_hits, (long long)NAME##_misses,                  \
+            (long long)NAME##_evictions);                                      \
+  }
+#else
+#define WY_MEMO_STATS(NAME)
+#endif
+
+/**
+ * Declare a table NAME which maps keys of type K to values of type V, along
+ * with the functions NAME_lookup and NAME_store.
+ */
+#define WY_MEMO_DECL(NAME, K, V)                                               \
+  typedef struct {                                                             \
+    bool used;                                                                 \
+    K key;                                                                     \
+    V value;                                                                   \
+  } NAME##_entry;                                                              \
+  static NAME##_entry NAME##_table[WY_MEMO_SIZE];                              \
+  WY_MEMO_STATS(NAME)                                                          \
+  static inline bool NAME##_lookup(const K *key, V *value) {                   \
+    size_t h = (size_t)wy_memo_hash(key, sizeof(K));                           \
+    for (size_t i = 0; i < WY_MEMO_PROBES; i++) {                              \
+      NAME##_entry *e = &NAME##_table[(h + i) & (WY_MEMO_SIZE - 1)];           \
+      if (!e->used) {                                                          \
+        break;                                                                 \
+      } else if (memcmp(&e->key, key, sizeof(K)) == 0) {                       \
+        WY_COUNT(NAME##_hits);                                                 \
+        *value = e->value;                                                     \
+        return true;                                                           \
+      }                                                                        \
+    }                                                                          \
+    WY_COUNT(NAME##_misses);                                                   \
+    return false;                                                              \
+  }                                                                            \
+  static inline void NAME##_store(const K *key, V value) {                     \
+    size_t h = (size_t)wy_memo_hash(key, sizeof(K));                           \
+    NAME##_entry *e = &NAME##_table[h & (WY_MEMO_SIZE - 1)];                   \
+    for (size_t i = 0; i < WY_MEMO_PROBES; i++) {                              \
+      NAME##_entry *f = &NAME##_table[(h + i) & (WY_MEMO_SIZE - 1)];           \
+      if (!f->used) {                                                          \
+        e = f;                                                                 \
+        break;                                                                 \
+      } else if (i == WY_MEMO_PROBES - 1) {                                    \
+        WY_COUNT(NAME##_evictions);                                            \
+      }                                                                        \
+    }                                                                          \
+    e->used = true;                                                            \
+    e->key = *key;                                                             \
+    e->value = value;                                                          \
+  }
+
+#endif
@@ -0,0 +1,157 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Runtime support for Whiley open records (e.g. {int x, ...}).
+//
+// The fields of an open record are not known at compile time, since it may
+// hold any record with (at least) the given fields.  Therefore, an open record
+// is represented by a pointer to the record itself, along with its "shape"
+// which gives the offset of every field.  Shapes are declared by the compiler
+// for each record type converted to an open record.  For example:
+//
+//   WY_SHAPE_DECL(Point, WY_FIELD(Point, x), WY_FIELD(Point, y))
+//
+// Each field access site has its own inline cache which remembers the shape
+// and offset from the last access.  Hence, the field is only looked up by name
+// when a site sees a different shape.  Records are shared, and duplicated
+// before being written.
+// ============================================================================
+#ifndef WY_OPEN_H
+#define WY_OPEN_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <string.h>
+
+#include "wy_array.h"
+
+typedef struct {
+  const char *name;
+  size_t offset;
+} wy_field;
+
+typedef struct {
+  size_t size;
+  size_t count;
+  const wy_field *fields;
+  // Copy the fields (e.g. arrays) of a record duplicated bitwise
+  void (*copy)(void *);
+  // Release the fields of a record being freed
+  void (*release)(void *);
+  // Compare the fields of two records
+  bool (*equals)(const void *, const void *);
+} wy_shape;
+
+typedef struct {
+  const wy_shape *shape;
+  void *data;
+} wy_open;
+
+typedef struct {
+  const wy_shape *shape;
+  size_t offset;
+} wy_cache;
+
+#define WY_FIELD(S, F) {#F, offsetof(S, F)}
+
+/**
+ * Declare the shape S_shape of a record type S, given its fields.
+ */
+#define WY_SHAPE_DECL(S, ...)                                                  \
+  static const wy_field S##_fields[] = {__VA_ARGS__};                          \
+  static void S##_shape_copy(void *p) { *(S *)p = S##_copy(*(S *)p); }        \
+  static void S##_shape_release(void *p) { S##_release(*(S *)p); }            \
+  static bool S##_shape_equals(const void *a, const void *b) {                 \
+    return S##_equals(*(const S *)a, *(const S *)b);                           \
+  }                                                                            \
+  static const wy_shape S##_shape = {                                          \
+      sizeof(S),         sizeof(S##_fields) / sizeof(wy_field),                \
+      S##_fields,        S##_shape_copy,                                       \
+      S##_shape_release, S##_shape_equals};
+
+/**
+ * Convert a record with a given shape into an open record, which takes over
+ * the fields of the record.  The record is held in a reference counted buffer
+ * (as for arrays), which is shared when the open record is copied.
+ */
+static inline wy_open wy_open_from(const wy_shape *shape, const void *data) {
+  wy_open r = {shape, wy_buffer_alloc(shape->size)};
+  memcpy(r.data, data, shape->size);
+  return r;
+}
+
+static inline wy_open wy_open_copy(wy_open a) {
+  wy_buffer_share(a.data);
+  return a;
+}
+
+static inline void wy_open_release(wy_open a) {
+  if (wy_buffer_drop(a.data)) {
+    a.shape->release(a.data);
+    free(WY_HEADER(a.data));
+  }
+}
+
+/**
+ * Look up a field whose offset is not in the cache, and update the cache.
+ */
+static void *wy_open_miss(wy_open r, const char *name, wy_cache *cache) {
+  for (size_t i = 0; i < r.shape->count; i++) {
+    if (strcmp(r.shape->fields[i].name, name) == 0) {
+      cache->shape = r.shape;
+      cache->offset = r.shape->fields[i].offset;
+      return (char *)r.data + cache->offset;
+    }
+  }
+  fprintf(stderr, "unknown field: %s\n", name);
+  abort();
+}
+
+static inline void *wy_open_field(wy_open r, const char *name, wy_cache *cache) {
+  if (WY_LIKELY(cache->shape == r.shape)) {
+    return (char *)r.data + cache->offset;
+  }
+  return wy_open_miss(r, name, cache);
+}
+
+/**
+ * Determine the address of a field, using an inline cache for this site.
+ */
+#define WY_OPEN_FIELD(R, F)                                                    \
+  ({                                                                           \
+    static wy_cache wy_ic;                                                     \
+    wy_open_field((R), (F), &wy_ic);                                           \
+  })
+
+/**
+ * Prepare an open record for writing, by duplicating it unless it is not
+ * shared.  The duplicate must not alias (e.g.) arrays held by the original.
+ */
+static inline wy_open wy_open_write(wy_open *r) {
+  if (!wy_buffer_unique(r->data)) {
+    wy_open old = *r;
+    *r = wy_open_from(old.shape, old.data);
+    r->shape->copy(r->data);
+    wy_open_release(old);
+  }
+  return *r;
+}
+
+static inline bool wy_open_equals(wy_open a, wy_open b) {
+  return a.shape == b.shape &&
+         (a.data == b.data || a.shape->equals(a.data, b.data));
+}
+
+#endif
@@ -0,0 +1,127 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Region (or "arena") allocation for the boxes of recursive types.
+//
+// A region hands out memory by bumping a pointer through a list of blocks,
+// and releases everything at once when freed.  The compiler gives a function
+// its own region when none of the boxes it allocates can outlive the call
+// (i.e. none can be returned).  For example:
+//
+//   WY_REGION(wy_rgn);
+//   ...
+//   List l = Link_new_in(&wy_rgn, ...);
+//
+// The region is freed automatically when the function returns.  When compiled
+// with WY_STATS defined, the number of regions, blocks and bytes allocated in
+// regions (and boxes allocated on the heap instead) are reported on exit.
+// ============================================================================
+#ifndef WY_REGION_H
+#define WY_REGION_H
+
+#include <stddef.h>
+#include <stdint.h>
+#include <stdlib.h>
+
+#include "wy_array.h"
+
+/**
+ * The size of the first block in a region.  Subsequent blocks double in size.
+ */
+#define WY_REGION_BLOCK 4096
+
+#define WY_REGION_ALIGN _Alignof(max_align_t)
+
+typedef struct wy_block {
+  struct wy_block *next;
+  size_t size;
+  _Alignas(max_align_t) unsigned char data[];
+} wy_block;
+
+typedef struct {
+  wy_block *head;
+  unsigned char *next;
+  unsigned char *end;
+} wy_region;
+
+#define WY_REGION_INIT {NULL, NULL, NULL}
+
+#ifdef WY_STATS
+static int64_t wy_stats_regions, wy_stats_blocks, wy_stats_bytes, wy_stats_boxes;
+__attribute__((destructor)) static void wy_region_stats(void) {
+  fprintf(stderr, "wy_region: regions=%lld blocks=%lld bytes=%lld heap=%lld\n",
+          (long long)wy_stats_regions, (long long)wy_stats_blocks,
+          (long long)wy_stats_bytes, (long long)wy_stats_boxes);
+}
+#define WY_COUNT_BYTES(n) (wy_stats_bytes += (n))
+#else
+#define WY_COUNT_BYTES(n) ((void)0)
+#endif
+
+/**
+ * Release every block in a region.
+ */
+static inline void wy_region_free(wy_region *r) {
+  wy_block *b = r->head;
+  if (b != NULL) {
+    WY_COUNT(wy_stats_regions);
+  }
+  while (b != NULL) {
+    wy_block *next = b->next;
+    free(b);
+    b = next;
+  }
+  r->head = NULL;
+  r->next = r->end = NULL;
+}
+
+/**
+ * Declare a region which is freed when it goes out of scope.
+ */
+#define WY_REGION(NAME)                                                        \
+  wy_region NAME __attribute__((cleanup(wy_region_free))) = WY_REGION_INIT
+
+/**
+ * Add a block to a region which can hold at least size bytes.
+ */
+static void wy_region_grow(wy_region *r, size_t size) {
+  size_t n = r->head == NULL ? WY_REGION_BLOCK : 2 * r->head->size;
+  while (n < size) {
+    n *= 2;
+  }
+  wy_block *b = (wy_block *)wy_malloc(sizeof(wy_block) + n);
+  b->next = r->head;
+  b->size = n;
+  r->head = b;
+  r->next = b->data;
+  r->end = b->data + n;
+  WY_COUNT(wy_stats_blocks);
+}
+
+/**
+ * Allocate size bytes from a region.
+ */
+static inline void *wy_region_alloc(wy_region *r, size_t size) {
+  size = (size + WY_REGION_ALIGN - 1) & ~(WY_REGION_ALIGN - 1);
+  if (__builtin_expect((size_t)(r->end - r->next) < size, 0)) {
+    wy_region_grow(r, size);
+  }
+  void *p = r->next;
+  r->next += size;
+  WY_COUNT_BYTES(size);
+  return p;
+}
+
+#endif
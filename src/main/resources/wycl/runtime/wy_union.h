@@ -0,0 +1,140 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// ============================================================================
+// Runtime support for Whiley union and recursive types.
+//
+// In general, a union is represented as a tagged C union, where the tag
+// identifies which member is held.  Such types are generated by the compiler,
+// since their members vary.  For example, int|null becomes:
+//
+//   typedef struct { uint8_t tag; union { wy_int m0; } u; } wy_union_...;
+//
+// Note that null members occupy no space in the payload.  Two special cases
+// avoid the tag altogether.  Firstly, null|&T is represented as a (nullable)
+// pointer.  Secondly, bool|null is represented as a single byte (see below).
+//
+// Values of recursive types are "boxed" (i.e. allocated on the heap and
+// referred to by pointer), since otherwise they would have infinite size.  A
+// null member of a recursive type is represented by the NULL pointer, hence
+// types such as null|{int data, List next} require no tag.  Boxes are never
+// written in place, since they may be shared.  Instead, writing to a box first
+// duplicates it.  Boxes which cannot outlive the function allocating them
+// are allocated from its region instead (see wy_region.h).
+// ============================================================================
+#ifndef WY_UNION_H
+#define WY_UNION_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "wy_array.h"
+#include "wy_region.h"
+
+/**
+ * The null value.  This is only used for values whose type is exactly null,
+ * since null is otherwise encoded in the enclosing union.
+ */
+typedef uint8_t wy_null;
+
+#define WY_NULL ((wy_null)0)
+
+/**
+ * A value of type bool|null, where false is 0, true is 1 and null is
+ * WY_BOOL_NULL.
+ */
+typedef uint8_t wy_bool_null;
+
+#define WY_BOOL_NULL ((wy_bool_null)2)
+
+/**
+ * Declare the operations for copying and releasing a union whose members are
+ * all copied bitwise, which do nothing.  Unions holding (e.g.) arrays instead
+ * have operations generated which dispatch on the tag.
+ */
+#define WY_UNION_DECL(NAME)                                                    \
+  static inline NAME NAME##_copy(NAME a) { return a; }                         \
+  static inline void NAME##_release(NAME a) { (void)a; }
+
+/**
+ * Declare the operations for a boxed recursive type NAME (which must already
+ * be declared as a pointer to struct NAME_box) whose values have type T.
+ * Values are compared, copied and released bitwise.
+ */
+#define WY_BOX_DECL(NAME, T)                                                   \
+  WY_BOX_DECL_WITH(NAME, T, WY_BOX_BITWISE_EQUALS, WY_BOX_BITWISE_COPY,        \
+                   WY_BOX_BITWISE_RELEASE)
+
+#define WY_BOX_BITWISE_EQUALS(a, b) (memcmp(&(a), &(b), sizeof(a)) == 0)
+
+#define WY_BOX_BITWISE_COPY(a) (a)
+
+#define WY_BOX_BITWISE_RELEASE(a) ((void)(a))
+
+/**
+ * As for WY_BOX_DECL, but comparing, copying and releasing values using given
+ * functions.  Boxes on the heap are reference counted, such that the value is
+ * released along with the last reference.  Boxes in a region are instead
+ * marked with WY_REFS_CONST, since they are freed with the region.  Writing to
+ * a box duplicates it, so the value is copied to ensure the duplicate does not
+ * alias (e.g.) arrays held by the original.
+ */
+#define WY_BOX_DECL_WITH(NAME, T, EQ, COPY, RELEASE)                           \
+  struct NAME##_box {                                                          \
+    int64_t refs;                                                              \
+    T value;                                                                   \
+  };                                                                           \
+  static inline NAME NAME##_new(T v) {                                         \
+    NAME p = (NAME)wy_malloc(sizeof(struct NAME##_box));                       \
+    p->refs = 1;                                                               \
+    p->value = v;                                                              \
+    WY_COUNT(wy_stats_boxes);                                                  \
+    return p;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_new_in(wy_region *r, T v) {                        \
+    NAME p = (NAME)wy_region_alloc(r, sizeof(struct NAME##_box));              \
+    p->refs = WY_REFS_CONST;                                                   \
+    p->value = v;                                                              \
+    return p;                                                                  \
+  }                                                                            \
+  static inline NAME NAME##_copy(NAME a) {                                     \
+    if (a != NULL && a->refs > 0) {                                            \
+      a->refs++;                                                               \
+    }                                                                          \
+    return a;                                                                  \
+  }                                                                            \
+  static inline void NAME##_release(NAME a) {                                  \
+    if (a != NULL && a->refs > 0 && --a->refs == 0) {                          \
+      RELEASE(a->value);                                                       \
+      free(a);                                                                 \
+    }                                                                          \
+  }                                                                            \
+  static inline NAME NAME##_write(NAME *p) {                                   \
+    NAME old = *p;                                                             \
+    *p = NAME##_new(COPY(old->value));                                         \
+    NAME##_release(old);                                                       \
+    return *p;                                                                 \
+  }                                                                            \
+  static inline NAME NAME##_write_in(wy_region *r, NAME *p) {                  \
+    NAME old = *p;                                                             \
+    *p = NAME##_new_in(r, COPY(old->value));                                   \
+    NAME##_release(old);                                                       \
+    return *p;                                                                 \
+  }                                                                            \
+  static inline bool NAME##_equals(NAME a, NAME b) {                           \
+    return a == b || (a != NULL && b != NULL && EQ(a->value, b->value));      \
+  }
+
+#endif
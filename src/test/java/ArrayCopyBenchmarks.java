@@ -0,0 +1,110 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import wyc.util.testing.WhileyCompileTest;
+import wycc.util.Trie;
+import wycc.util.testing.TestManager;
+import wycl.util.testing.CLangCompileTest;
+import wycl.util.testing.CLangExecuteTest;
+
+/**
+ * Measures how effective copy-on-write is for array-heavy test cases. Each test
+ * is compiled with runtime statistics enabled, and the number of array buffers
+ * allocated, shared, duplicated (i.e. copied because they were shared when
+ * written) and written in place is reported. This is not run as part of the
+ * normal test suite, but can be run with:
+ *
+ * <pre>
+ * mvn test -Dtest=ArrayCopyBenchmarks
+ * </pre>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ArrayCopyBenchmarks {
+	/**
+	 * The test groups (identified by their original names) being measured.
+	 */
+	private final static Pattern GROUPS = Pattern.compile("original.name=\"(Array|ListAssign|ListGenerator)_");
+	/**
+	 * The statistics line produced by the runtime.
+	 */
+	private final static Pattern STATS = Pattern
+			.compile("wy_array: allocs=(\\d+) shares=(\\d+) copies=(\\d+) inplace=(\\d+)");
+	/**
+	 * The statistics reported for each test.
+	 */
+	private final static Map<String, long[]> stats = new TreeMap<>();
+
+	public final static TestManager manager = new TestManager(WhileyCompilerTests.WHILEY_SRC_DIR,
+			new WhileyCompileTest(), new CLangCompileTest("WY_STATS"), new CLangExecuteTest((t, err) -> {
+				Matcher m = STATS.matcher(err);
+				if (m.find()) {
+					long[] counts = new long[4];
+					for (int i = 0; i != counts.length; ++i) {
+						counts[i] = Long.parseLong(m.group(i + 1));
+					}
+					synchronized (stats) {
+						stats.put(t.toString(), counts);
+					}
+				}
+			}));
+
+	@ParameterizedTest
+	@MethodSource("sourceFiles")
+	public void benchmarks(Trie path) throws IOException {
+		manager.run(path);
+	}
+
+	@AfterAll
+	public static void report() {
+		long[] totals = new long[4];
+		System.out.println("test\tallocs\tshares\tcopies\tinplace");
+		for (Map.Entry<String, long[]> e : stats.entrySet()) {
+			long[] counts = e.getValue();
+			System.out.print(e.getKey());
+			for (int i = 0; i != counts.length; ++i) {
+				System.out.print("\t" + counts[i]);
+				totals[i] += counts[i];
+			}
+			System.out.println();
+		}
+		System.out.println("TOTAL\t" + totals[0] + "\t" + totals[1] + "\t" + totals[2] + "\t" + totals[3]);
+	}
+
+	private static Stream<Trie> sourceFiles() throws IOException {
+		return WhileyCompilerTests.readTestFiles(WhileyCompilerTests.WHILEY_SRC_DIR, n -> {
+			try {
+				Path file = WhileyCompilerTests.WHILEY_SRC_DIR.resolve(n);
+				return GROUPS.matcher(new String(Files.readAllBytes(file))).find();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import wycl.util.testing.StageTimings;
+
+/**
+ * Tests for the recording of per-stage timings, and the detection of
+ * performance regressions against a baseline.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StageTimingsTests {
+	private final static List<String> STAGES = Arrays.asList("CLangCompileTest", "CLangExecuteTest");
+
+	@Test
+	public void medianOfSamples() {
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangExecuteTest", 900);
+		timings.record("000001", "CLangExecuteTest", 100);
+		timings.record("000001", "CLangExecuteTest", 120);
+		assertEquals(Long.valueOf(120), timings.get("000001", "CLangExecuteTest"));
+		assertEquals(3, timings.getSamples("000001", "CLangExecuteTest"));
+		assertNull(timings.get("000001", "CLangCompileTest"));
+	}
+
+	@Test
+	public void regressionDetected() {
+		StageTimings baseline = new StageTimings();
+		baseline.record("000001", "CLangExecuteTest", 1000);
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangExecuteTest", 2500);
+		List<String> regressions = timings.regressions(baseline, "000001", STAGES, 2.0, 250);
+		assertEquals(1, regressions.size());
+		assertTrue(regressions.get(0).contains("CLangExecuteTest"));
+	}
+
+	@Test
+	public void regressionWithinThresholdOrSlack() {
+		StageTimings baseline = new StageTimings();
+		baseline.record("000001", "CLangCompileTest", 1000);
+		baseline.record("000001", "CLangExecuteTest", 10);
+		StageTimings timings = new StageTimings();
+		// Within the threshold
+		timings.record("000001", "CLangCompileTest", 1900);
+		// Within the slack, despite being much slower
+		timings.record("000001", "CLangExecuteTest", 200);
+		assertEquals(0, timings.regressions(baseline, "000001", STAGES, 2.0, 250).size());
+	}
+
+	@Test
+	public void singleOutlierIgnored() {
+		StageTimings baseline = new StageTimings();
+		baseline.record("000001", "CLangExecuteTest", 1000);
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangExecuteTest", 5000);
+		timings.record("000001", "CLangExecuteTest", 1100);
+		timings.record("000001", "CLangExecuteTest", 1050);
+		assertEquals(0, timings.regressions(baseline, "000001", STAGES, 2.0, 250).size());
+	}
+
+	@Test
+	public void missingBaselineIgnored() {
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangExecuteTest", 5000);
+		assertEquals(0, timings.regressions(new StageTimings(), "000001", STAGES, 2.0, 250).size());
+	}
+
+	@Test
+	public void mergeRetainsOtherTests() {
+		StageTimings baseline = new StageTimings();
+		baseline.record("000001", "CLangExecuteTest", 100);
+		baseline.record("000002", "CLangExecuteTest", 200);
+		baseline.record("000002", "CLangCompileTest", 300);
+		StageTimings shard = new StageTimings();
+		shard.record("000002", "CLangExecuteTest", 400);
+		shard.record("000003", "CLangExecuteTest", 500);
+		baseline.merge(shard);
+		assertEquals(Long.valueOf(100), baseline.get("000001", "CLangExecuteTest"));
+		assertEquals(Long.valueOf(400), baseline.get("000002", "CLangExecuteTest"));
+		assertEquals(Long.valueOf(300), baseline.get("000002", "CLangCompileTest"));
+		assertEquals(Long.valueOf(500), baseline.get("000003", "CLangExecuteTest"));
+	}
+
+	@Test
+	public void writeThenRead(@TempDir Path dir) throws IOException {
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangCompileTest", 10);
+		timings.record("000001", "CLangCompileTest", 30);
+		timings.record("000001", "CLangCompileTest", 20);
+		timings.record("000002", "CLangExecuteTest", 5);
+		Path file = dir.resolve("baseline.txt");
+		timings.write(file);
+		StageTimings read = StageTimings.read(file);
+		// Only the median is written
+		assertEquals(Long.valueOf(20), read.get("000001", "CLangCompileTest"));
+		assertEquals(1, read.getSamples("000001", "CLangCompileTest"));
+		assertEquals(Long.valueOf(5), read.get("000002", "CLangExecuteTest"));
+	}
+
+	@Test
+	public void slowestTests() {
+		StageTimings timings = new StageTimings();
+		timings.record("000001", "CLangCompileTest", 10);
+		timings.record("000002", "CLangCompileTest", 30);
+		timings.record("000002", "CLangExecuteTest", 30);
+		timings.record("000003", "CLangCompileTest", 20);
+		assertEquals(Arrays.asList("000002", "000003"), timings.slowest(2));
+	}
+}
@@ -0,0 +1,90 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import wycl.util.testing.TestReport;
+
+/**
+ * Tests for the reading, writing and merging of test reports.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TestReportTests {
+
+	@Test
+	public void mergeOverlappingReports() {
+		TestReport first = new TestReport();
+		first.record("000001", "SUCCESS", 10);
+		first.record("000002", "FAILURE", 20);
+		TestReport second = new TestReport();
+		second.record("000002", "SUCCESS", 30);
+		second.record("000003", "IGNORED", 40);
+		first.merge(second);
+		assertEquals(3, first.getEntries().size());
+		// Entries from the merged report take precedence
+		assertEquals("SUCCESS", first.get("000002").getResult());
+		assertEquals(30, first.get("000002").getMillis());
+		assertEquals(10, first.get("000001").getMillis());
+		assertEquals(0, first.countFailures());
+	}
+
+	@Test
+	public void countFailures() {
+		TestReport report = new TestReport();
+		report.record("000001", "SUCCESS", 1);
+		report.record("000002", "FAILURE", 1);
+		report.record("000003", "INVALIDIGNORED", 1);
+		report.record("000004", "IGNORED", 1);
+		assertEquals(2, report.countFailures());
+	}
+
+	@Test
+	public void writeThenRead(@TempDir Path dir) throws IOException {
+		TestReport report = new TestReport();
+		report.record("000001", "SUCCESS", 12);
+		report.record("000002", "FAILURE", 34);
+		Path file = dir.resolve("shard.txt");
+		report.write(file);
+		TestReport read = TestReport.read(file);
+		assertEquals(2, read.getEntries().size());
+		assertEquals("FAILURE", read.get("000002").getResult());
+		assertEquals(Long.valueOf(12), read.getDurations().get("000001"));
+	}
+
+	@Test
+	public void readMissingFile(@TempDir Path dir) throws IOException {
+		TestReport report = TestReport.read(dir.resolve("missing.txt"));
+		assertEquals(0, report.getEntries().size());
+		assertNull(report.get("000001"));
+	}
+
+	@Test
+	public void readInvalidFile(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("invalid.txt");
+		Files.write(file, "# name\tresult\tmillis\n000001\tSUCCESS\n".getBytes(StandardCharsets.UTF_8));
+		assertThrows(IOException.class, () -> TestReport.read(file));
+	}
+}
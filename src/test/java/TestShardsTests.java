@@ -0,0 +1,135 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import wycl.util.testing.TestShards;
+
+/**
+ * Tests for the partitioning of test cases into shards.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TestShardsTests {
+
+	@Test
+	public void partitionIsCompleteAndDisjoint() {
+		List<String> tests = names(25);
+		Map<String, Long> history = new HashMap<>();
+		for (int i = 0; i < tests.size(); i += 2) {
+			history.put(tests.get(i), (long) (i * 37 % 11 + 1));
+		}
+		List<List<String>> shards = TestShards.partition(tests, history, 4);
+		assertEquals(4, shards.size());
+		HashSet<String> seen = new HashSet<>();
+		for (List<String> shard : shards) {
+			for (String test : shard) {
+				assertTrue(seen.add(test), "test assigned twice: " + test);
+			}
+		}
+		assertEquals(new HashSet<>(tests), seen);
+	}
+
+	@Test
+	public void selectionIsDeterministic() {
+		List<String> tests = names(30);
+		Map<String, Long> history = new HashMap<>();
+		for (String test : tests) {
+			history.put(test, (long) test.hashCode() % 100 + 100);
+		}
+		// The order in which tests are found should not matter
+		List<String> shuffled = new ArrayList<>(tests);
+		Collections.reverse(shuffled);
+		for (int i = 0; i != 3; ++i) {
+			List<String> first = TestShards.select(tests, history, i, 3);
+			List<String> second = TestShards.select(shuffled, new HashMap<>(history), i, 3);
+			assertEquals(first, second);
+		}
+	}
+
+	@Test
+	public void selectionIsSorted() {
+		List<String> tests = names(10);
+		List<String> selected = TestShards.select(tests, new HashMap<>(), 1, 3);
+		List<String> sorted = new ArrayList<>(selected);
+		Collections.sort(sorted);
+		assertEquals(sorted, selected);
+	}
+
+	@Test
+	public void longestTestsAreSpread() {
+		// Two long tests should never end up in the same shard
+		List<String> tests = Arrays.asList("a", "b", "c", "d", "e", "f");
+		Map<String, Long> history = new HashMap<>();
+		history.put("a", 1000L);
+		history.put("b", 1000L);
+		for (String test : Arrays.asList("c", "d", "e", "f")) {
+			history.put(test, 10L);
+		}
+		List<List<String>> shards = TestShards.partition(tests, history, 2);
+		assertTrue(shards.get(0).contains("a") != shards.get(1).contains("a"));
+		assertTrue(shards.get(0).contains("a") != shards.get(0).contains("b"));
+		assertEquals(3, shards.get(0).size());
+		assertEquals(3, shards.get(1).size());
+	}
+
+	@Test
+	public void loadsAreBalanced() {
+		List<String> tests = names(40);
+		Map<String, Long> history = new HashMap<>();
+		for (int i = 0; i != tests.size(); ++i) {
+			history.put(tests.get(i), (long) (i + 1));
+		}
+		long max = 0, min = Long.MAX_VALUE;
+		for (List<String> shard : TestShards.partition(tests, history, 4)) {
+			long load = 0;
+			for (String test : shard) {
+				load += history.get(test);
+			}
+			max = Math.max(max, load);
+			min = Math.min(min, load);
+		}
+		// Longest processing time first is within the longest test of optimal
+		assertTrue(max - min <= tests.size(), "unbalanced shards: " + min + " to " + max);
+	}
+
+	@Test
+	public void invalidShardsAreRejected() {
+		List<String> tests = names(3);
+		assertThrows(IllegalArgumentException.class, () -> TestShards.select(tests, new HashMap<>(), 2, 2));
+		assertThrows(IllegalArgumentException.class, () -> TestShards.select(tests, new HashMap<>(), -1, 2));
+		assertThrows(IllegalArgumentException.class, () -> TestShards.select(tests, new HashMap<>(), 0, 0));
+	}
+
+	private static List<String> names(int n) {
+		ArrayList<String> names = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			names.add(String.format("%06d", i));
+		}
+		return names;
+	}
+}
@@ -0,0 +1,195 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import wyc.util.testing.WhileyCompileTest;
+import wycc.util.TextFile;
+import wycc.util.Trie;
+import wycc.util.testing.TestFile;
+import wycc.util.testing.TestFile.Error;
+import wycc.util.testing.TestManager;
+import wycc.util.testing.TestStage;
+import wycl.core.CLangFile;
+import wycl.io.CLangFilePrinter;
+import wycl.tasks.CLangCompileTask;
+import wycl.tasks.CLangCompiler;
+import wycl.util.Verification;
+
+/**
+ * Check that compiling a verified module omits only the checks discharged by
+ * the verifier. That is, the C generated for a verified module is that
+ * generated otherwise, less some assertions, whilst <code>assume</code>
+ * statements, the preconditions of exported functions and narrowing
+ * conversions are still checked. A module is only treated as verified when it
+ * has a verification record (see <code>Verification</code>), which is written
+ * here in place of running the verifier.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class VerifiedChecksTests {
+	/**
+	 * A test whose functions have preconditions (of exported and other
+	 * functions), loop invariants, assertions, assumptions and narrowing
+	 * conversions (but no postconditions, whose functions are omitted when
+	 * verified).
+	 */
+	private final static Trie TEST = Trie.fromString("001451");
+
+	@Test
+	public void verifiedOmitsOnlyChecks() throws IOException {
+		Emit emit = new Emit(CLangCompiler.CheckLevel.STANDARD);
+		new TestManager(WhileyCompilerTests.WHILEY_SRC_DIR, new WhileyCompileTest(), emit).run(TEST);
+		List<String> plain = emit.emitted.get(false);
+		List<String> verified = emit.emitted.get(true);
+		assertNotNull(plain);
+		assertNotNull(verified);
+		// The verified lines must appear in order, with only assertions missing
+		int i = 0;
+		for (String line : plain) {
+			if (i < verified.size() && line.equals(verified.get(i))) {
+				i = i + 1;
+			} else {
+				assertTrue(line.trim().startsWith("assert("), "unexpected difference: " + line);
+			}
+		}
+		assertEquals(verified.size(), i);
+		assertTrue(verified.size() < plain.size());
+		assertTrue(verified.stream().anyMatch(l -> l.contains("wy_int_narrow") || l.contains("wy_i64_narrow")));
+	}
+
+	@Test
+	public void verifiedKeepsRemainingChecks() throws IOException {
+		// Loop invariants are only checked under full
+		Emit emit = new Emit(CLangCompiler.CheckLevel.FULL);
+		new TestManager(WhileyCompilerTests.WHILEY_SRC_DIR, new WhileyCompileTest(), emit).run(TEST);
+		Map<String, int[]> plain = emit.checks.get(false);
+		Map<String, int[]> verified = emit.checks.get(true);
+		assertNotNull(plain);
+		assertNotNull(verified);
+		// Without a verification record, every check is emitted
+		for (Map.Entry<String, int[]> e : plain.entrySet()) {
+			assertEquals(e.getValue()[0], e.getValue()[1], "unexpected omission: " + e.getKey());
+		}
+		for (String kind : Arrays.asList("assertion", "loop invariant", "assumption", "precondition", "narrowing")) {
+			assertTrue(verified.containsKey(kind) && verified.get(kind)[0] > 0, "no checks generated: " + kind);
+		}
+		for (Map.Entry<String, int[]> e : verified.entrySet()) {
+			int generated = e.getValue()[0];
+			int emitted = e.getValue()[1];
+			switch (e.getKey()) {
+			case "assumption":
+			case "narrowing":
+				// Neither is discharged by the verifier
+				assertEquals(generated, emitted, "unexpected omission: " + e.getKey());
+				break;
+			case "precondition":
+				// Only those of exported functions remain
+				assertTrue(emitted > 0 && emitted < generated, "unexpected preconditions: " + emitted);
+				break;
+			default:
+				assertEquals(0, emitted, "unexpected check: " + e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Parse the counts of each kind of check from the <code>checks</code> section
+	 * of a profile, where each line has the form "kind: N generated, M emitted"
+	 * (and counts from different modules are summed).
+	 *
+	 * @param lines
+	 * @return
+	 */
+	private static Map<String, int[]> countsOf(List<String> lines) {
+		Map<String, int[]> counts = new HashMap<>();
+		for (String line : lines) {
+			Matcher m = Pattern.compile("(.*): (\\d+) generated, (\\d+) emitted").matcher(line);
+			assertTrue(m.matches(), "unexpected profile entry: " + line);
+			int[] c = counts.computeIfAbsent(m.group(1), k -> new int[2]);
+			c[0] += Integer.parseInt(m.group(2));
+			c[1] += Integer.parseInt(m.group(3));
+		}
+		return counts;
+	}
+
+	/**
+	 * A test stage which translates the compiled module into C both before and
+	 * after recording that it has been verified.
+	 */
+	private static class Emit implements TestStage {
+		private final CLangCompiler.CheckLevel level;
+
+		/**
+		 * The lines of C generated for the test, without and with a verification
+		 * record.
+		 */
+		private final Map<Boolean, List<String>> emitted = new HashMap<>();
+
+		/**
+		 * The counts of each kind of check generated and emitted, without and with
+		 * a verification record.
+		 */
+		private final Map<Boolean, Map<String, int[]>> checks = new HashMap<>();
+
+		public Emit(CLangCompiler.CheckLevel level) {
+			this.level = level;
+		}
+
+		@Override
+		public Result apply(Trie path, Path dir, Map<Trie, TextFile> state, TestFile tf) throws IOException {
+			for (boolean verified : new boolean[] { false, true }) {
+				if (verified) {
+					Verification.record(dir.toFile(), path);
+				} else {
+					Verification.remove(dir.toFile(), path);
+				}
+				assertEquals(verified, Verification.isVerified(dir.toFile(), path));
+				CLangCompileTask task = new CLangCompileTask().setCheckLevel(level)
+						.addSource(wyc.Compiler.readWyilFile(dir.toFile(), path), Verification.isVerified(dir.toFile(), path));
+				CLangFile file = task.run();
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new CLangFilePrinter(out).write(file);
+				emitted.put(verified, Arrays.asList(out.toString().split("\n")));
+				checks.put(verified, countsOf(task.getProfile().get("checks")));
+			}
+			return new Result(false, new Error[0]);
+		}
+
+		@Override
+		public Error[] filter(Error[] errors) {
+			return new Error[0];
+		}
+
+		@Override
+		public boolean required() {
+			return true;
+		}
+	}
+}
@@ -15,13 +15,16 @@
 
 import java.nio.file.Path;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.fail;
 
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -32,6 +35,10 @@ import wycc.util.testing.TestManager;
 import wycc.util.testing.TestManager.Result;
 import wycl.util.testing.CLangCompileTest;
 import wycl.util.testing.CLangExecuteTest;
+import wycl.util.testing.StageTimings;
+import wycl.util.testing.TestReport;
+import wycl.util.testing.TestShards;
+import wycl.util.testing.TimedStage;
 
 /**
  * Run through all valid test cases with verification enabled. Since every test
@@ -69,8 +76,86 @@ public class WhileyCompilerTests {
 	 */
 	public final static Path WHILEY_SRC_DIR = Path.of("tests");
 
-	public final static TestManager manager = new TestManager(WHILEY_SRC_DIR, new WhileyCompileTest(),
-			new CLangCompileTest(), new CLangExecuteTest());
+	/**
+	 * The index of the shard to run (from <code>0</code>). This allows the test
+	 * suite to be split across several machines, where each runs a different
+	 * shard. For example, <code>-Dtest.shard.index=1 -Dtest.shard.count=4</code>.
+	 */
+	public final static int SHARD_INDEX = Integer.getInteger("test.shard.index", 0);
+	/**
+	 * The total number of shards the test suite is split into. By default, all
+	 * tests are run in a single shard.
+	 */
+	public final static int SHARD_COUNT = Integer.getInteger("test.shard.count", 1);
+	/**
+	 * A report from a previous run which gives the historical runtime of each
+	 * test. This is used to balance the shards, and may not exist.
+	 */
+	public final static Path TEST_HISTORY = Path.of(System.getProperty("test.history", "tests/timings.txt"));
+	/**
+	 * The file where the results of this shard are written. Results from several
+	 * shards can then be merged using <code>TestReport</code>.
+	 */
+	public final static Path TEST_REPORT = Path.of(System.getProperty("test.report",
+			"target/test-results/shard-" + SHARD_INDEX + "-of-" + SHARD_COUNT + ".txt"));
+
+	/**
+	 * Per-stage timings from a previous run. When present, any test whose Whiley
+	 * compilation, C compilation or execution has become significantly slower
+	 * than this is reported as a failure.
+	 */
+	public final static Path TEST_BASELINE = Path.of(System.getProperty("test.baseline", "tests/baseline.txt"));
+	/**
+	 * When enabled, the per-stage timings of this run are merged into the
+	 * baseline file (rather than being compared against it). Timings for tests
+	 * outside this shard are retained.
+	 */
+	public final static boolean UPDATE_BASELINE = Boolean.getBoolean("test.baseline.update");
+	/**
+	 * The ratio of current to baseline time above which a stage is considered to
+	 * have regressed.
+	 */
+	public final static double REGRESSION_THRESHOLD = Double
+			.parseDouble(System.getProperty("test.regression.threshold", "2.0"));
+	/**
+	 * The increase in time (in milliseconds) which is always tolerated. This
+	 * prevents noise in very short stages from being reported as regressions.
+	 */
+	public final static long REGRESSION_SLACK = Long.getLong("test.regression.slack", 250);
+	/**
+	 * The number of times a test which appears to have regressed is run in
+	 * total, before its median timings are compared against the baseline. This
+	 * prevents a single noisy measurement from failing the test.
+	 */
+	public final static int REGRESSION_SAMPLES = Integer.getInteger("test.regression.samples", 3);
+	/**
+	 * The stages checked for performance regressions.
+	 */
+	private final static List<String> GATED_STAGES = Arrays.asList("WhileyCompileTest", "CLangCompileTest",
+			"CLangExecuteTest");
+	/**
+	 * The number of tests included in the slow test report.
+	 */
+	private final static int SLOW_TESTS = 20;
+
+	/**
+	 * Records how long each stage of each test took.
+	 */
+	private final static StageTimings timings = new StageTimings();
+
+	public final static TestManager manager = new TestManager(WHILEY_SRC_DIR,
+			new TimedStage(new WhileyCompileTest(), timings), new TimedStage(new CLangCompileTest(), timings),
+			new TimedStage(new CLangExecuteTest(), timings));
+
+	/**
+	 * Records the outcome of every test run.
+	 */
+	private final static TestReport report = new TestReport();
+
+	/**
+	 * The baseline timings to compare against.
+	 */
+	private static StageTimings baseline;
 
 	// ======================================================================
 	// Test Harness
@@ -79,7 +164,9 @@ public class WhileyCompilerTests {
 	@ParameterizedTest
 	@MethodSource("sourceFiles")
  	public void mainTests(Trie path) throws IOException {
+		long start = System.currentTimeMillis();
 		TestManager.Result r = manager.run(path);
+		report.record(path.toString(), r.name(), System.currentTimeMillis() - start);
 		//
 		if(r == Result.IGNORED) {
 			Assumptions.assumeTrue(false, "Test " + path + " skipped");
@@ -88,11 +175,54 @@ public class WhileyCompilerTests {
 		} else if(r == Result.INVALIDIGNORED) {
 			fail("test should not be marked as ignored");
 		}
+		// Check for any performance regressions
+		if (!UPDATE_BASELINE) {
+			List<String> regressions = timings.regressions(getBaseline(), path.toString(), GATED_STAGES,
+					REGRESSION_THRESHOLD, REGRESSION_SLACK);
+			// Confirm using the median of several runs
+			for (int i = 1; i < REGRESSION_SAMPLES && !regressions.isEmpty(); ++i) {
+				manager.run(path);
+				if (i == REGRESSION_SAMPLES - 1) {
+					regressions = timings.regressions(getBaseline(), path.toString(), GATED_STAGES,
+							REGRESSION_THRESHOLD, REGRESSION_SLACK);
+				}
+			}
+			if (!regressions.isEmpty()) {
+				fail(String.join("\n", regressions));
+			}
+		}
 	}
 
-	// Here we enumerate all available test cases.
+	// Here we enumerate all test cases in this shard.
 	private static Stream<Trie> sourceFiles() throws IOException {
-		return readTestFiles(WHILEY_SRC_DIR, n -> true);
+		List<Trie> tests = readTestFiles(WHILEY_SRC_DIR, n -> true).collect(Collectors.toList());
+		Map<String, Long> history = TestReport.read(TEST_HISTORY).getDurations();
+		return TestShards.select(tests, history, SHARD_INDEX, SHARD_COUNT).stream();
+	}
+
+	@AfterAll
+	public static void writeReport() throws IOException {
+		report.write(TEST_REPORT);
+		Path dir = TEST_REPORT.getParent() == null ? Path.of(".") : TEST_REPORT.getParent();
+		timings.write(dir.resolve("timings-" + SHARD_INDEX + "-of-" + SHARD_COUNT + ".txt"));
+		if (UPDATE_BASELINE) {
+			StageTimings merged = StageTimings.read(TEST_BASELINE);
+			merged.merge(timings);
+			merged.write(TEST_BASELINE);
+		}
+		// Surface the slowest tests
+		System.out.println("Slowest tests:");
+		timings.writeSlowest(SLOW_TESTS, new PrintWriter(System.out));
+		try (PrintWriter out = new PrintWriter(dir.resolve("slow-" + SHARD_INDEX + "-of-" + SHARD_COUNT + ".txt").toFile())) {
+			timings.writeSlowest(SLOW_TESTS, out);
+		}
+	}
+
+	private static synchronized StageTimings getBaseline() throws IOException {
+		if (baseline == null) {
+			baseline = StageTimings.read(TEST_BASELINE);
+		}
+		return baseline;
 	}
 
 	// ======================================================================